@@ -0,0 +1,83 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, so that
+ * runs of different releases can be compared.
+ *
+ * Accepts the usual JMH command line. Unless -rff is given, the
+ * results go to results/jmh-VERSION.json, where VERSION is the
+ * version of the benchmark jar.
+ * @author Vitaly
+ *
+ */
+public final class BenchmarkRunner {
+    /** Directory of the result files. */
+    private static final String RESULTS_DIR = "results";
+
+    /** This class is not supposed to be instantiated. */
+    private BenchmarkRunner() {
+
+    }
+
+    /**
+     * @param args JMH command line options.
+     * @throws RunnerException if a benchmark failed.
+     * @throws CommandLineOptionException if the options are invalid.
+     */
+    public static void main(final String[] args)
+        throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+
+        String version = BenchmarkRunner.class.getPackage()
+            .getImplementationVersion();
+        if (version == null) {
+            version = "dev";
+        }
+
+        File output = new File(RESULTS_DIR, "jmh-" + version + ".json");
+        if (cmd.getResult().hasValue()) {
+            output = new File(cmd.getResult().get());
+        }
+        File dir = output.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new RunnerException("Cannot create " + dir);
+        }
+
+        Options opts = new OptionsBuilder()
+            .parent(cmd)
+            .resultFormat(ResultFormatType.JSON)
+            .result(output.getPath())
+            .build();
+
+        new Runner(opts).run();
+        System.out.println("Results written to " + output);
+    }
+}
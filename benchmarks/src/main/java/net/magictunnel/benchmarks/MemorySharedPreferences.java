@@ -0,0 +1,185 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/**
+ * Preference store kept in a HashMap, so that profiles
+ * can be serialized outside of Android.
+ * @author Vitaly
+ *
+ */
+public class MemorySharedPreferences implements SharedPreferences {
+    /** The stored values. */
+    private Map<String, Object> mValues = new HashMap<String, Object>();
+
+    /**
+     * Returns the stored value, or the default one.
+     * @param key The key.
+     * @param defValue The default value.
+     * @param <T> The type of the value.
+     * @return The value.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T get(final String key, final T defValue) {
+        Object v = mValues.get(key);
+        return v == null ? defValue : (T) v;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<String, Object>(mValues);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        return get(key, defValues);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            final OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            final OnSharedPreferenceChangeListener listener) {
+    }
+
+    /**
+     * Editor that applies its changes on commit.
+     */
+    private final class MemoryEditor implements Editor {
+        /** Pending changes, null values are removals. */
+        private Map<String, Object> mPending = new HashMap<String, Object>();
+
+        /** Whether clear() was called. */
+        private boolean mClear;
+
+        @Override
+        public Editor putString(final String key, final String value) {
+            mPending.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(final String key, final Set<String> values) {
+            mPending.put(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(final String key, final int value) {
+            mPending.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(final String key, final long value) {
+            mPending.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(final String key, final float value) {
+            mPending.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(final String key, final boolean value) {
+            mPending.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(final String key) {
+            mPending.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            if (mClear) {
+                mValues.clear();
+            }
+            for (Map.Entry<String, Object> e : mPending.entrySet()) {
+                if (e.getValue() == null) {
+                    mValues.remove(e.getKey());
+                } else {
+                    mValues.put(e.getKey(), e.getValue());
+                }
+            }
+            mPending.clear();
+            mClear = false;
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
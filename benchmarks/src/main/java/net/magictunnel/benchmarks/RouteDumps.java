@@ -0,0 +1,83 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates realistic "ip route" dumps for the benchmarks.
+ * @author Vitaly
+ *
+ */
+public final class RouteDumps {
+    /** Interfaces found on typical phones. */
+    private static final String[] IFACES = {
+        "wlan0", "rmnet0", "rmnet_sdio0", "dns0", "eth0", "ppp0",
+    };
+
+    /** This class is not supposed to be instantiated. */
+    private RouteDumps() {
+
+    }
+
+    /**
+     * @param r Random source.
+     * @return A random dotted-quad address.
+     */
+    private static String address(final Random r) {
+        return (1 + r.nextInt(223)) + "." + r.nextInt(256) + "."
+            + r.nextInt(256) + "." + r.nextInt(256);
+    }
+
+    /**
+     * Builds a dump with a mix of default, host, gateway and
+     * kernel link routes, like the ones found on connected phones.
+     * @param lines Number of lines of the dump.
+     * @param seed Seed of the random generator.
+     * @return The lines of the dump.
+     */
+    public static List<String> generate(final int lines, final long seed) {
+        Random r = new Random(seed);
+        List<String> dump = new ArrayList<String>(lines);
+
+        for (int i = 0; i < lines; ++i) {
+            String dev = IFACES[r.nextInt(IFACES.length)];
+            switch (r.nextInt(4)) {
+            case 0:
+                dump.add("default via " + address(r) + " dev " + dev);
+                break;
+            case 1:
+                dump.add(address(r) + " via " + address(r) + " dev " + dev);
+                break;
+            case 2:
+                dump.add(address(r) + "/" + (8 + r.nextInt(23)) + " dev " + dev
+                        + "  proto kernel  scope link  src " + address(r));
+                break;
+            default:
+                dump.add(address(r) + "/" + (8 + r.nextInt(23)) + " via "
+                        + address(r) + " dev " + dev + "  metric "
+                        + r.nextInt(1000));
+                break;
+            }
+        }
+        return dump;
+    }
+}
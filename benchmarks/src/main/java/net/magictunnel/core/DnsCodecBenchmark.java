@@ -0,0 +1,192 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.magictunnel.settings.DnsProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of tunnel queries and decoding of the server replies,
+ * for each record type: the ByteBuffer codec, on heap and direct
+ * buffers, versus the byte array code it replaced.
+ * @author Vitaly
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DnsCodecBenchmark {
+    /** The tunnel domain. */
+    private static final String DOMAIN = "t.example.com";
+
+    /** Characters of the query names, as in iodine's Base32. */
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz012345";
+
+    /** Labels of data in a query name. */
+    private static final int LABELS = 3;
+
+    /** Length of a label. */
+    private static final int LABEL_LENGTH = 63;
+
+    /** Size of the buffers. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /** Bytes of downstream data in binary records. */
+    private static final int BINARY_DATA = 1000;
+
+    /** The record type. */
+    @Param({"NULL", "TXT", "SRV", "MX", "CNAME", "A" })
+    private DnsProtocol mProtocol;
+
+    /** Whether the buffers are direct. */
+    @Param({"false", "true" })
+    private boolean mDirect;
+
+    /** The record type number. */
+    private int mType;
+
+    /** The query name. */
+    private String mName;
+
+    /** Where the queries are encoded. */
+    private ByteBuffer mQuery;
+
+    /** The reply of the server. */
+    private ByteBuffer mReply;
+
+    /** The same reply, for the byte array code. */
+    private byte[] mReplyBytes;
+
+    /** Where the data of the replies is copied. */
+    private ByteBuffer mData;
+
+    /** The encoder. */
+    private final DnsCodec.Writer mWriter = new DnsCodec.Writer();
+
+    /** The decoder. */
+    private final DnsCodec.Reader mReader = new DnsCodec.Reader();
+
+    /** Builds a query name and the reply the server would send. */
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LABELS; ++i) {
+            for (int j = 0; j < LABEL_LENGTH; ++j) {
+                sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+            }
+            sb.append('.');
+        }
+        mName = sb.append(DOMAIN).toString();
+        mType = DnsCodec.getRecordType(mProtocol);
+
+        mQuery = allocate(BUFFER_SIZE);
+        mReply = allocate(BUFFER_SIZE);
+        mData = allocate(BUFFER_SIZE);
+
+        byte[] data = new byte[BINARY_DATA];
+        r.nextBytes(data);
+        String target = mName.substring(LABEL_LENGTH + 1);
+
+        mWriter.begin(mReply, 0x1234, DnsCodec.FLAG_QR | DnsCodec.FLAG_AA)
+            .question(mName, mType);
+        switch (mProtocol) {
+        case NULL:
+            mWriter.nul(mName, 0, ByteBuffer.wrap(data));
+            break;
+        case TXT:
+            mWriter.txt(mName, 0, ByteBuffer.wrap(data));
+            break;
+        case SRV:
+            mWriter.srv(mName, 0, 10, 10, 0, target);
+            break;
+        case MX:
+            mWriter.mx(mName, 0, 10, target);
+            break;
+        default:
+            mWriter.cname(mName, 0, target);
+            break;
+        }
+        mWriter.finish();
+        mReply.flip();
+
+        mReplyBytes = new byte[mReply.remaining()];
+        mReply.duplicate().get(mReplyBytes);
+    }
+
+    /**
+     * @param size The capacity.
+     * @return A heap or direct buffer, depending on mDirect.
+     */
+    private ByteBuffer allocate(final int size) {
+        return mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /** @return The length of the query, built in place. */
+    @Benchmark
+    public int encode() {
+        mQuery.clear();
+        return mWriter.begin(mQuery, 0x1234, DnsCodec.FLAG_RD)
+            .question(mName, mType).finish();
+    }
+
+    /** @return The bytes of data of the reply, copied out. */
+    @Benchmark
+    public int decode() {
+        mReader.wrap(mReply);
+        mData.clear();
+        int bytes = 0;
+        while (mReader.next()) {
+            if (mReader.getSection() == DnsCodec.SECTION_ANSWER) {
+                bytes += mReader.copyData(mData);
+            }
+        }
+        return bytes;
+    }
+
+    /** @return The query, built by the byte array code. */
+    @Benchmark
+    public byte[] legacyEncode() {
+        return LegacyDnsPacket.buildQuery(0x1234, mName, mType);
+    }
+
+    /** @return The bytes of data of the reply, counted by the byte array code. */
+    @Benchmark
+    public int legacyDecode() {
+        return LegacyDnsPacket.parsePayload(mReplyBytes, mReplyBytes.length, mType);
+    }
+}
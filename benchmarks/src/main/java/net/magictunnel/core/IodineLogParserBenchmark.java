@@ -0,0 +1,103 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of the tunnel addresses from the Iodine log, on logs
+ * that grew large because of retries and debug output: regular
+ * expressions over the whole log versus the streaming parser fed
+ * one line at a time.
+ * @author Vitaly
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IodineLogParserBenchmark {
+    /** Lines printed by the client before the handshake completes. */
+    private static final String[] NOISE = {
+        "Opened dns0",
+        "Opened UDP socket",
+        "Sending DNS queries for t.example.com to 10.50.0.1",
+        "Autodetecting DNS query type (use -T to override).",
+        "Retrying version check...",
+        "Got SERVFAIL as reply: server failed or recursion timeout",
+        "Autoprobing max downstream fragment size... (skip with -m fragsize)",
+        "768 ok.. 1152 ok.. ...1344 not ok.. 1248 ok.. 1296 not ok..",
+    };
+
+    /** Number of lines of the log. */
+    @Param({"100", "10000", "100000" })
+    private int mLines;
+
+    /** The log being searched. */
+    private StringBuffer mLog;
+
+    /** The same log, split in lines. */
+    private String[] mLogLines;
+
+    /** Builds a log whose interesting lines are at the end. */
+    @Setup
+    public void setup() {
+        Random r = new Random(mLines);
+        mLog = new StringBuffer();
+        for (int i = 0; i < mLines - 2; ++i) {
+            mLog.append(NOISE[r.nextInt(NOISE.length)]).append('\n');
+        }
+        mLog.append("Server tunnel IP is 192.168.99.1\n");
+        mLog.append("Sending raw traffic directly to 203.0.113.7\n");
+        mLogLines = mLog.toString().split("\n");
+    }
+
+    /** @return The raw endpoint, found by searching the whole log. */
+    @Benchmark
+    public InetAddress legacy() {
+        LegacyIodineOutput.getServerTunnelIp(mLog);
+        return LegacyIodineOutput.getRawEndpoint(mLog);
+    }
+
+    /** @return The raw endpoint, found by parsing each line once. */
+    @Benchmark
+    public InetAddress streaming() {
+        IodineLogParser p = new IodineLogParser(null);
+        for (String l : mLogLines) {
+            p.parseLine(l);
+        }
+        return p.getRawEndpoint();
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * The byte array DNS code that DnsCodec replaced in DnsProbe,
+ * kept as the benchmark baseline.
+ * @author Vitaly
+ *
+ */
+public final class LegacyDnsPacket {
+    /** Size of the DNS header. */
+    private static final int HEADER_SIZE = 12;
+
+    /** Recursion desired flag. */
+    private static final int FLAG_RD = 0x0100;
+
+    /** Response flag. */
+    private static final int FLAG_QR = 0x8000;
+
+    /** Truncation flag. */
+    private static final int FLAG_TC = 0x0200;
+
+    /** Mask of the response code. */
+    private static final int RCODE_MASK = 0x000f;
+
+    /** Marks a compression pointer. */
+    private static final int POINTER_MASK = 0xc0;
+
+    /** Class IN. */
+    private static final int CLASS_IN = 1;
+
+    /** A record type. */
+    private static final int TYPE_A = 1;
+    /** CNAME record type. */
+    private static final int TYPE_CNAME = 5;
+    /** NULL record type. */
+    private static final int TYPE_NULL = 10;
+    /** MX record type. */
+    private static final int TYPE_MX = 15;
+    /** TXT record type. */
+    private static final int TYPE_TXT = 16;
+    /** SRV record type. */
+    private static final int TYPE_SRV = 33;
+
+    /** Fixed fields before the target of an MX record. */
+    private static final int MX_FIXED = 2;
+
+    /** Fixed fields before the target of an SRV record. */
+    private static final int SRV_FIXED = 6;
+
+    /** Bits of data per byte in binary records. */
+    private static final int BINARY_BITS = 8;
+
+    /** Bits of data per byte in host names, with iodine's Base128. */
+    private static final int HOSTNAME_BITS = 7;
+
+    /** Mask of an unsigned byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Bits in a byte. */
+    private static final int BYTE_BITS = 8;
+
+    /** This class is not supposed to be instantiated. */
+    private LegacyDnsPacket() {
+
+    }
+
+    /**
+     * Builds a query.
+     * @param id The query id.
+     * @param name The query name.
+     * @param type The record type.
+     * @return The packet.
+     */
+    static byte[] buildQuery(final int id, final String name, final int type) {
+        byte[] pkt = new byte[HEADER_SIZE + name.length() + 2 + 4];
+        writeShort(pkt, 0, id);
+        writeShort(pkt, 2, FLAG_RD);
+        writeShort(pkt, 4, 1);
+
+        int pos = HEADER_SIZE;
+        for (String label : name.split("\\.")) {
+            pkt[pos++] = (byte) label.length();
+            for (int i = 0; i < label.length(); ++i) {
+                pkt[pos++] = (byte) label.charAt(i);
+            }
+        }
+        pkt[pos++] = 0;
+        writeShort(pkt, pos, type);
+        writeShort(pkt, pos + 2, CLASS_IN);
+        return pkt;
+    }
+
+    /**
+     * Measures how much tunnel data a reply carries in records of
+     * the expected type. The server answers A queries with a CNAME.
+     * @param pkt The reply.
+     * @param length The length of the reply.
+     * @param type The record type that was asked for.
+     * @return The bytes of tunnel data, 0 if the reply is not usable.
+     */
+    static int parsePayload(final byte[] pkt, final int length, final int type) {
+        if (length < HEADER_SIZE) {
+            return 0;
+        }
+
+        int flags = readShort(pkt, 2);
+        if ((flags & FLAG_QR) == 0 || (flags & FLAG_TC) != 0
+                || (flags & RCODE_MASK) != 0) {
+            return 0;
+        }
+
+        int qdcount = readShort(pkt, 4);
+        int ancount = readShort(pkt, 6);
+        int pos = HEADER_SIZE;
+
+        for (int i = 0; i < qdcount; ++i) {
+            pos = skipName(pkt, length, pos) + 4;
+        }
+
+        int bytes = 0;
+        for (int i = 0; i < ancount && pos >= 0; ++i) {
+            pos = skipName(pkt, length, pos);
+            if (pos < 0 || pos + 10 > length) {
+                return 0;
+            }
+            int rrtype = readShort(pkt, pos);
+            int rdlength = readShort(pkt, pos + 8);
+            pos += 10;
+            if (pos + rdlength > length) {
+                return 0;
+            }
+
+            if (rrtype == type || (type == TYPE_A && rrtype == TYPE_CNAME)) {
+                bytes += countData(pkt, pos, rdlength, rrtype);
+            }
+            pos += rdlength;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param pkt The reply.
+     * @param pos Where the record data starts.
+     * @param rdlength The length of the record data.
+     * @param rrtype The type of the record.
+     * @return The bytes of tunnel data in the record.
+     */
+    private static int countData(
+            final byte[] pkt,
+            final int pos,
+            final int rdlength,
+            final int rrtype) {
+        switch (rrtype) {
+        case TYPE_NULL:
+            return rdlength;
+
+        case TYPE_TXT:
+            int bytes = 0;
+            int p = pos;
+            while (p < pos + rdlength) {
+                int len = pkt[p] & BYTE_MASK;
+                bytes += len;
+                p += len + 1;
+            }
+            return bytes;
+
+        case TYPE_MX:
+            return countName(pkt, pos + MX_FIXED, rdlength - MX_FIXED);
+
+        case TYPE_SRV:
+            return countName(pkt, pos + SRV_FIXED, rdlength - SRV_FIXED);
+
+        case TYPE_CNAME:
+            return countName(pkt, pos, rdlength);
+
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Counts the bytes of tunnel data in a host name, which carries
+     * fewer bits per character than binary records.
+     * @param pkt The reply.
+     * @param pos Where the name starts.
+     * @param rdlength How many bytes the name takes in the record.
+     * @return The bytes of tunnel data.
+     */
+    private static int countName(final byte[] pkt, final int pos, final int rdlength) {
+        int chars = 0;
+        int p = pos;
+        while (p < pos + rdlength) {
+            int len = pkt[p] & BYTE_MASK;
+            if (len == 0 || (len & POINTER_MASK) == POINTER_MASK) {
+                break;
+            }
+            chars += len;
+            p += len + 1;
+        }
+        return chars * HOSTNAME_BITS / BINARY_BITS;
+    }
+
+    /**
+     * @param pkt The packet.
+     * @param length The length of the packet.
+     * @param pos Where the name starts.
+     * @return Where the name ends, -1 if it is malformed.
+     */
+    private static int skipName(final byte[] pkt, final int length, final int pos) {
+        int p = pos;
+        while (p >= 0 && p < length) {
+            int len = pkt[p] & BYTE_MASK;
+            if (len == 0) {
+                return p + 1;
+            }
+            if ((len & POINTER_MASK) == POINTER_MASK) {
+                return p + 2;
+            }
+            p += len + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param pkt The packet.
+     * @param pos The offset.
+     * @return The big endian 16-bit value at the offset.
+     */
+    private static int readShort(final byte[] pkt, final int pos) {
+        return ((pkt[pos] & BYTE_MASK) << BYTE_BITS) | (pkt[pos + 1] & BYTE_MASK);
+    }
+
+    /**
+     * @param pkt The packet.
+     * @param pos The offset.
+     * @param value The 16-bit value to write in big endian order.
+     */
+    private static void writeShort(final byte[] pkt, final int pos, final int value) {
+        pkt[pos] = (byte) (value >> BYTE_BITS);
+        pkt[pos + 1] = (byte) value;
+    }
+}
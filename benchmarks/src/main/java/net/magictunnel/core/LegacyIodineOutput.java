@@ -0,0 +1,90 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regular-expression based extraction of the tunnel addresses
+ * that IodineLogParser replaced, kept as the benchmark baseline.
+ * It searches the whole log after the fact.
+ * @author Vitaly
+ *
+ */
+public final class LegacyIodineOutput {
+    /**
+     * Pattern to extract the address of the remote DNS tunnel server
+     * in case direct connection is possible.
+     */
+    private static final Pattern IODINE_RAW_PATTERN =
+        Pattern.compile("directly to\\s+(\\d+\\.\\d+\\.\\d+\\.\\d+)");
+
+    /** Pattern to extract the address of the DNS tunnel server. */
+    private static final Pattern IODINE_SERVER_TUNNEL_PATTERN =
+        Pattern.compile("Server tunnel IP is\\s+(\\d+\\.\\d+\\.\\d+\\.\\d+)");
+
+    /** This class is not supposed to be instantiated. */
+    private LegacyIodineOutput() {
+
+    }
+
+    /**
+     * Extracts an IP address from the Iodine log messages.
+     * @param log The output generated by the Iodine client.
+     * @param p The pattern for IP extraction.
+     * @return The IP address.
+     */
+    static InetAddress extractIpFromLog(
+            final CharSequence log,
+            final Pattern p) {
+        Matcher m = p.matcher(log.toString());
+
+        if (!m.find()) {
+            return null;
+        }
+        String addr = m.group(1);
+        try {
+            return InetAddress.getByName(addr);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extract the raw endpoint of the DNS tunnel, in case the ISP allows
+     * direct UDP traffic to the DNS tunnel server.
+     * @param log The output generated by the Iodine client.
+     * @return The IP address.
+     */
+    public static InetAddress getRawEndpoint(final CharSequence log) {
+        return extractIpFromLog(log, IODINE_RAW_PATTERN);
+    }
+
+    /**
+     * Extract IP address of the DNS tunnel server.
+     * @param log The output generated by the Iodine client.
+     * @return The IP address.
+     */
+    public static InetAddress getServerTunnelIp(final CharSequence log) {
+        return extractIpFromLog(log, IODINE_SERVER_TUNNEL_PATTERN);
+    }
+}
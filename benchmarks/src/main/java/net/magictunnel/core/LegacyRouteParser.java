@@ -0,0 +1,131 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regular-expression based "ip route" parser that
+ * IpRouteParser replaced, kept as the benchmark baseline.
+ *
+ * It is the parser as it was right before the tokenizer, so it already
+ * gives host routes printed without a prefix length a 255.255.255.255
+ * mask, where the original one stored the raw value 32. Both parsers
+ * therefore give the same entries, which the benchmark checks.
+ * @author Vitaly
+ *
+ */
+public final class LegacyRouteParser {
+    /**
+     * Regular expression that represents an address of the form:
+     * 192.168.1.2/24, at a line start.
+     */
+    private static final Pattern REGEX_DESTINATION =
+        Pattern.compile("^(\\d+\\.\\d+\\.\\d+\\.\\d+)(?:/(\\d+))?");
+
+    /**
+     * Regular expression that represents a gateway entry of the form:
+     * via 192.168.1.2.
+     */
+    private static final Pattern REGEX_GW =
+        Pattern.compile("via\\s+(\\d+\\.\\d+.\\d+.\\d+)");
+
+    /**
+     * Regex of the form:
+     * dev eth0.
+     */
+    private static final Pattern REGEX_DEV =
+        Pattern.compile("dev\\s+(\\w+)");
+
+    /**
+     * The maximum length of a network mask.
+     */
+    private static final int MAX_MASK_LENGTH = 32;
+
+    /** This class is not supposed to be instantiated. */
+    private LegacyRouteParser() {
+
+    }
+
+    /**
+     * Converts a string representation of an IPv4 address
+     * into the equivalent integer.
+     * @param str The string IP address.
+     * @return The 32-bits address.
+     */
+    public static int v4StringToInt(final String str) {
+        int result = 0;
+        String[] array = str.split("\\.");
+
+        if (array.length != 4) {
+            return 0;
+        }
+
+        try {
+            result = Integer.parseInt(array[3]);
+            result = (result << 8) + Integer.parseInt(array[2]);
+            result = (result << 8) + Integer.parseInt(array[1]);
+            result = (result << 8) + Integer.parseInt(array[0]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        return result;
+    }
+
+    /**
+     * Parses a line of "ip route" output with regular expressions.
+     * @param cmdOutput Stripped line output from ip route command
+     * @return The route, null if the line is not a route.
+     */
+    public static RouteEntry fromIpRouteCommand(final String cmdOutput) {
+        RouteEntry re = new RouteEntry();
+
+        if (cmdOutput.startsWith("default")) {
+            re.setDestination(0);
+            re.setGateway(0);
+        } else {
+            Matcher m = REGEX_DESTINATION.matcher(cmdOutput);
+
+            if (m.find()) {
+                re.setDestination(v4StringToInt(m.group(1)));
+                if (m.group(2) != null) {
+                    re.setMask(NetworkUtils.prefixLengthToMask(
+                                Integer.valueOf(m.group(2))));
+                } else {
+                    re.setMask(NetworkUtils.prefixLengthToMask(MAX_MASK_LENGTH));
+                }
+            } else {
+                return null;
+            }
+        }
+
+        Matcher m = REGEX_GW.matcher(cmdOutput);
+        if (m.find()) {
+            re.setGateway(v4StringToInt(m.group(1)));
+        }
+
+        m = REGEX_DEV.matcher(cmdOutput);
+        if (m.find()) {
+            re.setInterfaceName(m.group(1));
+        }
+
+        return re;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Address and mask conversions of NetworkUtils, which run
+ * for every route that is read or written.
+ * @author Vitaly
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkUtilsBenchmark {
+    /** Number of prefix lengths, from /0 to /32. */
+    private static final int PREFIXES = 33;
+
+    /** Masks for every prefix length. */
+    private int[] mMasks = new int[PREFIXES];
+
+    /** Addresses in dotted-quad notation. */
+    private String[] mAddresses = {
+        "10.50.242.169", "192.168.233.2", "172.20.2.39", "0.0.0.0",
+        "255.255.255.255", "8.8.8.8", "192.168.1.1", "100.64.0.1",
+    };
+
+    /** The same addresses as integers. */
+    private int[] mIntAddresses = new int[mAddresses.length];
+
+    /** Rotating index into the inputs. */
+    private int mIndex;
+
+    /** Computes the inputs. */
+    @Setup
+    public void setup() {
+        for (int i = 0; i < PREFIXES; ++i) {
+            mMasks[i] = NetworkUtils.prefixLengthToMask(i);
+        }
+        for (int i = 0; i < mAddresses.length; ++i) {
+            mIntAddresses[i] = NetworkUtils.v4StringToInt(mAddresses[i]);
+        }
+    }
+
+    /**
+     * @param length Number of inputs.
+     * @return The next input index.
+     */
+    private int next(final int length) {
+        mIndex = (mIndex + 1) % length;
+        return mIndex;
+    }
+
+    /** @return The mask of the next prefix length. */
+    @Benchmark
+    public int prefixLengthToMask() {
+        return NetworkUtils.prefixLengthToMask(next(PREFIXES));
+    }
+
+    /** @return The prefix length of the next mask. */
+    @Benchmark
+    public int maskToPrefixLength() {
+        return NetworkUtils.maskToPrefixLength(mMasks[next(PREFIXES)]);
+    }
+
+    /** @return The next address converted to an integer. */
+    @Benchmark
+    public int v4StringToInt() {
+        return NetworkUtils.v4StringToInt(mAddresses[next(mAddresses.length)]);
+    }
+
+    /** @return The next address converted by the split-based code. */
+    @Benchmark
+    public int v4StringToIntLegacy() {
+        return LegacyRouteParser.v4StringToInt(
+                mAddresses[next(mAddresses.length)]);
+    }
+
+    /** @return The next integer address converted to an InetAddress. */
+    @Benchmark
+    public InetAddress intToInetAddress() {
+        return NetworkUtils.intToInetAddress(
+                mIntAddresses[next(mIntAddresses.length)]);
+    }
+}
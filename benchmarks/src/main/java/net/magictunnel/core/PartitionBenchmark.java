@@ -0,0 +1,92 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of /proc/mounts, done before installing the client.
+ * @author Vitaly
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionBenchmark {
+    /** Mount table of a typical phone. */
+    private static final String[] MOUNTS = {
+        "rootfs / rootfs ro,relatime 0 0",
+        "tmpfs /dev tmpfs rw,relatime,mode=755 0 0",
+        "devpts /dev/pts devpts rw,relatime,mode=600 0 0",
+        "proc /proc proc rw,relatime 0 0",
+        "sysfs /sys sysfs rw,relatime 0 0",
+        "none /acct cgroup rw,relatime,cpuacct 0 0",
+        "tmpfs /mnt/asec tmpfs rw,relatime,mode=755,gid=1000 0 0",
+        "/dev/block/mtdblock3 /system yaffs2 ro,relatime 0 0",
+        "/dev/block/mtdblock5 /data yaffs2 rw,nosuid,nodev,relatime 0 0",
+        "/dev/block/mtdblock4 /cache yaffs2 rw,nosuid,nodev,relatime 0 0",
+        "/dev/block/vold/179:1 /mnt/sdcard vfat rw,dirsync,nosuid,nodev 0 0",
+    };
+
+    /** Number of lines of the mount table. */
+    @Param({"11", "1000" })
+    private int mLines;
+
+    /** The mount table. */
+    private String mTable;
+
+    /** Builds the mount table. */
+    @Setup
+    public void setup() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < mLines; ++i) {
+            String l = MOUNTS[i % MOUNTS.length];
+            if (i >= MOUNTS.length) {
+                l = l.replaceFirst(" /", " /mnt/extra" + i + "/");
+            }
+            b.append(l).append('\n');
+        }
+        mTable = b.toString();
+    }
+
+    /** @return The partitions by mount point. */
+    @Benchmark
+    public Map<String, PartitionInfo> readPartitions() {
+        return Partition.readPartitions(
+                new BufferedReader(new StringReader(mTable)));
+    }
+}
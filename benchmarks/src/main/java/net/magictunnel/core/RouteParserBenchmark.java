@@ -0,0 +1,110 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.magictunnel.benchmarks.RouteDumps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the regex-based "ip route" parser with IpRouteParser
+ * on whole dumps of 10 to 10,000 lines.
+ * @author Vitaly
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteParserBenchmark {
+    /** Number of lines of the dump. */
+    @Param({"10", "100", "1000", "10000" })
+    private int mLines;
+
+    /** The dump being parsed. */
+    private List<String> mDump;
+
+    /** Reused by the in-place benchmark. */
+    private IpRouteParser mParser = new IpRouteParser();
+
+    /** Reused by the in-place benchmark. */
+    private RouteEntry mEntry = new RouteEntry();
+
+    /** Builds the dump. */
+    @Setup
+    public void setup() {
+        mDump = RouteDumps.generate(mLines, mLines);
+        for (String l : mDump) {
+            if (!LegacyRouteParser.fromIpRouteCommand(l).equals(
+                    RouteEntry.fromIpRouteCommand(l))) {
+                throw new IllegalStateException("Parsers disagree on " + l);
+            }
+        }
+    }
+
+    /**
+     * The original parser: three regular expressions per line.
+     * @param bh Sink for the results.
+     */
+    @Benchmark
+    public void regex(final Blackhole bh) {
+        for (String l : mDump) {
+            bh.consume(LegacyRouteParser.fromIpRouteCommand(l));
+        }
+    }
+
+    /**
+     * The tokenizer, allocating a new entry per line.
+     * @param bh Sink for the results.
+     */
+    @Benchmark
+    public void tokenizer(final Blackhole bh) {
+        for (String l : mDump) {
+            bh.consume(RouteEntry.fromIpRouteCommand(l));
+        }
+    }
+
+    /**
+     * The tokenizer, filling the same entry for every line.
+     * @param bh Sink for the results.
+     */
+    @Benchmark
+    public void tokenizerInPlace(final Blackhole bh) {
+        for (String l : mDump) {
+            bh.consume(mParser.parse(l, mEntry));
+        }
+        bh.consume(mEntry);
+    }
+}
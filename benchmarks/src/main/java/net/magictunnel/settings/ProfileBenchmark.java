@@ -0,0 +1,83 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.settings;
+
+import java.util.concurrent.TimeUnit;
+
+import net.magictunnel.benchmarks.MemorySharedPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Serialization of profiles to and from the preference store.
+ * @author Vitaly
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfileBenchmark {
+    /** In-memory preference store. */
+    private MemorySharedPreferences mPrefs;
+
+    /** The profile being serialized. */
+    private Profile mProfile;
+
+    /** Creates and stores a profile. */
+    @Setup
+    public void setup() {
+        mPrefs = new MemorySharedPreferences();
+        mProfile = new Profile();
+        mProfile.setName("mytunnel");
+        mProfile.setDomainName("t.example.com");
+        mProfile.setPassword("secret");
+        mProfile.setPacketSize(1130);
+        mProfile.setDnsProtocl(DnsProtocol.NULL);
+        mProfile.setRawConnection(DnsRawConnection.NO);
+        save();
+    }
+
+    /** @return Whether the profile was written. */
+    @Benchmark
+    public boolean save() {
+        Editor e = mPrefs.edit();
+        mProfile.writeProfile(e);
+        return e.commit();
+    }
+
+    /** @return The profile read back. */
+    @Benchmark
+    public Profile load() {
+        return Profile.readProfile(mPrefs, "mytunnel");
+    }
+}
@@ -18,13 +18,25 @@
 
 package net.magictunnel;
 
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
 import net.magictunnel.core.Iodine;
+import net.magictunnel.core.LogBuffer;
+import net.magictunnel.core.Tracer;
 import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 import android.text.ClipboardManager;
-import android.text.method.ScrollingMovementMethod;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
 /**
@@ -37,6 +49,9 @@ public class Log extends Activity {
     /** Menu id for copying the log to the clipboard. */
     private static final int MENU_COPYLOG = Menu.FIRST;
 
+    /** Menu id for sharing the connection traces. */
+    private static final int MENU_SHARE_TRACES = Menu.FIRST + 1;
+
     /**
      * Called when the activity is first created.
      * @param savedInstanceState saved state.
@@ -50,14 +65,9 @@ public class Log extends Activity {
         MagicTunnel mt = ((MagicTunnel) getApplication());
         Iodine iod = mt.getIodine();
 
-        TextView textview = (TextView) findViewById(R.id.log_view);
-        textview.setMovementMethod(new ScrollingMovementMethod());
-        String s = iod.getLog().toString();
-        if (s.length() == 0) {
-            textview.setText(R.string.log_empty);
-        } else {
-            textview.setText(iod.getLog().toString());
-        }
+        ListView list = (ListView) findViewById(R.id.log_view);
+        list.setEmptyView(findViewById(R.id.log_empty));
+        list.setAdapter(new LogAdapter(iod.getLog()));
     }
 
     @Override
@@ -65,6 +75,8 @@ public class Log extends Activity {
         super.onCreateOptionsMenu(menu);
         menu.add(0, MENU_COPYLOG, 0, R.string.log_copy).setIcon(
                 android.R.drawable.ic_menu_share);
+        menu.add(0, MENU_SHARE_TRACES, 0, R.string.log_share_traces).setIcon(
+                android.R.drawable.ic_menu_send);
         return true;
     }
 
@@ -79,10 +91,90 @@ public class Log extends Activity {
             clipboard.setText(iod.getLog().toString());
             break;
 
+        case MENU_SHARE_TRACES:
+            Intent share = new Intent(Intent.ACTION_SEND);
+            share.setType("application/json");
+            share.putExtra(Intent.EXTRA_SUBJECT, "magictunnel-trace.json");
+            share.putExtra(Intent.EXTRA_TEXT, Tracer.toChromeJson());
+            startActivity(Intent.createChooser(share,
+                    getString(R.string.log_share_traces)));
+            break;
+
         default:
             return false;
         }
 
         return true;
     }
+
+    /**
+     * Shows the messages of the log buffer that were there when the
+     * adapter was created. Only the visible rows are formatted.
+     * @author Vitaly
+     *
+     */
+    private class LogAdapter extends BaseAdapter {
+        /** The log. */
+        private LogBuffer mLog;
+
+        /** The number of the first message shown. */
+        private long mFirst;
+
+        /** The number of messages shown. */
+        private int mCount;
+
+        /** Creates the rows. */
+        private LayoutInflater mInflater;
+
+        /** Formats the time stamps of the messages. */
+        private DateFormat mTimeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+
+        /**
+         * Creates the adapter.
+         * @param log The log to show.
+         */
+        public LogAdapter(final LogBuffer log) {
+            mLog = log;
+            mFirst = log.getFirst();
+            mCount = (int) (log.getEnd() - mFirst);
+            mInflater = (LayoutInflater) getSystemService(
+                    Context.LAYOUT_INFLATER_SERVICE);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public LogBuffer.Record getItem(final int position) {
+            return mLog.get(mFirst + position);
+        }
+
+        @Override
+        public long getItemId(final int position) {
+            return mFirst + position;
+        }
+
+        @Override
+        public View getView(
+                final int position,
+                final View convertView,
+                final ViewGroup parent) {
+            TextView tv = (TextView) convertView;
+            if (tv == null) {
+                tv = (TextView) mInflater.inflate(R.layout.logitem, parent, false);
+            }
+
+            //The message may have been overwritten by a newer connection
+            LogBuffer.Record r = getItem(position);
+            if (r == null) {
+                tv.setText("");
+            } else {
+                tv.setText(mTimeFormat.format(new Date(r.getTime()))
+                        + " " + r.getMessage());
+            }
+            return tv;
+        }
+    }
 }
@@ -42,6 +42,7 @@ public class MagicTunnel extends Application {
     public final void onCreate() {
         super.onCreate();
         mIodine = new Iodine();
+        mIodine.setContext(this);
         mListener = new ConnectivityListener(this, mIodine);
     }
 
@@ -18,14 +18,18 @@
 
 package net.magictunnel;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import net.magictunnel.core.ITunnelStatusListener;
 import net.magictunnel.core.Iodine;
+import net.magictunnel.core.IodineException;
+import net.magictunnel.core.TunnelState;
 import net.magictunnel.settings.Profile;
 import net.magictunnel.settings.Settings;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
@@ -62,12 +66,24 @@ ITunnelStatusListener {
     /** Delete profile confirmation id. */
     private static final int CONFIRM_DELETE_DIALOG_ID = 0;
 
+    /** How many lines to display at once in the progress dialog. */
+    private static final int MAX_PROGRESS_LINES = 5;
+
     /** The index of the first tunnel in the list of items. */
     private int mFirstTunnelIndex = 0;
 
     /** Profile name to delete. */
     private String mProfileToDelete;
 
+    /** Shows the progress of the connection, null when not connecting. */
+    private ProgressDialog mProgress;
+
+    /** Whether the user cancelled the connection in progress. */
+    private boolean mProgressCancelled;
+
+    /** List of messages to display in the progress dialog. */
+    private ArrayList<String> mMessages = new ArrayList<String>();
+
     @Override
     protected final void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,6 +95,10 @@ ITunnelStatusListener {
         iod.registerListener(this);
 
         populateScreen();
+
+        if (iod.getController().getState().isConnecting()) {
+            showProgress();
+        }
     }
 
     @Override
@@ -86,9 +106,40 @@ ITunnelStatusListener {
         MagicTunnel mt = ((MagicTunnel) getApplication());
         Iodine iod = mt.getIodine();
         iod.unregisterListener(this);
+        dismissProgress();
         super.onDestroy();
     }
 
+    /** Shows the progress dialog, unless it is already shown. */
+    private void showProgress() {
+        if (mProgress != null) {
+            return;
+        }
+        mMessages.clear();
+        mProgress = new ProgressDialog(this);
+        //Supervised restarts can go on for minutes: back out of them
+        mProgress.setCancelable(true);
+        mProgress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(final DialogInterface dialog) {
+                mProgress = null;
+                mProgressCancelled = true;
+                doDisconnect();
+            }
+        });
+        mProgress.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        mProgress.setMessage("Connecting...");
+        mProgress.show();
+    }
+
+    /** Hides the progress dialog. */
+    private void dismissProgress() {
+        if (mProgress == null) {
+            return;
+        }
+        mProgress.dismiss();
+        mProgress = null;
+    }
+
     /**
      * Fills in the screen with items.
      * The upper part of the screen is a special entry
@@ -218,11 +269,7 @@ ITunnelStatusListener {
         }
 
         Iodine iod = mt.getIodine();
-        if (!getConnectedProfile().equals("")) {
-            iod.disconnect();
-        }
-        iod.setContext(this);
-        iod.getLauncher(p).execute((Void) null);
+        iod.connect(p);
     }
 
     @Override
@@ -272,7 +319,8 @@ ITunnelStatusListener {
         MagicTunnel app = (MagicTunnel) getApplication();
         Iodine iod = app.getIodine();
 
-        boolean isConnected = iod.isIodineRunning();
+        boolean isConnected =
+            iod.getController().getState() == TunnelState.CONNECTED;
         Profile activeProfile = iod.getActiveProfile();
 
         if (!isConnected || activeProfile == null) {
@@ -404,4 +452,48 @@ ITunnelStatusListener {
         populateTunnels();
     }
 
+    @Override
+    public final void onTunnelStateChanged(
+            final String name,
+            final TunnelState state) {
+        if (!state.isConnecting()) {
+            mProgressCancelled = false;
+            dismissProgress();
+        } else if (!mProgressCancelled) {
+            showProgress();
+        }
+    }
+
+    @Override
+    public final void onTunnelProgress(final String name, final String message) {
+        if (mProgress == null) {
+            return;
+        }
+
+        mMessages.add(message);
+        if (mMessages.size() > MAX_PROGRESS_LINES) {
+            mMessages.remove(0);
+        }
+
+        StringBuffer buf = new StringBuffer();
+        for (String s : mMessages) {
+            buf.append(s + "\n");
+        }
+
+        mProgress.setMessage(buf.toString());
+    }
+
+    @Override
+    public final void onTunnelError(
+            final String name,
+            final IodineException error) {
+        dismissProgress();
+        int title = error.getTitleId();
+        if (title == 0) {
+            title = R.string.iodine_no_connectivity;
+        }
+        Utils.showErrorMessage(this, title, error.getMessageId());
+        populateTunnels();
+    }
+
 }
@@ -87,6 +87,15 @@ public class TunnelPreferences extends PreferenceActivity {
      */
     private DnsProtocol mDnsProtocol = DnsProtocol.AUTODETECT;
 
+    /** Whether to restart the tunnel when the client dies. */
+    private boolean mAutoReconnect = false;
+
+    /** Resolvers to use besides those of the system. */
+    private String mResolvers = "";
+
+    /** Whether to spread the queries over all the resolvers. */
+    private boolean mStriping = false;
+
     /** The text box for the profile name. */
     private EditTextPreference mPrefName;
 
@@ -105,6 +114,15 @@ public class TunnelPreferences extends PreferenceActivity {
     /** The list of supported protocols. */
     private ListPreference mPrefDnsProtocol;
 
+    /** The check box for automatic reconnection. */
+    private CheckBoxPreference mPrefAutoReconnect;
+
+    /** The text box for the extra resolvers. */
+    private EditTextPreference mPrefResolvers;
+
+    /** The check box for resolver striping. */
+    private CheckBoxPreference mPrefStriping;
+
     /** Specifies whether the profile being edited already exists or not. */
     private boolean mNew;
 
@@ -189,6 +207,19 @@ public class TunnelPreferences extends PreferenceActivity {
         summary = mapListKeyToValue(mPrefDnsProtocol, mDnsProtocol.toString());
         mPrefDnsProtocol.setSummary(summary);
 
+        /********************/
+        mAutoReconnect = prof.isAutoReconnect();
+        mPrefAutoReconnect.setChecked(mAutoReconnect);
+
+        /********************/
+        mResolvers = prof.getResolvers();
+        mPrefResolvers.getEditText().setText(mResolvers);
+        setResolversSummary();
+
+        /********************/
+        mStriping = prof.isStriping();
+        mPrefStriping.setChecked(mStriping);
+
         mProfile = prof;
     }
 
@@ -224,6 +255,9 @@ public class TunnelPreferences extends PreferenceActivity {
         mProfile.setRawConnection(mDoRawConnectionDetection);
         mProfile.setPacketSize(mPacketSize);
         mProfile.setDnsProtocl(mDnsProtocol);
+        mProfile.setAutoReconnect(mAutoReconnect);
+        mProfile.setResolvers(mResolvers);
+        mProfile.setStriping(mStriping);
 
         if (mNew) {
             mProfile.setName(mName);
@@ -246,7 +280,10 @@ public class TunnelPreferences extends PreferenceActivity {
         || !mName.equals(mProfile.getName())
         || mPacketSize != mProfile.getPacketSize()
         || !mDoRawConnectionDetection.equals(mProfile.getRawConnection())
-        || !mDnsProtocol.equals(mProfile.getDnsProtocol());
+        || !mDnsProtocol.equals(mProfile.getDnsProtocol())
+        || mAutoReconnect != mProfile.isAutoReconnect()
+        || !mResolvers.equals(mProfile.getResolvers())
+        || mStriping != mProfile.isStriping();
     }
 
     /**
@@ -279,6 +316,15 @@ public class TunnelPreferences extends PreferenceActivity {
 
         mPrefDoRawDetection = createConnectionDetectionPreference();
         screen.addPreference(mPrefDoRawDetection);
+
+        mPrefAutoReconnect = createAutoReconnectPreference();
+        screen.addPreference(mPrefAutoReconnect);
+
+        mPrefResolvers = createResolversPreference();
+        screen.addPreference(mPrefResolvers);
+
+        mPrefStriping = createStripingPreference();
+        screen.addPreference(mPrefStriping);
     }
 
     /**
@@ -464,6 +510,82 @@ public class TunnelPreferences extends PreferenceActivity {
         return protocolPreference;
     }
 
+    /**
+     * @return The automatic reconnection check box.
+     */
+    private CheckBoxPreference createAutoReconnectPreference() {
+        CheckBoxPreference reconnectPreference = new CheckBoxPreference(this);
+
+        reconnectPreference.setTitle(R.string.auto_reconnect);
+        reconnectPreference.setSummary(R.string.auto_reconnect_desc);
+        reconnectPreference.setChecked(mAutoReconnect);
+
+        reconnectPreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(final Preference preference, final Object newValue) {
+                mAutoReconnect = (Boolean) newValue;
+                return true;
+            }
+        });
+
+        return reconnectPreference;
+    }
+
+    /**
+     * @return The extra resolvers field.
+     */
+    private EditTextPreference createResolversPreference() {
+        EditTextPreference resolversPreference = new EditTextPreference(this);
+
+        resolversPreference.setTitle(R.string.resolvers);
+        resolversPreference.setDialogTitle(R.string.resolvers);
+        resolversPreference.getEditText().setHint(R.string.resolvers_hint);
+        resolversPreference.setSummary(R.string.resolvers_none);
+
+        resolversPreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(final Preference preference, final Object newValue) {
+                mResolvers = ((String) newValue).trim();
+                setResolversSummary();
+                return true;
+            }
+        });
+
+        return resolversPreference;
+    }
+
+    /**
+     * Shows the extra resolvers, or that there are none.
+     */
+    private void setResolversSummary() {
+        if (mResolvers.length() == 0) {
+            mPrefResolvers.setSummary(R.string.resolvers_none);
+        } else {
+            mPrefResolvers.setSummary(mResolvers);
+        }
+    }
+
+    /**
+     * @return The resolver striping check box.
+     */
+    private CheckBoxPreference createStripingPreference() {
+        CheckBoxPreference stripingPreference = new CheckBoxPreference(this);
+
+        stripingPreference.setTitle(R.string.striping);
+        stripingPreference.setSummary(R.string.striping_desc);
+        stripingPreference.setChecked(mStriping);
+
+        stripingPreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(final Preference preference, final Object newValue) {
+                mStriping = (Boolean) newValue;
+                return true;
+            }
+        });
+
+        return stripingPreference;
+    }
+
     @Override
     public final boolean onCreateOptionsMenu(final Menu menu) {
         super.onCreateOptionsMenu(menu);
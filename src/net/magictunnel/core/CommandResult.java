@@ -0,0 +1,136 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a command: its exit code,
+ * the lines it printed on stdout and stderr,
+ * and how long it took.
+ * @author Vitaly
+ *
+ */
+public class CommandResult {
+    /** Exit code reported when the command could not be run at all. */
+    public static final int EXIT_FAILURE = -1;
+
+    /** The exit code of the command. */
+    private int mExitCode;
+
+    /** Lines printed on the standard output. */
+    private List<String> mStdOut;
+
+    /** Lines printed on the standard error output. */
+    private List<String> mStdErr;
+
+    /** How long the command took, in ms, -1 if unknown. */
+    private long mWallTime = -1;
+
+    /** Whether the command was killed because it took too long. */
+    private boolean mTimedOut;
+
+    /**
+     * Creates a new command result.
+     * @param exitCode The exit code of the command.
+     * @param stdOut The standard output lines.
+     * @param stdErr The standard error lines.
+     */
+    public CommandResult(
+            final int exitCode,
+            final List<String> stdOut,
+            final List<String> stdErr) {
+        mExitCode = exitCode;
+        mStdOut = stdOut;
+        mStdErr = stdErr;
+    }
+
+    /**
+     * Creates a new command result.
+     * @param exitCode The exit code of the command.
+     * @param stdOut The standard output lines.
+     * @param stdErr The standard error lines.
+     * @param wallTime How long the command took, in ms.
+     * @param timedOut Whether the command was killed because
+     * it took too long.
+     */
+    public CommandResult(
+            final int exitCode,
+            final List<String> stdOut,
+            final List<String> stdErr,
+            final long wallTime,
+            final boolean timedOut) {
+        this(exitCode, stdOut, stdErr);
+        mWallTime = wallTime;
+        mTimedOut = timedOut;
+    }
+
+    /**
+     * @param reason Why the command could not be run.
+     * @return A result for a command that could not be run.
+     */
+    public static CommandResult failure(final String reason) {
+        List<String> out = Collections.emptyList();
+        return new CommandResult(EXIT_FAILURE, out,
+                Collections.singletonList(reason));
+    }
+
+    /**
+     * @return The exit code of the command.
+     */
+    public final int getExitCode() {
+        return mExitCode;
+    }
+
+    /**
+     * @return Whether the command exited with status 0.
+     */
+    public final boolean isSuccess() {
+        return mExitCode == 0;
+    }
+
+    /**
+     * @return The lines printed on the standard output.
+     */
+    public final List<String> getStdOut() {
+        return mStdOut;
+    }
+
+    /**
+     * @return The lines printed on the standard error output.
+     */
+    public final List<String> getStdErr() {
+        return mStdErr;
+    }
+
+    /**
+     * @return How long the command took, in ms, -1 if unknown.
+     */
+    public final long getWallTime() {
+        return mWallTime;
+    }
+
+    /**
+     * @return Whether the command was killed because it took too long.
+     */
+    public final boolean isTimedOut() {
+        return mTimedOut;
+    }
+}
@@ -19,10 +19,27 @@
 package net.magictunnel.core;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Utility class for issuing system commands.
@@ -36,6 +53,33 @@ public class Commands {
     /** The PATH environment variable. */
     public static final String PATH = "PATH";
 
+    /** The default deadline of the commands, in ms. */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    /**
+     * How long to wait for the rest of the output once the process
+     * exited, in ms. A child left in the background may keep the
+     * pipes open.
+     */
+    private static final long DRAIN_GRACE = 500;
+
+    /** Creates the threads of the executors, as daemon threads. */
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "Commands");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /** Runs the commands and drains their output. */
+    private static final ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool(DAEMON_THREADS);
+
+    /** Kills the commands that miss their deadline. */
+    private static final ScheduledExecutorService KILLER =
+        Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+
     /** Runtime. */
     private Runtime mRuntime = Runtime.getRuntime();
 
@@ -48,6 +92,9 @@ public class Commands {
     /** Currently running process. */
     private Process mProc = null;
 
+    /** The root shell shared by all short-lived commands. */
+    private static RootShell sRootShell = null;
+
     /**
      *
      * @return The standard output.
@@ -81,13 +128,34 @@ public class Commands {
         return false;
     }
 
+    /**
+     * @return The root shell shared by all short-lived commands.
+     */
+    public static synchronized RootShell getRootShell() {
+        if (sRootShell == null) {
+            sRootShell = new RootShell();
+        }
+        return sRootShell;
+    }
+
+    /**
+     * Run a short-lived command in the shared root shell
+     * and wait for its termination.
+     * Long-running programs (e.g., iodine) must be started
+     * with {@link #runCommandAsRoot(String)} instead.
+     * @param command The command to run.
+     * @return The exit code and the output of the command.
+     */
+    public static CommandResult runInRootShell(final String command) {
+        return getRootShell().run(command);
+    }
+
     /**
      * Run the given script file as root.
      * @param scriptFile The script to run.
      */
     public static void runScriptAsRoot(final String scriptFile) {
-        Commands cmds = new Commands();
-        cmds.runCommandAsRoot("sh " + scriptFile);
+        runInRootShell("sh " + scriptFile);
     }
 
     /**
@@ -108,6 +176,7 @@ public class Commands {
      * @param command The command to run.
      */
     public final void runCommandAsRoot(final String command) {
+        Trace.Span span = Tracer.begin("su: " + Tracer.programOf(command));
         OutputStreamWriter osw = null;
 
         try {
@@ -128,6 +197,7 @@ public class Commands {
                     e.printStackTrace();
                 }
             }
+            span.end();
         }
     }
 
@@ -137,13 +207,204 @@ public class Commands {
      * @return The status of the command.
      */
     public final int runCommandAsRootAndWait(final String command) {
-        runCommandAsRoot(command);
+        CommandResult res;
         try {
-            mProc.waitFor();
+            res = execute(command, true, DEFAULT_TIMEOUT).get();
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            res = CommandResult.failure("Interrupted");
+        } catch (ExecutionException e) {
+            res = CommandResult.failure(String.valueOf(e.getCause()));
+        }
+
+        mStdOut.setLength(0);
+        for (String l : res.getStdOut()) {
+            mStdOut.append(l).append('\n');
+        }
+        mStdErr.setLength(0);
+        for (String l : res.getStdErr()) {
+            mStdErr.append(l).append('\n');
+        }
+        return res.getExitCode();
+    }
+
+    /**
+     * Runs a command in its own process, in the background.
+     * Its standard output and error are read at the same time, so
+     * that it never blocks on a full pipe. It is killed if it does not
+     * complete before the deadline, and the result then holds the
+     * output printed so far.
+     * @param command The command, run by sh or su.
+     * @param asRoot Whether to run it as root.
+     * @param timeout The deadline, in ms.
+     * @return The result of the command, to be.
+     */
+    public static Future<CommandResult> execute(
+            final String command,
+            final boolean asRoot,
+            final long timeout) {
+        return EXECUTOR.submit(new Callable<CommandResult>() {
+            public CommandResult call() throws InterruptedException {
+                return run(command, asRoot, timeout);
+            }
+        });
+    }
+
+    /**
+     * Runs a command in its own process and waits for it.
+     * @param command The command, run by sh or su.
+     * @param asRoot Whether to run it as root.
+     * @param timeout The deadline, in ms.
+     * @return The result of the command.
+     * @throws InterruptedException if the caller got interrupted.
+     * The process is killed then.
+     */
+    private static CommandResult run(
+            final String command,
+            final boolean asRoot,
+            final long timeout) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Trace.Span span = Tracer.begin(
+                (asRoot ? "su: " : "sh: ") + Tracer.programOf(command));
+        final Process proc;
+        try {
+            if (asRoot) {
+                proc = Runtime.getRuntime().exec(SU);
+                OutputStreamWriter osw =
+                    new OutputStreamWriter(proc.getOutputStream());
+                osw.write(command);
+                osw.write("\nexit\n");
+                osw.close();
+            } else {
+                proc = Runtime.getRuntime().exec(
+                        new String[] {"sh", "-c", command});
+                proc.getOutputStream().close();
+            }
+        } catch (IOException e) {
+            span.end();
+            return CommandResult.failure(String.valueOf(e.getMessage()));
+        }
+
+        List<String> out = Collections.synchronizedList(new ArrayList<String>());
+        List<String> err = Collections.synchronizedList(new ArrayList<String>());
+        Future<?> outDrain = EXECUTOR.submit(drain(proc.getInputStream(), out));
+        Future<?> errDrain = EXECUTOR.submit(drain(proc.getErrorStream(), err));
+
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> killer = KILLER.schedule(new Runnable() {
+            public void run() {
+                timedOut.set(true);
+                destroy(proc);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        int exitCode;
+        try {
+            exitCode = proc.waitFor();
+        } catch (InterruptedException e) {
+            destroy(proc);
+            throw e;
+        } finally {
+            killer.cancel(false);
+            span.end();
+        }
+
+        long graceEnd = System.currentTimeMillis() + DRAIN_GRACE;
+        boolean complete = awaitDrain(outDrain, graceEnd)
+            & awaitDrain(errDrain, graceEnd);
+        if (!complete) {
+            //A child holds the pipes open: closing them ends the drains
+            destroy(proc);
+            outDrain.cancel(true);
+            errDrain.cancel(true);
+        }
+
+        if (timedOut.get()) {
+            exitCode = CommandResult.EXIT_FAILURE;
+        }
+        return new CommandResult(exitCode, copy(out), copy(err),
+                System.currentTimeMillis() - start, timedOut.get());
+    }
+
+    /**
+     * Kills a process and closes its pipes. Killing su does not kill
+     * the children it spawned, which may keep the pipes open: closing
+     * them unblocks the threads that read them.
+     * @param proc The process.
+     */
+    static void destroy(final Process proc) {
+        proc.destroy();
+        closeQuietly(proc.getOutputStream());
+        closeQuietly(proc.getInputStream());
+        closeQuietly(proc.getErrorStream());
+    }
+
+    /**
+     * @param c A stream to close, errors are ignored.
+     */
+    private static void closeQuietly(final Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            //Nothing to do
+        }
+    }
+
+    /**
+     * @param is The stream to read.
+     * @param lines Where to put the lines.
+     * @return A task that reads all the lines of the stream.
+     */
+    private static Runnable drain(final InputStream is, final List<String> lines) {
+        return new Runnable() {
+            public void run() {
+                BufferedReader in = new BufferedReader(new InputStreamReader(is));
+                try {
+                    String l;
+                    while ((l = in.readLine()) != null) {
+                        lines.add(l);
+                    }
+                } catch (IOException e) {
+                    //Treated as end of stream, e.g., the process was killed
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        //Nothing to do
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits for a drain to reach the end of its stream.
+     * @param drain The drain.
+     * @param graceEnd The end of the grace period.
+     * @return Whether it did within the grace period.
+     * @throws InterruptedException if the caller got interrupted.
+     */
+    private static boolean awaitDrain(final Future<?> drain, final long graceEnd)
+        throws InterruptedException {
+        try {
+            long left = Math.max(0, graceEnd - System.currentTimeMillis());
+            drain.get(left, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param lines The lines collected by a drain.
+     * @return A copy of the lines collected so far.
+     */
+    private static List<String> copy(final List<String> lines) {
+        synchronized (lines) {
+            return new ArrayList<String>(lines);
         }
-        return mProc.exitValue();
     }
 
     /**
@@ -160,22 +421,60 @@ public class Commands {
      * @return Whether the process is running or not.
      */
     public static boolean isProgramRunning(final String name) {
-        Commands cmds = new Commands();
-        cmds.runCommandAsRoot("ps");
+        CommandResult res = runInRootShell("ps");
+        for (String l : res.getStdOut()) {
+            if (l.contains(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
 
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(cmds.getProcess().getInputStream()));
+    /**
+     * Checks whether the process with the given PID is alive and
+     * runs the named program, by looking at /proc/PID/stat.
+     * This needs neither root nor a child process.
+     * @param pid The process id.
+     * @param name The name of the program.
+     * @return Whether the process is running.
+     */
+    public static boolean isProcessRunning(final int pid, final String name) {
+        if (pid <= 0) {
+            return false;
+        }
+
+        BufferedReader in = null;
         try {
-            String l;
-            while ((l = in.readLine()) != null) {
-                if (l.contains(name)) {
-                    return true;
-                }
+            in = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+            String stat = in.readLine();
+            if (stat == null) {
+                return false;
             }
-        } catch (Exception e) {
+
+            //Format: pid (comm) state ...
+            int open = stat.indexOf('(');
+            int close = stat.lastIndexOf(')');
+            if (open < 0 || close < open || close + 2 >= stat.length()) {
+                return false;
+            }
+
+            if (!stat.substring(open + 1, close).equals(name)) {
+                return false;
+            }
+
+            char state = stat.charAt(close + 2);
+            return state != 'Z' && state != 'X';
+        } catch (IOException e) {
             return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //Nothing to do
+                }
+            }
         }
-
-        return false;
     }
 }
@@ -67,6 +67,7 @@ public class ConnectivityListener {
                     return;
                 }
                 mIodine.resetSavedRoutes();
+                mIodine.refreshResolvers();
             }
         };
 
@@ -83,6 +84,11 @@ public class ConnectivityListener {
         BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
             public void onReceive(final Context context, final Intent intent) {
+                if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+                    //The resolvers come with the network
+                    mIodine.refreshResolvers();
+                }
+
                 int state = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                         WifiManager.WIFI_STATE_UNKNOWN);
 
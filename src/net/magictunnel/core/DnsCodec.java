@@ -0,0 +1,1137 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import net.magictunnel.settings.DnsProtocol;
+
+/**
+ * Encodes and decodes DNS messages in wire format, in place.
+ *
+ * The writer and the reader work on absolute offsets of a
+ * ByteBuffer, heap or direct, and never copy the message nor create
+ * objects for its names and records: the caller reuses one instance
+ * per thread and reads the fields of the current record, or copies
+ * its data into a buffer of its own.
+ *
+ * Only the record types of {@link DnsProtocol} are understood.
+ * Other records are walked over and their data left opaque.
+ * @author Vitaly
+ *
+ */
+public final class DnsCodec {
+    /** Size of the DNS header. */
+    public static final int HEADER_SIZE = 12;
+
+    /** Response flag. */
+    public static final int FLAG_QR = 0x8000;
+
+    /** Authoritative answer flag. */
+    public static final int FLAG_AA = 0x0400;
+
+    /** Truncation flag. */
+    public static final int FLAG_TC = 0x0200;
+
+    /** Recursion desired flag. */
+    public static final int FLAG_RD = 0x0100;
+
+    /** Recursion available flag. */
+    public static final int FLAG_RA = 0x0080;
+
+    /** Mask of the response code. */
+    public static final int RCODE_MASK = 0x000f;
+
+    /** Class IN. */
+    public static final int CLASS_IN = 1;
+
+    /** A record type. */
+    public static final int TYPE_A = 1;
+    /** CNAME record type. */
+    public static final int TYPE_CNAME = 5;
+    /** NULL record type. */
+    public static final int TYPE_NULL = 10;
+    /** MX record type. */
+    public static final int TYPE_MX = 15;
+    /** TXT record type. */
+    public static final int TYPE_TXT = 16;
+    /** SRV record type. */
+    public static final int TYPE_SRV = 33;
+
+    /** The question section. */
+    public static final int SECTION_QUESTION = 0;
+    /** The answer section. */
+    public static final int SECTION_ANSWER = 1;
+    /** The authority section. */
+    public static final int SECTION_AUTHORITY = 2;
+    /** The additional section. */
+    public static final int SECTION_ADDITIONAL = 3;
+
+    /** Number of sections. */
+    private static final int SECTIONS = 4;
+
+    /** Offset of the first section count in the header. */
+    private static final int COUNTS_OFFSET = 4;
+
+    /** Maximum length of a label. */
+    private static final int MAX_LABEL = 63;
+
+    /** Maximum length of a name, in wire format. */
+    private static final int MAX_NAME = 255;
+
+    /** Maximum length of a character string in a TXT record. */
+    private static final int MAX_STRING = 255;
+
+    /** Marks a compression pointer. */
+    private static final int POINTER_MASK = 0xc0;
+
+    /** Largest offset a compression pointer can hold. */
+    private static final int MAX_POINTER = 0x3fff;
+
+    /** Size of type, class, TTL and data length of a record. */
+    private static final int RECORD_FIXED = 10;
+
+    /** Size of type and class of a question. */
+    private static final int QUESTION_FIXED = 4;
+
+    /** Size of the address in an A record. */
+    private static final int ADDRESS_SIZE = 4;
+
+    /** Mask of an unsigned byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Bits in a byte. */
+    private static final int BYTE_BITS = 8;
+
+    /** Mask of an unsigned short. */
+    private static final int SHORT_MASK = 0xffff;
+
+    /** Difference between upper and lower case ASCII letters. */
+    private static final int CASE_BIT = 0x20;
+
+    /** This class is not supposed to be instantiated. */
+    private DnsCodec() {
+
+    }
+
+    /**
+     * @param p The record type.
+     * @return The type number to put in the query.
+     */
+    public static int getRecordType(final DnsProtocol p) {
+        switch (p) {
+        case NULL:
+            return TYPE_NULL;
+        case TXT:
+            return TYPE_TXT;
+        case SRV:
+            return TYPE_SRV;
+        case MX:
+            return TYPE_MX;
+        case CNAME:
+            return TYPE_CNAME;
+        case A:
+            return TYPE_A;
+        default:
+            throw new IllegalArgumentException(p.toString());
+        }
+    }
+
+    /**
+     * @param type A record type number.
+     * @return The matching protocol, null if there is none.
+     */
+    public static DnsProtocol getProtocol(final int type) {
+        switch (type) {
+        case TYPE_NULL:
+            return DnsProtocol.NULL;
+        case TYPE_TXT:
+            return DnsProtocol.TXT;
+        case TYPE_SRV:
+            return DnsProtocol.SRV;
+        case TYPE_MX:
+            return DnsProtocol.MX;
+        case TYPE_CNAME:
+            return DnsProtocol.CNAME;
+        case TYPE_A:
+            return DnsProtocol.A;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @param buf The buffer.
+     * @param pos The absolute offset.
+     * @return The big endian 16-bit value at the offset.
+     */
+    static int getShort(final ByteBuffer buf, final int pos) {
+        return ((buf.get(pos) & BYTE_MASK) << BYTE_BITS) | (buf.get(pos + 1) & BYTE_MASK);
+    }
+
+    /**
+     * @param buf The buffer.
+     * @param pos The absolute offset.
+     * @return The big endian 32-bit value at the offset.
+     */
+    static int getInt(final ByteBuffer buf, final int pos) {
+        return (getShort(buf, pos) << (2 * BYTE_BITS)) | getShort(buf, pos + 2);
+    }
+
+    /**
+     * @param buf The buffer.
+     * @param pos The absolute offset.
+     * @param value The 16-bit value to write in big endian order.
+     */
+    static void putShort(final ByteBuffer buf, final int pos, final int value) {
+        buf.put(pos, (byte) (value >> BYTE_BITS));
+        buf.put(pos + 1, (byte) value);
+    }
+
+    /**
+     * @param buf The buffer.
+     * @param pos The absolute offset.
+     * @param value The 32-bit value to write in big endian order.
+     */
+    static void putInt(final ByteBuffer buf, final int pos, final int value) {
+        putShort(buf, pos, value >>> (2 * BYTE_BITS));
+        putShort(buf, pos + 2, value);
+    }
+
+    /**
+     * @param c A character of a name.
+     * @return The character in lower case, if it is an ASCII letter.
+     */
+    private static int lower(final int c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c | CASE_BIT;
+        }
+        return c;
+    }
+
+    /**
+     * Writes a message. Names are compressed against the names
+     * already written, and the counts of the header are filled
+     * in by {@link #finish()}.
+     *
+     * A message that does not fit between the start and the limit of
+     * the buffer throws a BufferOverflowException, and the content of
+     * the buffer past its position is then undefined.
+     */
+    public static final class Writer {
+        /** How many names are remembered for compression. */
+        private static final int MAX_TARGETS = 64;
+
+        /** Offsets of the names that later names can point to. */
+        private final int[] mTargets = new int[MAX_TARGETS];
+
+        /** How many entries of mTargets are set. */
+        private int mTargetCount;
+
+        /** Whether names may point to earlier names. */
+        private boolean mCompress = true;
+
+        /** The buffer being written. */
+        private ByteBuffer mBuf;
+
+        /** A view of mBuf for bulk copies, made when first needed. */
+        private ByteBuffer mView;
+
+        /** Where the message starts. */
+        private int mBase;
+
+        /** Where the next byte goes. */
+        private int mPos;
+
+        /** The section the next record goes to. */
+        private int mSection;
+
+        /** The number of entries per section. */
+        private final int[] mCounts = new int[SECTIONS];
+
+        /**
+         * Starts a message at the position of the buffer.
+         * @param buf The buffer.
+         * @param id The message id.
+         * @param flags The header flags, including the opcode and
+         * the response code.
+         * @return This writer.
+         */
+        public Writer begin(final ByteBuffer buf, final int id, final int flags) {
+            if (buf != mBuf) {
+                mBuf = buf;
+                mView = null;
+            }
+            mBase = buf.position();
+            mPos = mBase;
+            mTargetCount = 0;
+            mSection = SECTION_QUESTION;
+            for (int i = 0; i < SECTIONS; ++i) {
+                mCounts[i] = 0;
+            }
+            ensure(HEADER_SIZE);
+            putShort(id);
+            putShort(flags);
+            mPos += SECTIONS * 2;
+            return this;
+        }
+
+        /**
+         * Adds a question. Questions come before any record.
+         * @param name The name, with or without the trailing dot.
+         * @param type The record type.
+         * @return This writer.
+         */
+        public Writer question(final CharSequence name, final int type) {
+            if (mSection != SECTION_QUESTION) {
+                throw new IllegalStateException("Question after a record");
+            }
+            putName(name);
+            ensure(QUESTION_FIXED);
+            putShort(type);
+            putShort(CLASS_IN);
+            ++mCounts[SECTION_QUESTION];
+            return this;
+        }
+
+        /**
+         * Selects the section of the next records.
+         * Records go to the answer section by default.
+         * @param section SECTION_ANSWER, SECTION_AUTHORITY or
+         * SECTION_ADDITIONAL, in that order.
+         * @return This writer.
+         */
+        public Writer section(final int section) {
+            if (section <= SECTION_QUESTION || section >= SECTIONS
+                    || section < mSection) {
+                throw new IllegalArgumentException("Section " + section);
+            }
+            mSection = section;
+            return this;
+        }
+
+        /**
+         * Adds an A record.
+         * @param name The owner name.
+         * @param ttl The time to live, in seconds.
+         * @param address The IPv4 address, in network order.
+         * @return This writer.
+         */
+        public Writer a(final CharSequence name, final int ttl, final int address) {
+            int rdata = beginRecord(name, TYPE_A, ttl);
+            ensure(ADDRESS_SIZE);
+            putInt(mBuf, mPos, address);
+            mPos += ADDRESS_SIZE;
+            return endRecord(rdata);
+        }
+
+        /**
+         * Adds a CNAME record.
+         * @param name The owner name.
+         * @param ttl The time to live, in seconds.
+         * @param target The canonical name.
+         * @return This writer.
+         */
+        public Writer cname(
+                final CharSequence name,
+                final int ttl,
+                final CharSequence target) {
+            int rdata = beginRecord(name, TYPE_CNAME, ttl);
+            putName(target);
+            return endRecord(rdata);
+        }
+
+        /**
+         * Adds an MX record.
+         * @param name The owner name.
+         * @param ttl The time to live, in seconds.
+         * @param preference The preference of the exchange.
+         * @param exchange The name of the mail exchange.
+         * @return This writer.
+         */
+        public Writer mx(
+                final CharSequence name,
+                final int ttl,
+                final int preference,
+                final CharSequence exchange) {
+            int rdata = beginRecord(name, TYPE_MX, ttl);
+            ensure(2);
+            putShort(preference);
+            putName(exchange);
+            return endRecord(rdata);
+        }
+
+        /**
+         * Adds an SRV record.
+         * @param name The owner name.
+         * @param ttl The time to live, in seconds.
+         * @param priority The priority of the target.
+         * @param weight The weight of the target.
+         * @param port The port of the service.
+         * @param target The name of the target.
+         * @return This writer.
+         */
+        public Writer srv(
+                final CharSequence name,
+                final int ttl,
+                final int priority,
+                final int weight,
+                final int port,
+                final CharSequence target) {
+            int rdata = beginRecord(name, TYPE_SRV, ttl);
+            ensure(6);
+            putShort(priority);
+            putShort(weight);
+            putShort(port);
+            //Targets are not compressed (RFC 2782)
+            mCompress = false;
+            putName(target);
+            mCompress = true;
+            return endRecord(rdata);
+        }
+
+        /**
+         * Adds a TXT record holding the data, split in character
+         * strings of at most 255 bytes.
+         * @param name The owner name.
+         * @param ttl The time to live, in seconds.
+         * @param data The bytes between the position and the limit.
+         * The position is left as is.
+         * @return This writer.
+         */
+        public Writer txt(final CharSequence name, final int ttl, final ByteBuffer data) {
+            int rdata = beginRecord(name, TYPE_TXT, ttl);
+            int from = data.position();
+            int left = data.remaining();
+            do {
+                int len = Math.min(left, MAX_STRING);
+                ensure(len + 1);
+                mBuf.put(mPos++, (byte) len);
+                putBytes(data, from, len);
+                from += len;
+                left -= len;
+            } while (left > 0);
+            return endRecord(rdata);
+        }
+
+        /**
+         * Adds a NULL record holding the data as is.
+         * @param name The owner name.
+         * @param ttl The time to live, in seconds.
+         * @param data The bytes between the position and the limit.
+         * The position is left as is.
+         * @return This writer.
+         */
+        public Writer nul(final CharSequence name, final int ttl, final ByteBuffer data) {
+            int rdata = beginRecord(name, TYPE_NULL, ttl);
+            ensure(data.remaining());
+            putBytes(data, data.position(), data.remaining());
+            return endRecord(rdata);
+        }
+
+        /**
+         * Fills in the counts of the header and moves the position of
+         * the buffer past the message.
+         * @return The length of the message.
+         */
+        public int finish() {
+            for (int i = 0; i < SECTIONS; ++i) {
+                DnsCodec.putShort(mBuf, mBase + COUNTS_OFFSET + 2 * i, mCounts[i]);
+            }
+            mBuf.position(mPos);
+            return mPos - mBase;
+        }
+
+        /**
+         * Writes the fixed part of a record.
+         * @param name The owner name.
+         * @param type The record type.
+         * @param ttl The time to live.
+         * @return Where the record data starts.
+         */
+        private int beginRecord(final CharSequence name, final int type, final int ttl) {
+            if (mSection == SECTION_QUESTION) {
+                mSection = SECTION_ANSWER;
+            }
+            putName(name);
+            ensure(RECORD_FIXED);
+            putShort(type);
+            putShort(CLASS_IN);
+            putInt(mBuf, mPos, ttl);
+            mPos += RECORD_FIXED - 4;
+            return mPos;
+        }
+
+        /**
+         * Fills in the data length of the record being written.
+         * @param rdata Where the record data starts.
+         * @return This writer.
+         */
+        private Writer endRecord(final int rdata) {
+            int length = mPos - rdata;
+            if (length > SHORT_MASK) {
+                throw new IllegalArgumentException("Record too long");
+            }
+            DnsCodec.putShort(mBuf, rdata - 2, length);
+            ++mCounts[mSection];
+            return this;
+        }
+
+        /**
+         * Writes a name, replacing its longest suffix already in the
+         * message by a pointer.
+         * @param name The name, with or without the trailing dot.
+         */
+        private void putName(final CharSequence name) {
+            int end = name.length();
+            if (end > 0 && name.charAt(end - 1) == '.') {
+                --end;
+            }
+            if (end + 2 > MAX_NAME) {
+                throw new IllegalArgumentException("Name too long");
+            }
+
+            int start = 0;
+            while (start < end) {
+                int target = mCompress ? findSuffix(name, start, end) : -1;
+                if (target >= 0) {
+                    ensure(2);
+                    putShort((POINTER_MASK << BYTE_BITS) | target);
+                    return;
+                }
+
+                int dot = start;
+                while (dot < end && name.charAt(dot) != '.') {
+                    ++dot;
+                }
+                int len = dot - start;
+                if (len == 0 || len > MAX_LABEL) {
+                    throw new IllegalArgumentException("Bad label in " + name);
+                }
+
+                ensure(len + 1);
+                int offset = mPos - mBase;
+                if (mTargetCount < MAX_TARGETS && offset <= MAX_POINTER) {
+                    mTargets[mTargetCount++] = offset;
+                }
+                mBuf.put(mPos++, (byte) len);
+                if (mBuf.hasArray()) {
+                    byte[] array = mBuf.array();
+                    int p = mBuf.arrayOffset() + mPos;
+                    for (int i = start; i < dot; ++i) {
+                        array[p++] = (byte) name.charAt(i);
+                    }
+                    mPos += len;
+                } else {
+                    for (int i = start; i < dot; ++i) {
+                        mBuf.put(mPos++, (byte) name.charAt(i));
+                    }
+                }
+                start = dot + 1;
+            }
+            ensure(1);
+            mBuf.put(mPos++, (byte) 0);
+        }
+
+        /**
+         * @param name A name.
+         * @param start Where its suffix starts.
+         * @param end Where it ends, without the trailing dot.
+         * @return The offset of the same suffix in the message, -1 if
+         * it is not there.
+         */
+        private int findSuffix(final CharSequence name, final int start, final int end) {
+            for (int i = 0; i < mTargetCount; ++i) {
+                if (matches(name, start, end, mBase + mTargets[i])) {
+                    return mTargets[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compares a suffix of a name with a name of the message,
+         * ignoring the case.
+         * @param name A name.
+         * @param start Where its suffix starts.
+         * @param end Where it ends, without the trailing dot.
+         * @param at Where the name of the message starts.
+         * @return Whether they are the same.
+         */
+        private boolean matches(
+                final CharSequence name,
+                final int start,
+                final int end,
+                final int at) {
+            int p = at;
+            int i = start;
+            while (true) {
+                int len = mBuf.get(p) & BYTE_MASK;
+                //Only labels written by this writer can be pointed to
+                if ((len & POINTER_MASK) == POINTER_MASK) {
+                    p = mBase + (getShort(mBuf, p) & MAX_POINTER);
+                    continue;
+                }
+                if (len == 0) {
+                    return i >= end;
+                }
+                if (i >= end || i + len > end
+                        || (i + len < end && name.charAt(i + len) != '.')) {
+                    return false;
+                }
+                for (int j = 0; j < len; ++j) {
+                    if (lower(name.charAt(i + j) & BYTE_MASK)
+                            != lower(mBuf.get(p + 1 + j) & BYTE_MASK)) {
+                        return false;
+                    }
+                }
+                i += len + 1;
+                p += len + 1;
+            }
+        }
+
+        /**
+         * @param data The source.
+         * @param from The absolute offset in the source.
+         * @param len How many bytes to copy.
+         */
+        private void putBytes(final ByteBuffer data, final int from, final int len) {
+            if (data.hasArray() && mBuf.hasArray()) {
+                System.arraycopy(data.array(), data.arrayOffset() + from,
+                        mBuf.array(), mBuf.arrayOffset() + mPos, len);
+            } else {
+                if (mView == null) {
+                    mView = mBuf.duplicate();
+                }
+                int position = data.position();
+                int limit = data.limit();
+                data.limit(from + len);
+                data.position(from);
+                mView.limit(mView.capacity());
+                mView.position(mPos);
+                mView.put(data);
+                data.limit(limit);
+                data.position(position);
+            }
+            mPos += len;
+        }
+
+        /**
+         * @param value The 16-bit value to write in big endian order.
+         */
+        private void putShort(final int value) {
+            DnsCodec.putShort(mBuf, mPos, value);
+            mPos += 2;
+        }
+
+        /**
+         * @param length The number of bytes about to be written.
+         */
+        private void ensure(final int length) {
+            if (mPos + length > mBuf.limit()) {
+                throw new BufferOverflowException();
+            }
+        }
+    }
+
+    /**
+     * Walks over the questions and records of a message.
+     * {@link #next()} moves to the next entry, whose fields are then
+     * read with the getters. Names are left in the message and are
+     * referred to by their offset.
+     */
+    public static final class Reader {
+        /** Longest chain of compression pointers that is followed. */
+        private static final int MAX_HOPS = 32;
+
+        /** The buffer being read. */
+        private ByteBuffer mBuf;
+
+        /** A view of mBuf for bulk copies, made when first needed. */
+        private ByteBuffer mView;
+
+        /** Where the message starts. */
+        private int mBase;
+
+        /** Where the message ends. */
+        private int mEnd;
+
+        /** Where the next entry starts. */
+        private int mNext;
+
+        /** Whether a malformed entry was found. */
+        private boolean mMalformed;
+
+        /** The number of entries per section. */
+        private final int[] mCounts = new int[SECTIONS];
+
+        /** The section of the current entry. */
+        private int mSection;
+
+        /** Entries of the current section left after the current one. */
+        private int mLeft;
+
+        /** Where the name of the current entry starts. */
+        private int mName;
+
+        /** Type of the current entry. */
+        private int mType;
+
+        /** Class of the current entry. */
+        private int mClass;
+
+        /** TTL of the current record. */
+        private int mTtl;
+
+        /** Where the data of the current record starts. */
+        private int mData;
+
+        /** Length of the data of the current record. */
+        private int mDataLength;
+
+        /**
+         * Starts reading the message between the position and the
+         * limit of the buffer. The buffer is not modified.
+         * @param buf The buffer.
+         * @return Whether the message has a complete header.
+         */
+        public boolean wrap(final ByteBuffer buf) {
+            if (buf != mBuf) {
+                mBuf = buf;
+                mView = null;
+            }
+            mBase = buf.position();
+            mEnd = buf.limit();
+            mNext = mBase + HEADER_SIZE;
+            mSection = SECTION_QUESTION;
+            mMalformed = mEnd - mBase < HEADER_SIZE;
+            mName = -1;
+            mType = 0;
+            if (mMalformed) {
+                return false;
+            }
+            for (int i = 0; i < SECTIONS; ++i) {
+                mCounts[i] = getShort(mBuf, mBase + COUNTS_OFFSET + 2 * i);
+            }
+            mLeft = mCounts[SECTION_QUESTION];
+            return true;
+        }
+
+        /**
+         * @return The message id.
+         */
+        public int getId() {
+            return getShort(mBuf, mBase);
+        }
+
+        /**
+         * @return The header flags.
+         */
+        public int getFlags() {
+            return getShort(mBuf, mBase + 2);
+        }
+
+        /**
+         * @return Whether the message is a response.
+         */
+        public boolean isResponse() {
+            return (getFlags() & FLAG_QR) != 0;
+        }
+
+        /**
+         * @return Whether the message was truncated.
+         */
+        public boolean isTruncated() {
+            return (getFlags() & FLAG_TC) != 0;
+        }
+
+        /**
+         * @return The response code.
+         */
+        public int getRcode() {
+            return getFlags() & RCODE_MASK;
+        }
+
+        /**
+         * @param section One of the SECTION_ constants.
+         * @return The number of entries in the section.
+         */
+        public int getCount(final int section) {
+            return mCounts[section];
+        }
+
+        /**
+         * @return Whether the walk stopped on a malformed entry.
+         */
+        public boolean isMalformed() {
+            return mMalformed;
+        }
+
+        /**
+         * Moves to the next question or record.
+         * @return Whether there is one; false at the end of the message
+         * or if it is malformed.
+         */
+        public boolean next() {
+            if (mMalformed) {
+                return false;
+            }
+            while (mLeft == 0) {
+                if (mSection == SECTION_ADDITIONAL) {
+                    return false;
+                }
+                mLeft = mCounts[++mSection];
+            }
+
+            mName = mNext;
+            int p = skipName(mNext);
+            if (mSection == SECTION_QUESTION) {
+                if (p < 0 || p + QUESTION_FIXED > mEnd) {
+                    return fail();
+                }
+                mType = getShort(mBuf, p);
+                mClass = getShort(mBuf, p + 2);
+                mTtl = 0;
+                mData = p + QUESTION_FIXED;
+                mDataLength = 0;
+                mNext = mData;
+            } else {
+                if (p < 0 || p + RECORD_FIXED > mEnd) {
+                    return fail();
+                }
+                mType = getShort(mBuf, p);
+                mClass = getShort(mBuf, p + 2);
+                mTtl = getInt(mBuf, p + 4);
+                mDataLength = getShort(mBuf, p + 8);
+                mData = p + RECORD_FIXED;
+                mNext = mData + mDataLength;
+                if (mNext > mEnd || !checkData()) {
+                    return fail();
+                }
+            }
+            --mLeft;
+            return true;
+        }
+
+        /**
+         * @return The section of the current entry.
+         */
+        public int getSection() {
+            return mSection;
+        }
+
+        /**
+         * @return The offset of the owner name of the current entry.
+         */
+        public int getNameOffset() {
+            return mName;
+        }
+
+        /**
+         * @return The type of the current entry.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return The class of the current entry.
+         */
+        public int getRecordClass() {
+            return mClass;
+        }
+
+        /**
+         * @return The time to live of the current record, in seconds.
+         */
+        public int getTtl() {
+            return mTtl;
+        }
+
+        /**
+         * @return The absolute offset of the data of the current record.
+         */
+        public int getDataOffset() {
+            return mData;
+        }
+
+        /**
+         * @return The length of the data of the current record.
+         */
+        public int getDataLength() {
+            return mDataLength;
+        }
+
+        /**
+         * @return The address of the current A record, in network order.
+         */
+        public int getAddress() {
+            return getInt(mBuf, mData);
+        }
+
+        /**
+         * @return The preference of the current MX record.
+         */
+        public int getPreference() {
+            return getShort(mBuf, mData);
+        }
+
+        /**
+         * @return The priority of the current SRV record.
+         */
+        public int getPriority() {
+            return getShort(mBuf, mData);
+        }
+
+        /**
+         * @return The weight of the current SRV record.
+         */
+        public int getWeight() {
+            return getShort(mBuf, mData + 2);
+        }
+
+        /**
+         * @return The port of the current SRV record.
+         */
+        public int getPort() {
+            return getShort(mBuf, mData + 4);
+        }
+
+        /**
+         * @return The offset of the name held by the current CNAME,
+         * MX or SRV record, -1 for other types.
+         */
+        public int getTargetOffset() {
+            switch (mType) {
+            case TYPE_CNAME:
+                return mData;
+            case TYPE_MX:
+                return mData + 2;
+            case TYPE_SRV:
+                return mData + 6;
+            default:
+                return -1;
+            }
+        }
+
+        /**
+         * Copies the data of the current record: the raw data of a
+         * NULL record, the character strings of a TXT record put end to
+         * end, the raw data of other records.
+         * @param dst Where to copy the data, at its position, which is
+         * moved past the data.
+         * @return The number of bytes copied.
+         */
+        public int copyData(final ByteBuffer dst) {
+            if (mType != TYPE_TXT) {
+                copy(mData, mDataLength, dst);
+                return mDataLength;
+            }
+
+            int total = 0;
+            int p = mData;
+            int end = mData + mDataLength;
+            while (p < end) {
+                int len = mBuf.get(p) & BYTE_MASK;
+                copy(p + 1, len, dst);
+                total += len;
+                p += len + 1;
+            }
+            return total;
+        }
+
+        /**
+         * @return The number of bytes {@link #copyData(ByteBuffer)}
+         * would copy.
+         */
+        public int getPayloadLength() {
+            if (mType != TYPE_TXT) {
+                return mDataLength;
+            }
+            int total = 0;
+            int p = mData;
+            int end = mData + mDataLength;
+            while (p < end) {
+                int len = mBuf.get(p) & BYTE_MASK;
+                total += len;
+                p += len + 1;
+            }
+            return total;
+        }
+
+        /**
+         * Appends a name of the message in dotted form, without the
+         * trailing dot.
+         * @param offset Where the name starts.
+         * @param sb Where to append it.
+         * @return Whether the name is well formed.
+         */
+        public boolean readName(final int offset, final StringBuilder sb) {
+            int p = offset;
+            int hops = 0;
+            boolean first = true;
+            while (p < mEnd) {
+                int len = mBuf.get(p) & BYTE_MASK;
+                if (len == 0) {
+                    return true;
+                }
+                if ((len & POINTER_MASK) == POINTER_MASK) {
+                    if (++hops > MAX_HOPS || p + 1 >= mEnd) {
+                        return false;
+                    }
+                    p = mBase + (getShort(mBuf, p) & MAX_POINTER);
+                    continue;
+                }
+                if (p + 1 + len > mEnd) {
+                    return false;
+                }
+                if (!first) {
+                    sb.append('.');
+                }
+                first = false;
+                for (int i = 1; i <= len; ++i) {
+                    sb.append((char) (mBuf.get(p + i) & BYTE_MASK));
+                }
+                p += len + 1;
+            }
+            return false;
+        }
+
+        /**
+         * Compares a name of the message with a name, ignoring the case.
+         * @param offset Where the name of the message starts.
+         * @param name The name, with or without the trailing dot.
+         * @return Whether they are the same.
+         */
+        public boolean nameEquals(final int offset, final CharSequence name) {
+            int end = name.length();
+            if (end > 0 && name.charAt(end - 1) == '.') {
+                --end;
+            }
+            int p = offset;
+            int i = 0;
+            int hops = 0;
+            while (p < mEnd) {
+                int len = mBuf.get(p) & BYTE_MASK;
+                if (len == 0) {
+                    return i >= end;
+                }
+                if ((len & POINTER_MASK) == POINTER_MASK) {
+                    if (++hops > MAX_HOPS || p + 1 >= mEnd) {
+                        return false;
+                    }
+                    p = mBase + (getShort(mBuf, p) & MAX_POINTER);
+                    continue;
+                }
+                if (i + len > end || p + 1 + len > mEnd
+                        || (i + len < end && name.charAt(i + len) != '.')) {
+                    return false;
+                }
+                for (int j = 0; j < len; ++j) {
+                    if (lower(name.charAt(i + j) & BYTE_MASK)
+                            != lower(mBuf.get(p + 1 + j) & BYTE_MASK)) {
+                        return false;
+                    }
+                }
+                i += len + 1;
+                p += len + 1;
+            }
+            return false;
+        }
+
+        /**
+         * @param pos Where a name starts.
+         * @return Where it ends in place, -1 if it runs past the end.
+         */
+        private int skipName(final int pos) {
+            int p = pos;
+            while (p < mEnd) {
+                int len = mBuf.get(p) & BYTE_MASK;
+                if (len == 0) {
+                    return p + 1;
+                }
+                if ((len & POINTER_MASK) == POINTER_MASK) {
+                    return p + 2 <= mEnd ? p + 2 : -1;
+                }
+                p += len + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Checks that the data of the current record fits its type.
+         * @return Whether it does.
+         */
+        private boolean checkData() {
+            int end = mData + mDataLength;
+            switch (mType) {
+            case TYPE_A:
+                return mDataLength == ADDRESS_SIZE;
+            case TYPE_CNAME:
+                return skipName(mData) == end;
+            case TYPE_MX:
+                return mDataLength > 2 && skipName(mData + 2) == end;
+            case TYPE_SRV:
+                return mDataLength > 6 && skipName(mData + 6) == end;
+            case TYPE_TXT:
+                int p = mData;
+                while (p < end) {
+                    p += (mBuf.get(p) & BYTE_MASK) + 1;
+                }
+                return p == end;
+            default:
+                return true;
+            }
+        }
+
+        /**
+         * @param from The absolute offset in the message.
+         * @param len How many bytes to copy.
+         * @param dst Where to copy them, at its position.
+         */
+        private void copy(final int from, final int len, final ByteBuffer dst) {
+            if (dst.remaining() < len) {
+                throw new BufferOverflowException();
+            }
+            if (mBuf.hasArray() && dst.hasArray()) {
+                System.arraycopy(mBuf.array(), mBuf.arrayOffset() + from,
+                        dst.array(), dst.arrayOffset() + dst.position(), len);
+                dst.position(dst.position() + len);
+            } else {
+                if (mView == null) {
+                    mView = mBuf.duplicate();
+                }
+                mView.limit(mView.capacity());
+                mView.position(from);
+                mView.limit(from + len);
+                dst.put(mView);
+            }
+        }
+
+        /**
+         * Marks the message as malformed.
+         * @return false.
+         */
+        private boolean fail() {
+            mMalformed = true;
+            return false;
+        }
+    }
+}
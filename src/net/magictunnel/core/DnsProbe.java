@@ -0,0 +1,469 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.magictunnel.settings.DnsProtocol;
+
+/**
+ * Races several DNS record types against the tunnel server at the
+ * same time, to pick the one that carries the most data per second
+ * through the current resolver.
+ *
+ * Each candidate gets the same case check query ('z'), to which the
+ * iodine server replies, before login, by sending the query name back
+ * in a record of the requested type. The probe measures how long the
+ * reply takes and how much of the name comes back. A record type the
+ * resolver drops, rewrites or truncates gets no result.
+ *
+ * The resolver is a parameter, so that the probe can run against a
+ * local stand-in server.
+ * @author Vitaly
+ *
+ */
+public class DnsProbe {
+    /** The default time to wait for the replies, in ms. */
+    public static final int DEFAULT_TIMEOUT = 3000;
+
+    /** The record types, in the order iodine prefers them. */
+    public static final DnsProtocol[] CANDIDATES = {
+        DnsProtocol.NULL, DnsProtocol.TXT, DnsProtocol.SRV,
+        DnsProtocol.MX, DnsProtocol.CNAME, DnsProtocol.A
+    };
+
+    /** Maximum length of a host name, in the dotted form. */
+    private static final int MAX_HOSTNAME = 253;
+
+    /** Maximum length of a label. */
+    private static final int MAX_LABEL = 63;
+
+    /**
+     * Size of the receive buffer. The replies echo a long query name,
+     * and resolvers may send more than 512 bytes.
+     */
+    private static final int MAX_PACKET = 4096;
+
+    /** Fixed fields before the target of an MX record. */
+    private static final int MX_FIXED = 2;
+
+    /** Fixed fields before the target of an SRV record. */
+    private static final int SRV_FIXED = 6;
+
+    /** Bits of data per byte in binary records. */
+    private static final int BINARY_BITS = 8;
+
+    /** Bits of data per byte in host names, with iodine's Base128. */
+    private static final int HOSTNAME_BITS = 7;
+
+    /** Characters of the random query names. */
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    /** Mask of an unsigned byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Marks a compression pointer. */
+    private static final int POINTER_MASK = 0xc0;
+
+    /** Bits in a byte. */
+    private static final int BYTE_BITS = 8;
+
+    /** Milliseconds per second. */
+    private static final long MS_PER_SECOND = 1000;
+
+    /** The resolver to send the queries to. */
+    private final InetSocketAddress mResolver;
+
+    /** The tunnel domain. */
+    private final String mDomain;
+
+    /** How long to wait for the replies, in ms. */
+    private int mTimeout = DEFAULT_TIMEOUT;
+
+    /** Generates the query ids and names. */
+    private final Random mRandom = new Random();
+
+    /**
+     * The outcome of one record type.
+     */
+    public static final class Result {
+        /** The record type. */
+        private final DnsProtocol mProtocol;
+
+        /** Round trip time, in ms, -1 if no usable reply. */
+        private final long mRtt;
+
+        /** Bytes of tunnel data the reply carried. */
+        private final int mPayload;
+
+        /**
+         * Creates a result.
+         * @param protocol The record type.
+         * @param rtt The round trip time, in ms, -1 if no usable reply.
+         * @param payload The bytes of tunnel data the reply carried.
+         */
+        Result(final DnsProtocol protocol, final long rtt, final int payload) {
+            mProtocol = protocol;
+            mRtt = rtt;
+            mPayload = payload;
+        }
+
+        /**
+         * @return The record type.
+         */
+        public DnsProtocol getProtocol() {
+            return mProtocol;
+        }
+
+        /**
+         * @return Whether a usable reply came back.
+         */
+        public boolean isAnswered() {
+            return mRtt >= 0;
+        }
+
+        /**
+         * @return The round trip time, in ms, -1 if no usable reply.
+         */
+        public long getRtt() {
+            return mRtt;
+        }
+
+        /**
+         * @return The bytes of tunnel data the reply carried.
+         */
+        public int getPayload() {
+            return mPayload;
+        }
+
+        /**
+         * @return The bytes per second this record type would carry
+         * downstream, 0 if no usable reply.
+         */
+        public long getThroughput() {
+            if (!isAnswered()) {
+                return 0;
+            }
+            return mPayload * MS_PER_SECOND / Math.max(mRtt, 1);
+        }
+
+        @Override
+        public String toString() {
+            if (!isAnswered()) {
+                return mProtocol + ": no reply";
+            }
+            return mProtocol + ": " + mRtt + " ms, " + mPayload + " bytes, "
+                + getThroughput() + " B/s";
+        }
+    }
+
+    /**
+     * Creates a probe.
+     * @param resolver The resolver to send the queries to.
+     * @param domain The tunnel domain.
+     */
+    public DnsProbe(final InetSocketAddress resolver, final String domain) {
+        mResolver = resolver;
+        mDomain = domain;
+    }
+
+    /**
+     * Sets how long to wait for the replies.
+     * @param timeout The timeout, in ms.
+     */
+    public final void setTimeout(final int timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Sends one query per candidate at once, then collects the replies
+     * until all came back or the timeout expires.
+     * @param candidates The record types to try.
+     * @return One result per candidate, in the same order.
+     * @throws IOException if the queries could not be sent.
+     */
+    public final Result[] race(final DnsProtocol[] candidates)
+        throws IOException {
+        int count = candidates.length;
+        int[] ids = new int[count];
+        int[] sent = new int[count];
+        long[] start = new long[count];
+        Result[] results = new Result[count];
+
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            for (int i = 0; i < count; ++i) {
+                ids[i] = nextId(ids, i);
+                String name = randomName();
+                sent[i] = name.length();
+                byte[] query = buildQuery(ids[i], 'z' + name + '.' + mDomain,
+                        DnsCodec.getRecordType(candidates[i]));
+                start[i] = System.currentTimeMillis();
+                socket.send(new DatagramPacket(query, query.length, mResolver));
+            }
+
+            byte[] buf = new byte[MAX_PACKET];
+            DatagramPacket reply = new DatagramPacket(buf, buf.length);
+            ByteBuffer view = ByteBuffer.wrap(buf);
+            long deadline = System.currentTimeMillis() + mTimeout;
+            int pending = count;
+
+            while (pending > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                socket.setSoTimeout((int) left);
+                reply.setLength(buf.length);
+                try {
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+
+                int i = indexOf(ids, DnsCodec.getShort(view, 0));
+                if (i < 0 || results[i] != null) {
+                    continue;
+                }
+
+                int payload = parsePayload(buf, reply.getLength(),
+                        DnsCodec.getRecordType(candidates[i]), mDomain);
+                if (payload > 0) {
+                    results[i] = new Result(candidates[i], now - start[i],
+                            Math.min(payload, sent[i]));
+                } else {
+                    results[i] = new Result(candidates[i], -1, 0);
+                }
+                --pending;
+            }
+        } finally {
+            socket.close();
+        }
+
+        for (int i = 0; i < count; ++i) {
+            if (results[i] == null) {
+                results[i] = new Result(candidates[i], -1, 0);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Picks the record type with the highest throughput. Ties go
+     * to the earliest candidate.
+     * @param results The results of a race.
+     * @return The best record type, null if none was answered.
+     */
+    public static DnsProtocol pickBest(final Result[] results) {
+        Result best = null;
+        for (Result r : results) {
+            if (r.isAnswered()
+                    && (best == null || r.getThroughput() > best.getThroughput())) {
+                best = r;
+            }
+        }
+        return best == null ? null : best.getProtocol();
+    }
+
+    /**
+     * @param ids The ids already used.
+     * @param count How many of them are set.
+     * @return A query id that is not used yet.
+     */
+    private int nextId(final int[] ids, final int count) {
+        while (true) {
+            int id = mRandom.nextInt(1 << (2 * BYTE_BITS));
+            boolean used = false;
+            for (int i = 0; i < count; ++i) {
+                used |= ids[i] == id;
+            }
+            if (!used) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @param ids The query ids.
+     * @param id The id of a reply.
+     * @return The index of the query, -1 if not found.
+     */
+    private static int indexOf(final int[] ids, final int id) {
+        for (int i = 0; i < ids.length; ++i) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Generates random labels that fill the query name, so that the
+     * reply is as large as the server can make it and cannot come
+     * from a cache.
+     * @return The labels, without the 'z' command and the domain.
+     */
+    private String randomName() {
+        //'z', the dot before the domain and the dots between labels
+        int room = MAX_HOSTNAME - mDomain.length() - 2;
+        int length = room - room / (MAX_LABEL + 1);
+
+        StringBuilder sb = new StringBuilder(room);
+        for (int i = 0; i < length; ++i) {
+            //The first label also holds the command character
+            if ((i + 1) % MAX_LABEL == 0) {
+                sb.append('.');
+            }
+            sb.append(ALPHABET.charAt(mRandom.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds a query.
+     * @param id The query id.
+     * @param name The query name.
+     * @param type The record type.
+     * @return The packet.
+     */
+    static byte[] buildQuery(final int id, final String name, final int type) {
+        ByteBuffer buf = ByteBuffer.allocate(DnsCodec.HEADER_SIZE + name.length() + 2 + 4);
+        new DnsCodec.Writer().begin(buf, id, DnsCodec.FLAG_RD)
+            .question(name, type).finish();
+        return buf.array();
+    }
+
+    /**
+     * @param pkt A packet.
+     * @param length The length of the packet.
+     * @param id The id of a query.
+     * @return Whether the packet is the reply to the query, whatever
+     * its response code.
+     */
+    static boolean isReplyTo(final byte[] pkt, final int length, final int id) {
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        return r.wrap(ByteBuffer.wrap(pkt, 0, length))
+            && r.getId() == id && r.isResponse();
+    }
+
+    /**
+     * Measures how much tunnel data a reply carries in records of
+     * the expected type. The server answers A queries with a CNAME.
+     * @param pkt The reply.
+     * @param length The length of the reply.
+     * @param type The record type that was asked for.
+     * @param domain The tunnel domain, which host names end with.
+     * @return The bytes of tunnel data, 0 if the reply is not usable.
+     */
+    static int parsePayload(
+            final byte[] pkt,
+            final int length,
+            final int type,
+            final String domain) {
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        if (!r.wrap(ByteBuffer.wrap(pkt, 0, length))
+                || !r.isResponse() || r.isTruncated() || r.getRcode() != 0) {
+            return 0;
+        }
+
+        int bytes = 0;
+        while (r.next()) {
+            if (r.getSection() != DnsCodec.SECTION_ANSWER) {
+                continue;
+            }
+            int rrtype = r.getType();
+            if (rrtype == type
+                    || (type == DnsCodec.TYPE_A && rrtype == DnsCodec.TYPE_CNAME)) {
+                bytes += countData(pkt, r, domain);
+            }
+        }
+        return r.isMalformed() ? 0 : bytes;
+    }
+
+    /**
+     * @param pkt The reply.
+     * @param r The reader, on a record of the reply.
+     * @param domain The tunnel domain.
+     * @return The bytes of tunnel data in the record.
+     */
+    private static int countData(
+            final byte[] pkt,
+            final DnsCodec.Reader r,
+            final String domain) {
+        switch (r.getType()) {
+        case DnsCodec.TYPE_NULL:
+        case DnsCodec.TYPE_TXT:
+            return r.getPayloadLength();
+
+        case DnsCodec.TYPE_MX:
+            return countName(pkt, r, r.getTargetOffset(),
+                    r.getDataLength() - MX_FIXED, domain);
+
+        case DnsCodec.TYPE_SRV:
+            return countName(pkt, r, r.getTargetOffset(),
+                    r.getDataLength() - SRV_FIXED, domain);
+
+        case DnsCodec.TYPE_CNAME:
+            return countName(pkt, r, r.getTargetOffset(),
+                    r.getDataLength(), domain);
+
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Counts the bytes of tunnel data in a host name, which carries
+     * fewer bits per character than binary records. Only the labels
+     * before the domain count, whether the domain is spelled out, as
+     * in SRV targets, or compressed.
+     * @param pkt The reply.
+     * @param r The reader of the reply.
+     * @param pos Where the name starts.
+     * @param rdlength How many bytes the name takes in the record.
+     * @param domain The tunnel domain.
+     * @return The bytes of tunnel data.
+     */
+    private static int countName(
+            final byte[] pkt,
+            final DnsCodec.Reader r,
+            final int pos,
+            final int rdlength,
+            final String domain) {
+        int chars = 0;
+        int p = pos;
+        while (p < pos + rdlength) {
+            int len = pkt[p] & BYTE_MASK;
+            if (len == 0 || (len & POINTER_MASK) == POINTER_MASK
+                    || r.nameEquals(p, domain)) {
+                break;
+            }
+            chars += len;
+            p += len + 1;
+        }
+        return chars * HOSTNAME_BITS / BINARY_BITS;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * Interface for the events found in the output of the Iodine client.
+ * They are called in the context of the thread that reads the output.
+ * @author Vitaly
+ *
+ */
+public interface IIodineEventListener {
+    /**
+     * Triggered when a line of output reveals a fact about the tunnel.
+     * @param event The event.
+     */
+    void onIodineEvent(IodineEvent event);
+}
@@ -0,0 +1,34 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * Interface for the tunnel metrics callbacks.
+ * They must be all called in the UI thread context.
+ * @author vitaly
+ *
+ */
+public interface ITunnelMetricsListener {
+    /**
+     * Triggered at most once per second while a tunnel is up.
+     * @param name The name of the tunnel.
+     * @param metrics The metrics at the time of the call.
+     */
+    void onTunnelMetrics(String name, TunnelMetrics.Snapshot metrics);
+}
@@ -36,4 +36,25 @@ public interface ITunnelStatusListener {
      * @param name The name of the tunnel.
      */
     void onTunnelDisconnect(String name);
+
+    /**
+     * Triggered on each transition of the tunnel state machine.
+     * @param name The name of the tunnel.
+     * @param state The new state.
+     */
+    void onTunnelStateChanged(String name, TunnelState state);
+
+    /**
+     * Triggered when the client prints a message while connecting.
+     * @param name The name of the tunnel.
+     * @param message The message.
+     */
+    void onTunnelProgress(String name, String message);
+
+    /**
+     * Triggered when the tunnel could not be set up.
+     * @param name The name of the tunnel.
+     * @param error What went wrong.
+     */
+    void onTunnelError(String name, IodineException error);
 }
@@ -53,7 +53,7 @@ public class Installer {
     /** Size of the buffer for copy operations. */
     private static final int BUFFER_SIZE = 512;
 
-    /** 500 ms for timeout during install operation. */
+    /** How long to wait for the installed file to show up, in ms. */
     private static final int TIMEOUT = 500;
 
     /** Asset manager. */
@@ -189,12 +189,14 @@ public class Installer {
         File script = new File(mContext.getFilesDir(), INSTALL_SCRIPT);
         Commands.runScriptAsRoot(script.toString());
         try {
-            //Give some time for the script to complete.
-            Thread.sleep(TIMEOUT);
+            //The script has completed, but the file system may lag behind
+            return Poller.waitFor(new Poller.Condition() {
+                public boolean isMet() {
+                    return iodineInstalled();
+                }
+            }, TIMEOUT);
         } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            return iodineInstalled();
         }
-        return iodineInstalled();
     }
 }
@@ -0,0 +1,163 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * The traffic counters of a network interface, as found in
+ * /proc/net/dev.
+ * @author Vitaly
+ *
+ */
+public final class InterfaceStats {
+    /** The interface statistics. */
+    public static final String PROC_NET_DEV = "/proc/net/dev";
+
+    /** Index of the received bytes among the fields. */
+    private static final int RX_BYTES = 0;
+
+    /** Index of the received packets among the fields. */
+    private static final int RX_PACKETS = 1;
+
+    /** Index of the transmitted bytes among the fields. */
+    private static final int TX_BYTES = 8;
+
+    /** Index of the transmitted packets among the fields. */
+    private static final int TX_PACKETS = 9;
+
+    /** Bytes received. */
+    private final long mRxBytes;
+
+    /** Packets received. */
+    private final long mRxPackets;
+
+    /** Bytes transmitted. */
+    private final long mTxBytes;
+
+    /** Packets transmitted. */
+    private final long mTxPackets;
+
+    /**
+     * Creates a set of counters.
+     * @param rxBytes Bytes received.
+     * @param rxPackets Packets received.
+     * @param txBytes Bytes transmitted.
+     * @param txPackets Packets transmitted.
+     */
+    public InterfaceStats(
+            final long rxBytes,
+            final long rxPackets,
+            final long txBytes,
+            final long txPackets) {
+        mRxBytes = rxBytes;
+        mRxPackets = rxPackets;
+        mTxBytes = txBytes;
+        mTxPackets = txPackets;
+    }
+
+    /**
+     * @return Bytes received.
+     */
+    public long getRxBytes() {
+        return mRxBytes;
+    }
+
+    /**
+     * @return Packets received.
+     */
+    public long getRxPackets() {
+        return mRxPackets;
+    }
+
+    /**
+     * @return Bytes transmitted.
+     */
+    public long getTxBytes() {
+        return mTxBytes;
+    }
+
+    /**
+     * @return Packets transmitted.
+     */
+    public long getTxPackets() {
+        return mTxPackets;
+    }
+
+    /**
+     * Reads the counters of an interface.
+     * @param iface The name of the interface.
+     * @return The counters, null if the interface does not exist.
+     */
+    public static InterfaceStats read(final String iface) {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(PROC_NET_DEV));
+            String l;
+            while ((l = in.readLine()) != null) {
+                InterfaceStats s = parseLine(l, iface);
+                if (s != null) {
+                    return s;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a line of /proc/net/dev, e.g.,
+     * "  dns0: 1520 12 0 0 0 0 0 0 2048 16 0 0 0 0 0 0".
+     * @param line The line.
+     * @param iface The name of the interface.
+     * @return The counters, null if the line is about another interface.
+     */
+    static InterfaceStats parseLine(final String line, final String iface) {
+        int colon = line.indexOf(':');
+        if (colon < 0 || !line.substring(0, colon).trim().equals(iface)) {
+            return null;
+        }
+
+        String[] fields = line.substring(colon + 1).trim().split("\\s+");
+        if (fields.length <= TX_PACKETS) {
+            return null;
+        }
+
+        try {
+            return new InterfaceStats(
+                    Long.parseLong(fields[RX_BYTES]),
+                    Long.parseLong(fields[RX_PACKETS]),
+                    Long.parseLong(fields[TX_BYTES]),
+                    Long.parseLong(fields[TX_PACKETS]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
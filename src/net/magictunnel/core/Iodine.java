@@ -19,26 +19,24 @@
 package net.magictunnel.core;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import net.magictunnel.R;
-import net.magictunnel.Utils;
 import net.magictunnel.settings.DnsProtocol;
 import net.magictunnel.settings.DnsRawConnection;
 import net.magictunnel.settings.Profile;
-import android.app.ProgressDialog;
 import android.content.Context;
-import android.os.AsyncTask;
 import android.widget.Toast;
 
 /**
@@ -47,26 +45,26 @@ import android.widget.Toast;
  *
  */
 public class Iodine {
-    /**
-     * Pattern to extract the address of the remote DNS tunnel server
-     * in case direct connection is possible.
-     */
-    private static final Pattern IODINE_RAW_PATTERN =
-        Pattern.compile("directly to\\s+(\\d+\\.\\d+\\.\\d+\\.\\d+)");
+    /** How long to wait for a killed client to exit, in ms. */
+    private static final long KILL_TIMEOUT = 3000;
 
-    /** Pattern to extract the address of the DNS tunnel server. */
-    private static final Pattern IODINE_SERVER_TUNNEL_PATTERN =
-        Pattern.compile("Server tunnel IP is\\s+(\\d+\\.\\d+\\.\\d+\\.\\d+)");
+    /** How long to wait for dns0 once the handshake is done, in ms. */
+    private static final long INTERFACE_TIMEOUT = 5000;
 
+    /** The tunnel interface created by the Iodine client. */
+    static final String TUNNEL_INTERFACE = "dns0";
 
-    /** How many lines to display at once in the progress dialog. */
-    private static final int MAX_PROGRESS_LINES = 5;
+    /** Name of the Iodine client program. */
+    private static final String IODINE = "iodine";
 
-    /** How much time to wait for certain commands. */
-    private static final int SLEEP_TIME = 1000;
+    /** File where the Iodine client writes its PID. */
+    private static final String PID_FILE = "iodine.pid";
+
+    /** How many messages of the client output to keep. */
+    private static final int LOG_CAPACITY = 1024;
 
     /** The name of the profile currently running. */
-    private Profile mActiveProfile;
+    private volatile Profile mActiveProfile;
 
     /** For issuing commands. */
     private Commands mCmds;
@@ -76,24 +74,46 @@ public class Iodine {
 
     //TODO clear the saved routes when connectivity changes
     /** Routes that were active before Ioding was enabled. */
-    private List<RouteEntry> mSavedRoutes;
+    private volatile List<RouteEntry> mSavedRoutes;
 
     /** The log output of the connection process. */
-    private StringBuffer mLog = new StringBuffer();
+    private volatile LogBuffer mLog = new LogBuffer(LOG_CAPACITY);
+
+    /** What the client printed during the last successful handshake. */
+    private volatile IodineLogParser mHandshake;
+
+    /** The resolvers to launch the client with, null if not striping. */
+    private volatile ResolverPool mResolverPool;
+
+    /** The resolver of the pool the iodine binary was launched with. */
+    private volatile ResolverPool.Entry mPoolResolver;
+
+    /** The interface that carries the tunnel traffic, once routed. */
+    private volatile String mTransportInterface;
+
+    /** The gateway of that interface, once routed. */
+    private volatile InetAddress mTransportGateway;
 
+    /** PID of the Iodine client we launched, 0 if unknown. */
+    private int mPid = 0;
+
+
+    /** Drives the tunnel through its states. */
+    private TunnelController mController;
 
     /**
-     * All the folks interested in being notified
-     * of connectivity changes.
+     * The folks interested in the output of the client.
+     * They are notified from the launcher thread.
      */
-    private ArrayList<ITunnelStatusListener> mListeners =
-        new ArrayList<ITunnelStatusListener>();
+    private List<IIodineEventListener> mEventListeners =
+        new CopyOnWriteArrayList<IIodineEventListener>();
 
     /**
      * Create the interface with the Ioding client.
      */
     public Iodine() {
         mCmds = new Commands();
+        mController = new TunnelController(this);
     }
 
     /**
@@ -107,10 +127,18 @@ public class Iodine {
     /**
      * @return The log buffer.
      */
-    public final StringBuffer getLog() {
+    public final LogBuffer getLog() {
         return mLog;
     }
 
+    /**
+     * @return What the client printed during the last successful
+     * handshake, null if there was none.
+     */
+    public final IodineLogParser getHandshake() {
+        return mHandshake;
+    }
+
     /**
      * @return The current active profile.
      */
@@ -119,17 +147,162 @@ public class Iodine {
     }
 
     /**
+     * Checks whether the Iodine client is running. The PID of the
+     * client we launched is looked up in /proc. The process list is
+     * scanned only when the PID is unknown.
      * @return Whether the Iodine client is running or not.
      */
-    public final boolean isIodineRunning() {
-        return Commands.isProgramRunning("iodine");
+    final synchronized boolean checkClient() {
+        if (mPid <= 0) {
+            mPid = readPidFile();
+        }
+
+        if (mPid > 0) {
+            return Commands.isProcessRunning(mPid, IODINE);
+        }
+        return Commands.isProgramRunning(IODINE);
+    }
+
+    /** Forget the PID of the client. */
+    private synchronized void resetPid() {
+        mPid = 0;
+    }
+
+    /**
+     * @return The file where the client writes its PID, null if
+     * the context is not set yet.
+     */
+    private File getPidFile() {
+        if (mContext == null) {
+            return null;
+        }
+        return new File(mContext.getFilesDir(), PID_FILE);
     }
 
-    /** Reset all saved routes (e.g., when they become invalid). */
+    /**
+     * Reads the PID written by the Iodine client.
+     * @return The PID, 0 if it is not available.
+     */
+    private int readPidFile() {
+        File f = getPidFile();
+        if (f == null || !f.exists()) {
+            return 0;
+        }
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(f));
+            String l = in.readLine();
+            return l == null ? 0 : Integer.parseInt(l.trim());
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Kills the Iodine client: the one we launched if its PID
+     * is known, all instances otherwise. Then waits until
+     * the client is gone.
+     * @return Whether the client exited before the timeout.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    final boolean killIodine() throws InterruptedException {
+        final int pid;
+        synchronized (this) {
+            if (mPid <= 0) {
+                mPid = readPidFile();
+            }
+            pid = mPid;
+        }
+
+        Poller.Condition gone;
+        if (pid > 0 && Commands.isProcessRunning(pid, IODINE)) {
+            Commands.runInRootShell("kill -9 " + pid);
+            gone = new Poller.Condition() {
+                public boolean isMet() {
+                    return !Commands.isProcessRunning(pid, IODINE);
+                }
+            };
+        } else {
+            Commands.runInRootShell("killall -9 iodine > /dev/null");
+            gone = new Poller.Condition() {
+                public boolean isMet() {
+                    return !Commands.isProgramRunning(IODINE);
+                }
+            };
+        }
+
+        File f = getPidFile();
+        if (f != null) {
+            f.delete();
+        }
+        resetPid();
+        return Poller.waitFor(gone, KILL_TIMEOUT);
+    }
+
+    /**
+     * Reset all saved routes (e.g., when they become invalid). The
+     * interface that carries the tunnel is kept, so that resolvers
+     * found on the new network can still be routed through it.
+     */
     public final void resetSavedRoutes() {
         mSavedRoutes = null;
     }
 
+    /**
+     * @param pool The resolvers to launch the client with, null to
+     * use the resolver of the system only.
+     */
+    final void setResolverPool(final ResolverPool pool) {
+        mResolverPool = pool;
+        mPoolResolver = null;
+    }
+
+    /**
+     * Tells the pool how the resolver the iodine binary was launched
+     * with did, so that the next launch is less likely to pick it if
+     * it failed.
+     * @param answered Whether the tunnel worked through it.
+     */
+    final void reportResolver(final boolean answered) {
+        ResolverPool pool = mResolverPool;
+        ResolverPool.Entry resolver = mPoolResolver;
+        if (pool == null || resolver == null) {
+            return;
+        }
+        if (answered) {
+            pool.onReply(resolver, -1);
+        } else {
+            pool.onLoss(resolver);
+        }
+    }
+
+    /**
+     * @return The resolvers the client is launched with, null if it
+     * always uses the first resolver.
+     */
+    public final ResolverPool getResolverPool() {
+        return mResolverPool;
+    }
+
+    /**
+     * Updates the resolver pool after a connectivity change,
+     * in the background.
+     */
+    public final void refreshResolvers() {
+        mController.refreshResolvers();
+    }
+
     /**
      * Reroutes the traffic through the tunnel.
      * @param transportInterface is either wifi or cellular NIC.
@@ -141,17 +314,63 @@ public class Iodine {
      * @param serverTunnelIp is the IP address of the tunnels
      * server's endpoint (e.g., 192.168.123.3)
      *
+     * @param routes The routes before the tunnel, which are
+     * restored when it goes down.
+     *
      * @return success status.
      */
     public final boolean setupRoute(
             final String transportInterface,
             final InetAddress tunnelEntry,
-            final InetAddress serverTunnelIp) {
+            final InetAddress serverTunnelIp,
+            final List<RouteEntry> routes) {
+        return setupRoute(transportInterface,
+                Collections.singletonList(tunnelEntry), serverTunnelIp, routes);
+    }
+
+    /**
+     * Reroutes the traffic through the tunnel, keeping a host route
+     * to each of the tunnel entries.
+     * @param transportInterface is either wifi or cellular NIC.
+     * @param tunnelEntries are the addresses where data gets tunneled.
+     * @param serverTunnelIp is the IP address of the tunnels
+     * server's endpoint.
+     * @param routes The routes before the tunnel.
+     * @return success status.
+     */
+    public final boolean setupRoute(
+            final String transportInterface,
+            final List<InetAddress> tunnelEntries,
+            final InetAddress serverTunnelIp,
+            final List<RouteEntry> routes) {
+
+        Trace.Span span = Tracer.begin("setupRoute");
+        try {
+            return doSetupRoute(transportInterface, tunnelEntries,
+                    serverTunnelIp, routes);
+        } finally {
+            span.end();
+        }
+    }
 
+    /**
+     * Reroutes the traffic through the tunnel.
+     * @param transportInterface is either wifi or cellular NIC.
+     * @param tunnelEntries are the addresses where data gets tunneled.
+     * @param serverTunnelIp is the IP address of the tunnels
+     * server's endpoint.
+     * @param routes The routes before the tunnel.
+     * @return success status.
+     */
+    private boolean doSetupRoute(
+            final String transportInterface,
+            final List<InetAddress> tunnelEntries,
+            final InetAddress serverTunnelIp,
+            final List<RouteEntry> routes) {
         NetworkInterface ni;
 
         try {
-            ni = NetworkInterface.getByName("dns0");
+            ni = NetworkInterface.getByName(TUNNEL_INTERFACE);
         } catch (SocketException e) {
             return false;
         }
@@ -161,7 +380,7 @@ public class Iodine {
             return false;
         }
 
-        mSavedRoutes = NetworkUtils.getRoutes();
+        mSavedRoutes = routes;
         RouteEntry oldDefaultRoute =
             NetworkUtils.getDefaultRoute(mSavedRoutes, transportInterface);
 
@@ -172,90 +391,91 @@ public class Iodine {
         InetAddress oldDefaultGateway =
             NetworkUtils.intToInetAddress(oldDefaultRoute.getGateway());
 
-        NetworkUtils.removeDefaultRoute(transportInterface);
-
-        NetworkUtils.addHostRoute(transportInterface,
-                tunnelEntry, oldDefaultGateway);
-
-        NetworkUtils.addDefaultRoute("dns0", serverTunnelIp);
+        RouteTransaction tr = new RouteTransaction();
+        tr.removeDefaultRoute(transportInterface);
+        for (InetAddress entry : tunnelEntries) {
+            tr.addHostRoute(transportInterface, entry, oldDefaultGateway);
+        }
+        tr.addDefaultRoute(TUNNEL_INTERFACE, serverTunnelIp);
 
+        if (!tr.commit(mSavedRoutes)) {
+            mSavedRoutes = null;
+            return false;
+        }
+        mTransportInterface = transportInterface;
+        mTransportGateway = oldDefaultGateway;
         return true;
     }
 
+    /**
+     * Adds host routes to resolvers that joined the pool after the
+     * tunnel was set up, through the interface that carries it.
+     * @param resolvers The new resolvers.
+     * @return Whether the routes could be added. Nothing is done if
+     * the tunnel is not routed.
+     */
+    final boolean addResolverRoutes(final List<InetSocketAddress> resolvers) {
+        String iface = mTransportInterface;
+        if (iface == null || resolvers.isEmpty()) {
+            return false;
+        }
+        RouteTransaction tr = new RouteTransaction();
+        for (InetSocketAddress r : resolvers) {
+            tr.addHostRoute(iface, r.getAddress(), mTransportGateway);
+        }
+        return tr.commit();
+    }
+
     /**
      * Sets up the most optimal route depending on whether or not
      * raw connections are accepted by the network.
      * @param transportInterface Where to route the traffic through.
+     * @param routes The routes before the tunnel.
+     * @param dnsIspServer The resolver of the network, may be null.
      * @return the success status.
      */
-    public final boolean setupRoute(final String transportInterface) {
-        InetAddress serverTunnelIp = getServerTunnelIp(mLog);
-        if (serverTunnelIp == null) {
+    public final boolean setupRoute(
+            final String transportInterface,
+            final List<RouteEntry> routes,
+            final InetAddress dnsIspServer) {
+        if (mHandshake == null || mHandshake.getServerTunnelIp() == null) {
             return false;
         }
+        InetAddress serverTunnelIp = mHandshake.getServerTunnelIp();
 
-        InetAddress raw = getRawEndpoint(mLog);
+        InetAddress raw = mHandshake.getRawEndpoint();
+        ResolverPool pool = mResolverPool;
         if (raw != null) {
-            return setupRoute(transportInterface, raw, serverTunnelIp);
+            return setupRoute(transportInterface, raw, serverTunnelIp, routes);
+        } else if (pool != null) {
+            List<InetAddress> entries = new ArrayList<InetAddress>();
+            for (InetSocketAddress r : pool.getAddresses()) {
+                entries.add(r.getAddress());
+            }
+            return setupRoute(transportInterface, entries, serverTunnelIp, routes);
         } else {
-            InetAddress dnsIspServer = NetworkUtils.getDns();
             if (dnsIspServer == null) {
                 return false;
             }
-            return setupRoute(transportInterface, dnsIspServer, serverTunnelIp);
+            return setupRoute(transportInterface, dnsIspServer,
+                    serverTunnelIp, routes);
         }
     }
 
-    /**
-     * Extracts the raw endpoint from the Iodine log messages.
-     * @param log The output generated by the Iodine client.
-     * @param p The pattern for IP extraction.
-     * @return The IP address.
-     */
-    final InetAddress extractIpFromLog(
-            final StringBuffer log,
-            final Pattern p) {
-        Matcher m = p.matcher(log.toString());
-
-        if (!m.find()) {
-            return null;
-        }
-        String addr = m.group(1);
-        try {
-            return InetAddress.getByName(addr);
-        } catch (UnknownHostException e) {
-            return null;
-        }
-    }
-
-    /**
-     * Extract the raw endpoint of the DNS tunnel, in case the ISP allows
-     * direct UDP traffic to the DNS tunnel server.
-     * @param log The output generated by the Iodine client.
-     * @return The IP address.
-     */
-    final InetAddress getRawEndpoint(final StringBuffer log) {
-        return extractIpFromLog(log, IODINE_RAW_PATTERN);
-    }
-
-    /**
-     * Extract IP address of the DNS tunnel server.
-     * @param log The output generated by the Iodine client.
-     * @return The IP address.
-     */
-    final InetAddress getServerTunnelIp(final StringBuffer log) {
-        return extractIpFromLog(log, IODINE_SERVER_TUNNEL_PATTERN);
-    }
-
     /**
      * Build a command line to launch the Iodine client.
      * This command line is determined by the profile settings.
+     * The parameters that the profile leaves to autodetection are
+     * taken from the tuning entry, if any.
      * @param p The profile.
+     * @param tuning The parameters that worked before, may be null.
      * @return The command string.
      */
-    private StringBuilder buildCommandLine(final Profile p) {
+    private StringBuilder buildCommandLine(
+            final Profile p,
+            final TuningCache.Entry tuning) {
         StringBuilder cmdBuilder = new StringBuilder();
-        cmdBuilder.append("iodine");
+        cmdBuilder.append(IODINE);
 
         if (p.getPassword() != null) {
             cmdBuilder.append(" -P ");
@@ -265,256 +485,331 @@ public class Iodine {
         if (p.getPacketSize() > 0) {
             cmdBuilder.append(" -m");
             cmdBuilder.append(Integer.toString(p.getPacketSize()));
+        } else if (tuning != null && tuning.getFragmentSize() > 0) {
+            cmdBuilder.append(" -m");
+            cmdBuilder.append(Integer.toString(tuning.getFragmentSize()));
         }
 
-        if (!p.getDnsProtocol().equals(DnsProtocol.AUTODETECT)) {
+        DnsProtocol protocol = p.getDnsProtocol();
+        if (protocol.equals(DnsProtocol.RACE)) {
+            protocol = p.getProbedProtocol();
+        }
+
+        if (protocol != null && !protocol.equals(DnsProtocol.AUTODETECT)) {
             cmdBuilder.append(" -T");
-            cmdBuilder.append(p.getDnsProtocol().toString());
+            cmdBuilder.append(protocol.toString());
+        } else if (tuning != null && tuning.getDnsType() != null) {
+            cmdBuilder.append(" -T");
+            cmdBuilder.append(tuning.getDnsType());
+        }
+
+        if (tuning != null && tuning.getCodec() != null) {
+            cmdBuilder.append(" -O");
+            cmdBuilder.append(tuning.getCodec());
         }
 
         if (p.getRawConnection().equals(DnsRawConnection.NO)) {
             cmdBuilder.append(" -r");
+        } else if (p.getRawConnection().equals(DnsRawConnection.AUTODETECT)
+                && tuning != null && !tuning.isRaw()) {
+            cmdBuilder.append(" -r");
         }
 
-        cmdBuilder.append(" -d dns0 ");
-        cmdBuilder.append(p.getDomainName());
-        return cmdBuilder;
-    }
-
-
-    /**
-     * Disconnects the tunnel.
-     */
-    public final void disconnect() {
-        if (mActiveProfile == null) {
-            return;
+        File pidFile = getPidFile();
+        if (pidFile != null) {
+            cmdBuilder.append(" -F ");
+            cmdBuilder.append(pidFile.getAbsolutePath());
         }
 
-        if (mSavedRoutes != null) {
-            NetworkUtils.removeAllRoutes();
-            NetworkUtils.restoreRoutes(mSavedRoutes);
-            mSavedRoutes = null;
-        }
+        //Stay in the foreground, so that the output can be watched
+        cmdBuilder.append(" -f");
 
-        mCmds.runCommandAsRoot("killall -9 iodine > /dev/null");
-        try {
-            Thread.sleep(SLEEP_TIME);
-        } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        cmdBuilder.append(" -d ");
+        cmdBuilder.append(TUNNEL_INTERFACE);
+
+        ResolverPool.Entry resolver = mPoolResolver;
+        if (resolver != null) {
+            cmdBuilder.append(' ');
+            cmdBuilder.append(resolver.getAddress().getAddress().getHostAddress());
         }
-        showConnectionToast(R.string.iodine_notify_disconnected);
-        broadcastOnTunnelDisconnect(mActiveProfile.getName());
-        mActiveProfile = null;
+        cmdBuilder.append(' ');
+        cmdBuilder.append(p.getDomainName());
+        return cmdBuilder;
     }
 
+
     /**
-     * Show a message toast on the screen.
-     * @param messageId The ID of the message to show.
+     * Sets up the tunnel of the specified profile, in the background.
+     * @param p The profile.
      */
-    private void showConnectionToast(final int messageId) {
-        String text = mContext.getString(messageId);
-        int duration = Toast.LENGTH_LONG;
-
-        Toast toast = Toast.makeText(mContext, text, duration);
-        toast.show();
+    public final void connect(final Profile p) {
+        mController.connect(p);
     }
 
-
     /**
-     * Register a listener for connect/disconnect events.
-     * @param listener The listener.
+     * Disconnects the tunnel, in the background.
      */
-    public final void registerListener(final ITunnelStatusListener listener) {
-        if (mListeners.contains(listener)) {
-            return;
-        }
-        mListeners.add(listener);
+    public final void disconnect() {
+        mController.disconnect();
     }
 
     /**
-     * Unregister a listener for connect/disconnect events.
-     * @param listener The listener.
+     * @return The controller that drives the tunnel.
      */
-    public final void unregisterListener(final ITunnelStatusListener listener) {
-        mListeners.remove(listener);
+    public final TunnelController getController() {
+        return mController;
     }
 
     /**
-     * Notifies all listeners that the tunnel got connected.
-     * @param name The name of the profile.
+     * @param p The profile whose tunnel is up, null if none.
      */
-    private void broadcastOnTunnelConnect(final String name) {
-        for (ITunnelStatusListener l : mListeners) {
-            l.onTunnelConnect(name);
-        }
+    final void setActiveProfile(final Profile p) {
+        mActiveProfile = p;
     }
 
     /**
-     * Notifies all listeners that the tunnel got disconnected.
-     * @param name The name of the profile.
+     * @return The Android context.
      */
-    private void broadcastOnTunnelDisconnect(final String name) {
-        for (ITunnelStatusListener l : mListeners) {
-            l.onTunnelDisconnect(name);
-        }
+    final Context getContext() {
+        return mContext;
     }
 
+    /** Starts a new log for a connection attempt. */
+    final void resetLog() {
+        mLog = new LogBuffer(LOG_CAPACITY);
+    }
 
     /**
-     * An AsyncTask can be used only once. Therefore, we have
-     * to recreate a new one on each use.
-     * @param p The profile to activate.
-     * @return The launcher task.
+     * Appends a message to the log and shows it to the listeners.
+     * Must be called from the controller thread.
+     * @param message The message.
      */
-    public final LauncherTask getLauncher(final Profile p) {
-        return new LauncherTask(p);
+    final void log(final String message) {
+        mLog.append(message);
+        mController.publishProgress(message);
     }
 
     /**
-     * Asynchronous task to launch the Iodine client.
-     * @author Vitaly
-     *
+     * Launches the Iodine client.
+     * @param p The profile.
+     * @param tuning The parameters that worked before, may be null.
      */
-    public final class LauncherTask extends AsyncTask<Void, String, Boolean> {
-        /** The progress dialog. */
-        private ProgressDialog mProgress;
-
-        /** List of messages to display in the progress dialog. */
-        private ArrayList<String> mMessages = new ArrayList<String>();
-
-        /** The profile to activate. */
-        private Profile mProfile;
-
-        /**
-         * Create a new launcher task.
-         * @param p The profile to activate.
-         */
-        private LauncherTask(final Profile p) {
-            mProfile = p;
+    final void startClient(final Profile p, final TuningCache.Entry tuning) {
+        ResolverPool pool = mResolverPool;
+        if (pool != null) {
+            mPoolResolver = pool.pick();
+            log("Using the resolver "
+                    + mPoolResolver.getAddress().getAddress().getHostAddress());
         }
 
-        /**
-         * Launch the iodine process.
-         * @throws InterruptedException if the task is interrupted.
-         */
-        private void launch() throws InterruptedException {
-            publishProgress("Killing previous instance of iodine...");
-            mCmds.runCommandAsRoot("killall -9 iodine > /dev/null");
-            Thread.sleep(SLEEP_TIME);
+        log("Launching iodine...");
+        mCmds.runCommandAsRoot(buildCommandLine(p, tuning).toString());
+    }
 
-            mCmds.runCommandAsRoot(buildCommandLine(mProfile).toString());
-            pollProgress(mCmds.getProcess().getErrorStream());
+    /**
+     * Follows the output of the client until it reports that the
+     * tunnel is set up, then waits for the tunnel interface.
+     * @return Whether the tunnel interface is ready.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    final boolean waitForHandshake() throws InterruptedException {
+        Process proc = mCmds.getProcess();
+        if (proc == null) {
+            return false;
         }
 
-
-        /**
-         * Check if Iodine generated additional output and display it
-         * on the progress status dialog.
-         * @param is The input stream of the process.
-         */
-        private void pollProgress(final InputStream is) {
-            BufferedReader in = new BufferedReader(new InputStreamReader(is));
-            try {
-                String l;
-                while ((l = in.readLine()) != null) {
-                    publishProgress(l);
+        IodineLogParser parser = new IodineLogParser(
+                new IIodineEventListener() {
+                    public void onIodineEvent(final IodineEvent event) {
+                        Tracer.mark("iodine: " + event.getType());
+                        broadcastOnIodineEvent(event);
+                    }
+                });
+
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(proc.getErrorStream()));
+        if (pollProgress(in, parser)) {
+            //The client stays in the foreground: keep draining its output,
+            //otherwise it blocks once the pipe is full
+            Thread drain = new Thread(new Runnable() {
+                public void run() {
+                    drainOutput(in);
                 }
-            } catch (Exception e) {
-                return;
-            }
+            }, "IodineOutput");
+            drain.setDaemon(true);
+            drain.start();
         }
 
-        /**
-         * Determines the interface through which all traffic goes.
-         * @return the interface name.
-         */
-        private String getActiveInterface() {
-            return NetworkUtils.getDefaultRouteIface();
-        }
+        //The client writes its PID once the tunnel is set up
+        resetPid();
 
-        @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
+        //The handshake failed if the client did not print its tunnel IP
+        reportResolver(parser.isLoggedIn());
+        if (!parser.isLoggedIn()) {
+            return false;
+        }
+        mHandshake = parser;
 
-            if (!NetworkUtils.checkConnectivity(mContext)) {
-                Utils.showErrorMessage(mContext,
-                        R.string.iodine_no_connectivity,
-                        R.string.iodine_enable_wifi_or_mobile);
-                cancel(true);
-                return;
+        return Poller.waitFor(new Poller.Condition() {
+            public boolean isMet() {
+                return NetworkUtils.interfaceExists(TUNNEL_INTERFACE);
             }
+        }, INTERFACE_TIMEOUT);
+    }
 
-            if (!NetworkUtils.checkRoutes(getActiveInterface())) {
-                Utils.showErrorMessage(mContext,
-                        R.string.iodine_no_route,
-                        R.string.iodine_cycle_connection);
-                cancel(true);
-                return;
-            }
+    /**
+     * Logs the output of the client and feeds it to the parser,
+     * until the client reports that the tunnel is set up.
+     * @param in The output of the client.
+     * @param parser The parser.
+     * @return Whether the output is still open.
+     */
+    private boolean pollProgress(
+            final BufferedReader in,
+            final IodineLogParser parser) {
+        try {
+            String l;
+            while ((l = in.readLine()) != null) {
+                parser.parseLine(l);
+                log(l);
 
-            mLog = new StringBuffer();
-            mProgress = new ProgressDialog(mContext);
-            mProgress.setCancelable(false);
-            mProgress.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-            mProgress.setMessage("Connecting...");
-            mProgress.show();
+                if (parser.isConnected()) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            return false;
         }
+        return false;
+    }
 
-        @Override
-        protected Boolean doInBackground(final Void... arg0) {
+    /**
+     * Passes the output of the connected client to the controller,
+     * which logs it, until the client exits.
+     * @param in The error stream of the client.
+     */
+    private void drainOutput(final BufferedReader in) {
+        try {
+            String l;
+            while ((l = in.readLine()) != null) {
+                mController.onClientOutput(l);
+            }
+        } catch (IOException e) {
+            return;
+        } finally {
             try {
-                launch();
-                Thread.sleep(SLEEP_TIME);
-            } catch (Exception e) {
-                e.printStackTrace();
+                in.close();
+            } catch (IOException e) {
+                //Nothing to do
             }
-            return true;
         }
+    }
 
-        @Override
-        protected void onPostExecute(final Boolean result) {
-            super.onPostExecute(result);
-            mProgress.cancel();
+    /**
+     * Kills the client while it is connecting, which makes the
+     * thread that reads its output give up.
+     */
+    final void abortClient() {
+        Commands.runInRootShell("killall -9 iodine > /dev/null");
+    }
 
-            if (!NetworkUtils.interfaceExists("dns0")) {
-                Utils.showErrorMessage(mContext,
-                        R.string.iodine_no_connectivity,
-                        R.string.iodine_check_dns);
-                return;
+    /**
+     * Adds back the default route through the tunnel after the client
+     * was restarted. The host route to the tunnel entry and the saved
+     * routes are left as they are.
+     *
+     * If the network changed since the tunnel was set up, the saved
+     * routes were dropped with it: the routes are read again and the
+     * tunnel is routed over the new network from scratch.
+     * @return Whether the route could be added.
+     */
+    final boolean restoreTunnelRoute() {
+        IodineLogParser handshake = mHandshake;
+        if (handshake == null) {
+            return false;
+        }
+        if (mSavedRoutes == null) {
+            List<RouteEntry> routes = NetworkUtils.getRoutes();
+            RouteEntry defaultRoute = NetworkUtils.getDefaultRoute(routes);
+            if (defaultRoute == null) {
+                return false;
             }
+            return setupRoute(defaultRoute.getInterfaceName(), routes,
+                    NetworkUtils.getDns());
+        }
+        RouteTransaction tr = new RouteTransaction();
+        tr.addDefaultRoute(TUNNEL_INTERFACE, handshake.getServerTunnelIp());
+        return tr.commit();
+    }
 
-            String iface = getActiveInterface();
+    /** Puts back the routes that were active before the tunnel. */
+    final void restoreRoutes() {
+        List<RouteEntry> saved = mSavedRoutes;
+        mSavedRoutes = null;
+        mTransportInterface = null;
+        mTransportGateway = null;
+        if (saved != null) {
+            NetworkUtils.restoreRoutes(saved);
+        }
+    }
 
-            if (!setupRoute(iface)) {
-                Utils.showErrorMessage(mContext,
-                        R.string.iodine_no_connectivity,
-                        R.string.iodine_routing_error);
-                return;
-            }
+    /**
+     * Show a message toast on the screen.
+     * @param messageId The ID of the message to show.
+     */
+    final void showConnectionToast(final int messageId) {
+        String text = mContext.getString(messageId);
+        int duration = Toast.LENGTH_LONG;
 
-            showConnectionToast(R.string.iodine_notify_connected);
-            mActiveProfile = mProfile;
-            broadcastOnTunnelConnect(mProfile.getName());
-        }
+        Toast toast = Toast.makeText(mContext, text, duration);
+        toast.show();
+    }
 
-        @Override
-        protected void onProgressUpdate(final String... values) {
-            super.onProgressUpdate(values);
-            mLog.append(values[0]);
-            mLog.append("\n");
-            mMessages.add(values[0]);
 
-            if (mMessages.size() > MAX_PROGRESS_LINES) {
-                mMessages.remove(0);
-            }
+    /**
+     * Register a listener for connect/disconnect events.
+     * Must be called in the UI thread.
+     * @param listener The listener.
+     */
+    public final void registerListener(final ITunnelStatusListener listener) {
+        mController.registerListener(listener);
+    }
 
-            StringBuffer buf = new StringBuffer();
-            for (String s : mMessages) {
-                buf.append(s + "\n");
-            }
+    /**
+     * Unregister a listener for connect/disconnect events.
+     * Must be called in the UI thread.
+     * @param listener The listener.
+     */
+    public final void unregisterListener(final ITunnelStatusListener listener) {
+        mController.unregisterListener(listener);
+    }
+
+    /**
+     * Register a listener for the events found in the client output.
+     * @param listener The listener.
+     */
+    public final void registerEventListener(final IIodineEventListener listener) {
+        if (mEventListeners.contains(listener)) {
+            return;
+        }
+        mEventListeners.add(listener);
+    }
 
-            mProgress.setMessage(buf.toString());
+    /**
+     * Unregister a listener for the events found in the client output.
+     * @param listener The listener.
+     */
+    public final void unregisterEventListener(final IIodineEventListener listener) {
+        mEventListeners.remove(listener);
+    }
+
+    /**
+     * Notifies all listeners of an event found in the client output.
+     * @param event The event.
+     */
+    private void broadcastOnIodineEvent(final IodineEvent event) {
+        for (IIodineEventListener l : mEventListeners) {
+            l.onIodineEvent(event);
         }
     }
 }
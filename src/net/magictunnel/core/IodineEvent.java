@@ -0,0 +1,127 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetAddress;
+
+/**
+ * A fact learned from the output of the Iodine client
+ * while it sets up the tunnel.
+ * @author Vitaly
+ *
+ */
+public final class IodineEvent {
+    /** The kinds of events. */
+    public enum Type {
+        /** The DNS query type in use, in the text. */
+        DNS_TYPE,
+        /** The tunnel IP of the server, in the address. */
+        SERVER_TUNNEL_IP,
+        /** The client tries raw UDP traffic to this public address. */
+        SERVER_ADDRESS,
+        /** The server accepts raw UDP traffic at the address. */
+        RAW_ENDPOINT,
+        /** The codec of the upstream direction, in the text. */
+        UPSTREAM_CODEC,
+        /** The codec of the downstream direction, in the text. */
+        DOWNSTREAM_CODEC,
+        /** The maximum downstream fragment size, in the value. */
+        FRAGMENT_SIZE,
+        /** Lazy mode is enabled if the value is 1, disabled if 0. */
+        LAZY_MODE,
+        /** The tunnel is set up. */
+        CONNECTED,
+        /** The client reported an error, the line is in the text. */
+        ERROR
+    }
+
+    /** The kind of event. */
+    private final Type mType;
+
+    /** The textual payload, if any. */
+    private final String mText;
+
+    /** The address payload, if any. */
+    private final InetAddress mAddress;
+
+    /** The numerical payload, if any. */
+    private final int mValue;
+
+    /**
+     * Creates an event.
+     * @param type The kind of event.
+     * @param text The textual payload.
+     * @param address The address payload.
+     * @param value The numerical payload.
+     */
+    IodineEvent(
+            final Type type,
+            final String text,
+            final InetAddress address,
+            final int value) {
+        mType = type;
+        mText = text;
+        mAddress = address;
+        mValue = value;
+    }
+
+    /**
+     * @return The kind of event.
+     */
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * @return The codec, the DNS query type or the error message.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return The server tunnel IP or the raw endpoint.
+     */
+    public InetAddress getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return The fragment size or the lazy mode flag.
+     */
+    public int getValue() {
+        return mValue;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(mType);
+        if (mText != null) {
+            b.append(' ').append(mText);
+        }
+        if (mAddress != null) {
+            b.append(' ').append(mAddress.getHostAddress());
+        }
+        if (mType == Type.FRAGMENT_SIZE || mType == Type.LAZY_MODE) {
+            b.append(' ').append(mValue);
+        }
+        return b.toString();
+    }
+}
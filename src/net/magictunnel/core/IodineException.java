@@ -28,6 +28,9 @@ public class IodineException extends Exception {
     /** Serial number. */
     private static final long serialVersionUID = -4144280992818031303L;
 
+    /** The resource id of the title, 0 for the default one. */
+    private int mTitleResId;
+
     /** The resource id of the message. */
     private int mMsgResId;
 
@@ -40,6 +43,24 @@ public class IodineException extends Exception {
         mMsgResId = msgResId;
     }
 
+    /**
+     * Creates a new Iodine exception with the specified title and message.
+     * @param titleResId The title id.
+     * @param msgResId The message id.
+     */
+    public IodineException(final int titleResId, final int msgResId) {
+        mTitleResId = titleResId;
+        mMsgResId = msgResId;
+    }
+
+    /**
+     * Get the title id.
+     * @return The title id of the exception, 0 if none was given.
+     */
+    public final int getTitleId() {
+        return mTitleResId;
+    }
+
     /**
      * Get the message id.
      * @return The message id of the exception.
@@ -0,0 +1,420 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetAddress;
+
+/**
+ * Parses the output of the Iodine client one line at a time, as it
+ * is printed, and reports what it learns as {@link IodineEvent}s.
+ *
+ * The parser follows the phases of the handshake: the login, which
+ * ends with the server tunnel IP, the negotiation of the connection
+ * options, and the connected state, after which lines are ignored.
+ * Lines are matched against fixed prefixes, without regular
+ * expressions or copies of the log.
+ * @author Vitaly
+ *
+ */
+public final class IodineLogParser {
+    /** Phases of the handshake. */
+    private enum Phase {
+        /** Waiting for the server tunnel IP. */
+        LOGIN,
+        /** Negotiating raw mode, codecs, lazy mode and fragment size. */
+        OPTIONS,
+        /** The tunnel is set up. */
+        CONNECTED
+    }
+
+    /** Prefix of the DNS query type line. */
+    private static final String DNS_TYPE = "Using DNS type ";
+
+    /** Prefix of the server tunnel IP line. */
+    private static final String SERVER_TUNNEL_IP = "Server tunnel IP is ";
+
+    /** Precedes the public address of the server. */
+    private static final String SERVER_ADDRESS = "Server is at ";
+
+    /** Precedes the raw endpoint. */
+    private static final String RAW_ENDPOINT = "directly to ";
+
+    /** Precedes the upstream codec. */
+    private static final String UPSTREAM_CODEC = "upstream to codec ";
+
+    /** Precedes the downstream codec. */
+    private static final String DOWNSTREAM_CODEC = "downstream to codec ";
+
+    /** Appears in the lines about lazy mode. */
+    private static final String LAZY_MODE = "lazy mode";
+
+    /** Precedes the fragment size. */
+    private static final String FRAGMENT_SIZE =
+        "Setting downstream fragment size to max ";
+
+    /** Prefix of the line printed once the tunnel is set up. */
+    private static final String CONNECTED = "Connection setup complete";
+
+    /** Prefix of the messages printed by warn() and err(). */
+    private static final String ERROR_PREFIX = "iodine: ";
+
+    /** Prefixes of errors printed without the program name. */
+    private static final String[] ERROR_PREFIXES = {
+        "Bad password", "Aborting", "No suitable"
+    };
+
+    /** Ends the protocol version mismatch error. */
+    private static final String GIVING_UP = "Giving up";
+
+    /** Markers of a refused switch to lazy mode. */
+    private static final String[] NOT_LAZY_MARKERS = {
+        "n't", "not", "falling back"
+    };
+
+    /** Where to send the events, may be null. */
+    private final IIodineEventListener mListener;
+
+    /** The current phase of the handshake. */
+    private Phase mPhase = Phase.LOGIN;
+
+    /** The DNS query type. */
+    private String mDnsType;
+
+    /** The server tunnel IP. */
+    private InetAddress mServerTunnelIp;
+
+    /** The public address of the server. */
+    private InetAddress mServerAddress;
+
+    /** The raw endpoint. */
+    private InetAddress mRawEndpoint;
+
+    /** The upstream codec. */
+    private String mUpstreamCodec;
+
+    /** The downstream codec. */
+    private String mDownstreamCodec;
+
+    /** The downstream fragment size, 0 if unknown. */
+    private int mFragmentSize;
+
+    /** Whether lazy mode is enabled. */
+    private boolean mLazyMode;
+
+    /** The last error message. */
+    private String mError;
+
+    /**
+     * Creates a parser.
+     * @param listener Where to send the events, may be null.
+     */
+    public IodineLogParser(final IIodineEventListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parses the next line of output.
+     * @param line The line, without the line terminator.
+     */
+    public void parseLine(final CharSequence line) {
+        if (mPhase == Phase.CONNECTED) {
+            return;
+        }
+
+        if (isError(line)) {
+            mError = line.toString();
+            emit(IodineEvent.Type.ERROR, mError, null, 0);
+            return;
+        }
+
+        if (startsWith(line, DNS_TYPE)) {
+            mDnsType = wordAt(line, DNS_TYPE.length());
+            emit(IodineEvent.Type.DNS_TYPE, mDnsType, null, 0);
+            return;
+        }
+
+        if (mPhase == Phase.LOGIN) {
+            if (startsWith(line, SERVER_TUNNEL_IP)) {
+                mServerTunnelIp = addressAt(line, SERVER_TUNNEL_IP.length());
+                if (mServerTunnelIp != null) {
+                    mPhase = Phase.OPTIONS;
+                    emit(IodineEvent.Type.SERVER_TUNNEL_IP, null,
+                            mServerTunnelIp, 0);
+                }
+            }
+            return;
+        }
+
+        parseOption(line);
+    }
+
+    /**
+     * Parses a line printed while the options are negotiated.
+     * @param line The line.
+     */
+    private void parseOption(final CharSequence line) {
+        int pos;
+
+        if ((pos = indexOf(line, SERVER_ADDRESS)) >= 0) {
+            mServerAddress = addressAt(line, pos + SERVER_ADDRESS.length());
+            if (mServerAddress != null) {
+                emit(IodineEvent.Type.SERVER_ADDRESS, null, mServerAddress, 0);
+            }
+        } else if ((pos = indexOf(line, RAW_ENDPOINT)) >= 0) {
+            mRawEndpoint = addressAt(line, pos + RAW_ENDPOINT.length());
+            if (mRawEndpoint != null) {
+                emit(IodineEvent.Type.RAW_ENDPOINT, null, mRawEndpoint, 0);
+            }
+        } else if ((pos = indexOf(line, UPSTREAM_CODEC)) >= 0) {
+            mUpstreamCodec = wordAt(line, pos + UPSTREAM_CODEC.length());
+            emit(IodineEvent.Type.UPSTREAM_CODEC, mUpstreamCodec, null, 0);
+        } else if ((pos = indexOf(line, DOWNSTREAM_CODEC)) >= 0) {
+            mDownstreamCodec = wordAt(line, pos + DOWNSTREAM_CODEC.length());
+            emit(IodineEvent.Type.DOWNSTREAM_CODEC, mDownstreamCodec, null, 0);
+        } else if (indexOf(line, LAZY_MODE) >= 0) {
+            mLazyMode = !containsAny(line, NOT_LAZY_MARKERS);
+            emit(IodineEvent.Type.LAZY_MODE, null, null, mLazyMode ? 1 : 0);
+        } else if (startsWith(line, FRAGMENT_SIZE)) {
+            int size = numberAt(line, FRAGMENT_SIZE.length());
+            if (size > 0) {
+                mFragmentSize = size;
+                emit(IodineEvent.Type.FRAGMENT_SIZE, null, null, size);
+            }
+        } else if (startsWith(line, CONNECTED)) {
+            mPhase = Phase.CONNECTED;
+            emit(IodineEvent.Type.CONNECTED, null, null, 0);
+        }
+    }
+
+    /**
+     * Only the start and the end of the line are looked at, so that
+     * the many lines printed while retrying cost little.
+     * @param line The line.
+     * @return Whether the line reports an error.
+     */
+    static boolean isError(final CharSequence line) {
+        if (startsWith(line, ERROR_PREFIX)) {
+            return true;
+        }
+        for (String p : ERROR_PREFIXES) {
+            if (startsWith(line, p)) {
+                return true;
+            }
+        }
+        return regionMatches(line, line.length() - GIVING_UP.length(), GIVING_UP);
+    }
+
+    /**
+     * Sends an event to the listener.
+     * @param type The kind of event.
+     * @param text The textual payload.
+     * @param address The address payload.
+     * @param value The numerical payload.
+     */
+    private void emit(
+            final IodineEvent.Type type,
+            final String text,
+            final InetAddress address,
+            final int value) {
+        if (mListener != null) {
+            mListener.onIodineEvent(new IodineEvent(type, text, address, value));
+        }
+    }
+
+    /**
+     * @return Whether the client printed its tunnel IP.
+     */
+    public boolean isLoggedIn() {
+        return mPhase != Phase.LOGIN;
+    }
+
+    /**
+     * @return Whether the client reported that the tunnel is set up.
+     */
+    public boolean isConnected() {
+        return mPhase == Phase.CONNECTED;
+    }
+
+    /**
+     * @return The DNS query type, null if unknown.
+     */
+    public String getDnsType() {
+        return mDnsType;
+    }
+
+    /**
+     * @return The server tunnel IP, null if unknown.
+     */
+    public InetAddress getServerTunnelIp() {
+        return mServerTunnelIp;
+    }
+
+    /**
+     * @return The public address of the server, null if the client
+     * did not try raw mode.
+     */
+    public InetAddress getServerAddress() {
+        return mServerAddress;
+    }
+
+    /**
+     * @return The raw endpoint, null if raw mode is not used.
+     */
+    public InetAddress getRawEndpoint() {
+        return mRawEndpoint;
+    }
+
+    /**
+     * @return The upstream codec, null if unknown.
+     */
+    public String getUpstreamCodec() {
+        return mUpstreamCodec;
+    }
+
+    /**
+     * @return The downstream codec, null if unknown.
+     */
+    public String getDownstreamCodec() {
+        return mDownstreamCodec;
+    }
+
+    /**
+     * @return The downstream fragment size, 0 if unknown.
+     */
+    public int getFragmentSize() {
+        return mFragmentSize;
+    }
+
+    /**
+     * @return Whether lazy mode is enabled.
+     */
+    public boolean isLazyMode() {
+        return mLazyMode;
+    }
+
+    /**
+     * @return The last error message, null if none.
+     */
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * @param s The text.
+     * @param prefix The prefix.
+     * @return Whether the text starts with the prefix.
+     */
+    private static boolean startsWith(final CharSequence s, final String prefix) {
+        return regionMatches(s, 0, prefix);
+    }
+
+    /**
+     * @param s The text.
+     * @param start Where to compare.
+     * @param str The string to compare with.
+     * @return Whether the string appears in the text at start.
+     */
+    private static boolean regionMatches(
+            final CharSequence s,
+            final int start,
+            final String str) {
+        int len = str.length();
+        if (start < 0 || start + len > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (s.charAt(start + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param s The text.
+     * @param str The string to look for.
+     * @return The first position of the string in the text, -1 if none.
+     */
+    private static int indexOf(final CharSequence s, final String str) {
+        int last = s.length() - str.length();
+        char first = str.charAt(0);
+        for (int i = 0; i <= last; ++i) {
+            if (s.charAt(i) == first && regionMatches(s, i, str)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param s The text.
+     * @param strs The strings to look for.
+     * @return Whether the text contains one of the strings.
+     */
+    private static boolean containsAny(final CharSequence s, final String[] strs) {
+        for (String str : strs) {
+            if (indexOf(s, str) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param s The text.
+     * @param start Where the word starts.
+     * @return The letters and digits at start.
+     */
+    private static String wordAt(final CharSequence s, final int start) {
+        int end = start;
+        while (end < s.length() && Character.isLetterOrDigit(s.charAt(end))) {
+            ++end;
+        }
+        return s.subSequence(start, end).toString();
+    }
+
+    /**
+     * @param s The text.
+     * @param start Where the number starts.
+     * @return The decimal number at start, 0 if none.
+     */
+    private static int numberAt(final CharSequence s, final int start) {
+        int value = 0;
+        int pos = start;
+        while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9'
+                && value < Integer.MAX_VALUE / 10) {
+            value = value * 10 + (s.charAt(pos) - '0');
+            ++pos;
+        }
+        return value;
+    }
+
+    /**
+     * @param s The text.
+     * @param start Where the address starts.
+     * @return The dotted-quad IPv4 address at start, null if none.
+     */
+    private static InetAddress addressAt(final CharSequence s, final int start) {
+        long v = IpRouteParser.parseV4(s, start, s.length());
+        if (v == IpRouteParser.INVALID_V4) {
+            return null;
+        }
+        return NetworkUtils.intToInetAddress((int) v);
+    }
+}
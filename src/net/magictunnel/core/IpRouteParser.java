@@ -0,0 +1,303 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * Single-pass parser for the lines printed by "ip route".
+ *
+ * It walks the characters of a line once, without regular
+ * expressions or substrings, and fills a RouteEntry in place.
+ * A parser and an entry can be reused for many lines.
+ * @author Vitaly
+ *
+ */
+public final class IpRouteParser {
+    /** Returned by {@link #parseV4(CharSequence, int, int)} on failure. */
+    public static final long INVALID_V4 = -1L;
+
+    /** The maximum length of a network mask. */
+    private static final int MAX_MASK_LENGTH = 32;
+
+    /** Number of components of a dotted-quad address. */
+    private static final int V4_COMPONENTS = 4;
+
+    /** Mask that keeps the low 32 bits of a long. */
+    private static final long LOW_32_BITS = 0xFFFFFFFFL;
+
+    /** Number of bits in an int. */
+    private static final int INT_BITS = 32;
+
+    /** Keyword that starts a default route line. */
+    private static final String DEFAULT = "default";
+
+    /** Keyword that precedes the gateway. */
+    private static final String VIA = "via";
+
+    /** Keyword that precedes the interface name. */
+    private static final String DEV = "dev";
+
+    /** The line being parsed. */
+    private CharSequence mLine;
+
+    /** Length of the line. */
+    private int mEnd;
+
+    /** Parse position. */
+    private int mPos;
+
+    /** Start of the current token. */
+    private int mTokenStart;
+
+    /** End of the current token. */
+    private int mTokenEnd;
+
+    /**
+     * Parses a line of "ip route" output.
+     * See {@link RouteEntry#fromIpRouteCommand(String)} for
+     * the supported formats.
+     * @param line The line to parse.
+     * @param re The entry to fill in. Its previous contents are discarded,
+     * except the interface name String, which is kept if it is unchanged.
+     * @return Whether the line describes a route.
+     */
+    public boolean parse(final CharSequence line, final RouteEntry re) {
+        mLine = line;
+        mEnd = line.length();
+        mPos = 0;
+
+        int destination = 0;
+        int mask = 0;
+        int gateway = 0;
+        String iface = null;
+
+        //Parse the destination, which is the first column
+        if (startsWith(DEFAULT)) {
+            mPos = DEFAULT.length();
+        } else {
+            long v = parseV4(line, 0, mEnd);
+            if (v == INVALID_V4) {
+                return false;
+            }
+            destination = (int) v;
+            mPos = (int) (v >>> INT_BITS);
+
+            int prefix = MAX_MASK_LENGTH;
+            if (mPos + 1 < mEnd && line.charAt(mPos) == '/'
+                    && isDigit(line.charAt(mPos + 1))) {
+                ++mPos;
+                prefix = 0;
+                while (mPos < mEnd && isDigit(line.charAt(mPos))) {
+                    prefix = prefix * 10 + (line.charAt(mPos) - '0');
+                    ++mPos;
+                }
+            }
+            mask = NetworkUtils.prefixLengthToMask(prefix);
+        }
+
+        boolean hasGateway = false;
+        boolean hasDevice = false;
+
+        while (nextToken()) {
+            if (!hasGateway && tokenIs(VIA)) {
+                if (!nextToken()) {
+                    break;
+                }
+                long v = parseV4(line, mTokenStart, mTokenEnd);
+                if (v != INVALID_V4) {
+                    gateway = (int) v;
+                    hasGateway = true;
+                }
+            } else if (!hasDevice && tokenIs(DEV)) {
+                if (!nextToken()) {
+                    break;
+                }
+                int end = mTokenStart;
+                while (end < mTokenEnd && isWordChar(line.charAt(end))) {
+                    ++end;
+                }
+                if (end > mTokenStart) {
+                    iface = reuseName(re.getInterfaceName(), mTokenStart, end);
+                    hasDevice = true;
+                }
+            }
+        }
+
+        re.setDestination(destination);
+        re.setMask(mask);
+        re.setGateway(gateway);
+        re.setInterfaceName(iface);
+        mLine = null;
+        return true;
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address at the start of s[start, end).
+     * Characters after the fourth component are ignored.
+     * Components that do not fit in an int yield the address 0,
+     * like {@link Integer#parseInt(String)} failing would.
+     * @param s The text.
+     * @param start Where the address starts.
+     * @param end Where the text ends.
+     * @return The address in network byte order in the low 32 bits and
+     * the position after the address in the high 32 bits, or INVALID_V4.
+     */
+    public static long parseV4(
+            final CharSequence s,
+            final int start,
+            final int end) {
+        int pos = start;
+        int result = 0;
+        boolean overflow = false;
+
+        for (int i = 0; i < V4_COMPONENTS; ++i) {
+            if (i > 0) {
+                if (pos >= end || s.charAt(pos) != '.') {
+                    return INVALID_V4;
+                }
+                ++pos;
+            }
+
+            int digitStart = pos;
+            long component = 0;
+            while (pos < end && isDigit(s.charAt(pos))) {
+                component = component * 10 + (s.charAt(pos) - '0');
+                if (component > Integer.MAX_VALUE) {
+                    overflow = true;
+                    component = 0;
+                }
+                ++pos;
+            }
+            if (pos == digitStart) {
+                return INVALID_V4;
+            }
+
+            //Same arithmetic as the original split-based conversion
+            result += ((int) component) << (i * 8);
+        }
+
+        if (overflow) {
+            result = 0;
+        }
+        return (result & LOW_32_BITS) | ((long) pos << INT_BITS);
+    }
+
+    /**
+     * @param prefix A keyword.
+     * @return Whether the line starts with the keyword.
+     */
+    private boolean startsWith(final String prefix) {
+        int len = prefix.length();
+        if (mEnd < len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (mLine.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next whitespace-separated token.
+     * @return Whether there is a token.
+     */
+    private boolean nextToken() {
+        while (mPos < mEnd && isBlank(mLine.charAt(mPos))) {
+            ++mPos;
+        }
+        if (mPos >= mEnd) {
+            return false;
+        }
+
+        mTokenStart = mPos;
+        while (mPos < mEnd && !isBlank(mLine.charAt(mPos))) {
+            ++mPos;
+        }
+        mTokenEnd = mPos;
+        return true;
+    }
+
+    /**
+     * @param keyword The keyword to compare with.
+     * @return Whether the current token is the keyword.
+     */
+    private boolean tokenIs(final String keyword) {
+        int len = keyword.length();
+        if (mTokenEnd - mTokenStart != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (mLine.charAt(mTokenStart + i) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the interface name found in the line, reusing
+     * the previous name of the entry if it is the same.
+     * @param previous The name previously held by the entry.
+     * @param start Start of the name in the line.
+     * @param end End of the name in the line.
+     * @return The interface name.
+     */
+    private String reuseName(
+            final String previous,
+            final int start,
+            final int end) {
+        int len = end - start;
+        if (previous != null && previous.length() == len) {
+            int i = 0;
+            while (i < len && previous.charAt(i) == mLine.charAt(start + i)) {
+                ++i;
+            }
+            if (i == len) {
+                return previous;
+            }
+        }
+        return mLine.subSequence(start, end).toString();
+    }
+
+    /**
+     * @param c A character.
+     * @return Whether the character is a decimal digit.
+     */
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @param c A character.
+     * @return Whether the character separates tokens.
+     */
+    private static boolean isBlank(final char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * @param c A character.
+     * @return Whether the character can be part of an interface name.
+     */
+    private static boolean isWordChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+            || isDigit(c) || c == '_';
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-capacity ring buffer of timestamped log messages.
+ *
+ * One thread appends, without taking locks; any thread may read.
+ * Messages are numbered from 0. Once the buffer is full, each new
+ * message overwrites the oldest one, and readers get null for the
+ * messages that are gone.
+ * @author Vitaly
+ *
+ */
+public final class LogBuffer {
+    /** A message and the time it was logged. */
+    public static final class Record {
+        /** The number of the message. */
+        private final long mSequence;
+
+        /** When the message was logged, in ms since the epoch. */
+        private final long mTime;
+
+        /** The message. */
+        private final String mMessage;
+
+        /**
+         * Creates a record.
+         * @param sequence The number of the message.
+         * @param time When the message was logged.
+         * @param message The message.
+         */
+        private Record(final long sequence, final long time, final String message) {
+            mSequence = sequence;
+            mTime = time;
+            mMessage = message;
+        }
+
+        /**
+         * @return When the message was logged, in ms since the epoch.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return The message.
+         */
+        public String getMessage() {
+            return mMessage;
+        }
+    }
+
+    /** The slots of the ring, indexed by sequence & mMask. */
+    private final Record[] mRecords;
+
+    /** Turns a sequence number into a slot index. */
+    private final int mMask;
+
+    /**
+     * The number of the next message. Setting it publishes
+     * the record written just before.
+     */
+    private final AtomicLong mEnd = new AtomicLong();
+
+    /**
+     * Creates a buffer.
+     * @param capacity The number of messages to keep,
+     * rounded up to a power of two.
+     */
+    public LogBuffer(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mRecords = new Record[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Appends a message. Only one thread may call this at a time.
+     * @param message The message.
+     */
+    public void append(final String message) {
+        long seq = mEnd.get();
+        mRecords[(int) seq & mMask] = new Record(
+                seq, System.currentTimeMillis(), message);
+        mEnd.lazySet(seq + 1);
+    }
+
+    /**
+     * @return The number of the oldest message still in the buffer.
+     */
+    public long getFirst() {
+        return Math.max(0, mEnd.get() - mRecords.length);
+    }
+
+    /**
+     * @return The number of the next message to be appended.
+     */
+    public long getEnd() {
+        return mEnd.get();
+    }
+
+    /**
+     * @return The number of messages in the buffer.
+     */
+    public int size() {
+        return (int) Math.min(mEnd.get(), mRecords.length);
+    }
+
+    /**
+     * @return Whether no message was ever appended.
+     */
+    public boolean isEmpty() {
+        return mEnd.get() == 0;
+    }
+
+    /**
+     * @param sequence The number of a message.
+     * @return The message, null if it was overwritten or
+     * is not appended yet.
+     */
+    public Record get(final long sequence) {
+        if (sequence < 0 || sequence >= mEnd.get()) {
+            return null;
+        }
+
+        //The slot may have been reused by a newer message since
+        Record r = mRecords[(int) sequence & mMask];
+        if (r == null || r.mSequence != sequence) {
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * @return The messages of the buffer, one per line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        long end = getEnd();
+        for (long i = Math.max(0, end - mRecords.length); i < end; ++i) {
+            Record r = get(i);
+            if (r != null) {
+                b.append(r.getMessage()).append('\n');
+            }
+        }
+        return b.toString();
+    }
+}
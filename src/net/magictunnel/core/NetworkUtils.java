@@ -18,9 +18,6 @@
 
 package net.magictunnel.core;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -33,7 +30,9 @@ import java.util.List;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
 /**
@@ -47,7 +46,7 @@ public final class NetworkUtils {
     private static final String TAG = "NetworkUtils";
 
     /** Size of the host route prefix. */
-    private static final int HOST_ROUTE_PREFIX_IPV4 = 32;
+    static final int HOST_ROUTE_PREFIX_IPV4 = 32;
 
     /** Size of the host route prefix. */
     private static final int HOST_ROUTE_PREFIX_IPV6 = 128;
@@ -55,6 +54,9 @@ public final class NetworkUtils {
     /** Mask for extracting the lowest byte. */
     private static final int BYTE_MASK = 0xFF;
 
+    /** The system properties hold up to this many DNS servers. */
+    private static final int MAX_DNS_SERVERS = 4;
+
     /** This class is not supposed to be instantiated. */
     private NetworkUtils() {
 
@@ -82,8 +84,10 @@ public final class NetworkUtils {
         }
         cmd = cmd + " dev " + interfaceName;
 
-        Commands cmds = new Commands();
-        return cmds.runCommandAsRootAndWait(cmd);
+        Trace.Span span = Tracer.begin("routes: add");
+        int status = Commands.runInRootShell(cmd).getExitCode();
+        span.end();
+        return status;
     }
 
     /**
@@ -159,18 +163,10 @@ public final class NetworkUtils {
      */
     public static int removeDefaultRoute(final String interfaceName) {
         String cmd = "ip route delete default dev " + interfaceName;
-        Commands cmds = new Commands();
-        return cmds.runCommandAsRootAndWait(cmd);
-
-    }
-
-    /**
-     * Delete all routes from the system.
-     */
-    public static void removeAllRoutes() {
-        Commands cmds = new Commands();
-        String cmd = "ip route flush table main";
-        cmds.runCommandAsRootAndWait(cmd);
+        Trace.Span span = Tracer.begin("routes: delete default");
+        int status = Commands.runInRootShell(cmd).getExitCode();
+        span.end();
+        return status;
     }
 
     /**
@@ -213,19 +209,24 @@ public final class NetworkUtils {
     }
 
     /**
-     * Activate the specified routes.
-     * @param routes The list of routes to add.
+     * Bring the main table back to the specified routes.
+     * Only the routes that differ are deleted or added, and this is
+     * done atomically: if one change fails, the routing table is
+     * left untouched.
+     * @param routes The list of routes that should be active.
+     * @return Whether the routes were restored.
      */
-    public static void restoreRoutes(final List<RouteEntry> routes) {
-        for (RouteEntry re : routes) {
-            String dst = intToInetAddress(re.getDestination()).getHostAddress();
-            String gw = null;
-            if (re.getGateway() != 0) {
-                gw = intToInetAddress(re.getGateway()).getHostAddress();
+    public static boolean restoreRoutes(final List<RouteEntry> routes) {
+        Trace.Span span = Tracer.begin("routes: restore");
+        try {
+            List<RouteEntry> current = getRoutes();
+            RouteDiff diff = RouteDiff.compute(current, routes);
+            if (diff.isEmpty()) {
+                return true;
             }
-
-            addRoute(re.getInterfaceName(), dst,
-                    maskToPrefixLength(re.getMask()), gw);
+            return diff.appendTo(new RouteTransaction()).commit(current);
+        } finally {
+            span.end();
         }
     }
 
@@ -261,22 +262,11 @@ public final class NetworkUtils {
      * @return The 32-bits address.
      */
     public static int v4StringToInt(final String str) {
-        int result = 0;
-        String[] array = str.split("\\.");
-
-        if (array.length != 4) {
-            return 0;
-        }
-
-        try {
-            result = Integer.parseInt(array[3]);
-            result = (result << 8) + Integer.parseInt(array[2]);
-            result = (result << 8) + Integer.parseInt(array[1]);
-            result = (result << 8) + Integer.parseInt(array[0]);
-        } catch (NumberFormatException e) {
+        long v = IpRouteParser.parseV4(str, 0, str.length());
+        if (v == IpRouteParser.INVALID_V4 || (v >>> 32) != str.length()) {
             return 0;
         }
-        return result;
+        return (int) v;
     }
 
 
@@ -315,6 +305,66 @@ public final class NetworkUtils {
         return null;
     }
 
+    /**
+     * @return The DNS servers of the system, from net.dns1 to net.dns4,
+     * without duplicates. The list is empty if none is set.
+     */
+    public static List<InetAddress> getDnsServers() {
+        StringBuilder cmd = new StringBuilder();
+        for (int i = 1; i <= MAX_DNS_SERVERS; ++i) {
+            if (i > 1) {
+                cmd.append("; ");
+            }
+            cmd.append("getprop net.dns").append(i);
+        }
+
+        List<InetAddress> servers = new ArrayList<InetAddress>();
+        CommandResult res = Commands.runInRootShell(cmd.toString());
+        for (String line : res.getStdOut()) {
+            InetAddress a = parseNumericAddress(line.trim());
+            if (a != null && !servers.contains(a)) {
+                servers.add(a);
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Parses a list of IPv4 addresses, such as the resolvers of a
+     * profile. The invalid entries are skipped.
+     * @param list The addresses, separated by commas or spaces.
+     * @return The addresses.
+     */
+    public static List<InetAddress> parseAddresses(final String list) {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        if (list == null) {
+            return addresses;
+        }
+        for (String s : list.split("[,\\s]+")) {
+            InetAddress a = parseNumericAddress(s);
+            if (a != null && !addresses.contains(a)) {
+                addresses.add(a);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @param s A dotted-quad IPv4 address.
+     * @return The address, null if the string is not one. No name
+     * lookup is done.
+     */
+    private static InetAddress parseNumericAddress(final String s) {
+        if (s.length() == 0) {
+            return null;
+        }
+        int v = v4StringToInt(s);
+        if (v == 0) {
+            return null;
+        }
+        return intToInetAddress(v);
+    }
+
     /**
      * XXX: find other standard ways of doing it.
      * @return The DNS server address.
@@ -322,16 +372,17 @@ public final class NetworkUtils {
     public static InetAddress getDns() {
         String cmd = "getprop net.dns1";
 
-        Commands cmds = new Commands();
-        cmds.runCommandAsRoot(cmd);
-        Process p = cmds.getProcess();
+        CommandResult res = Commands.runInRootShell(cmd);
+        if (res.getStdOut().isEmpty()) {
+            return null;
+        }
 
-        String line;
-        BufferedReader in =
-            new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line = res.getStdOut().get(0).trim();
+        if (line.length() == 0) {
+            return null;
+        }
 
         try {
-            line = in.readLine();
             return InetAddress.getByName(line);
         } catch (Exception e) {
             return null;
@@ -367,43 +418,39 @@ public final class NetworkUtils {
 
     /**
      * Retrieves all the network routes from the system.
+     * The kernel table in /proc is used when it is readable,
+     * the output of "ip route" otherwise.
      * @return The list of routes.
      */
     public static List<RouteEntry> getRoutes() {
-        List<RouteEntry> routes = new ArrayList<RouteEntry>();
-        Commands cmds = new Commands();
-        cmds.runCommandAsRoot("ip route");
-
-        String line;
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(cmds.getProcess().getInputStream()));
-
+        Trace.Span span = Tracer.begin("routes: read");
         try {
-            while ((line = in.readLine()) != null) {
-                //Get the destination
-                RouteEntry re = RouteEntry.fromIpRouteCommand(line);
-                if (re != null) {
-                    routes.add(re);
-                }
+            List<RouteEntry> routes = ProcRouteReader.readIpv4Routes();
+            if (routes != null) {
+                return routes;
             }
-        } catch (IOException e) {
-            return routes;
+            return getRoutesFromIpCommand();
+        } finally {
+            span.end();
         }
-        return routes;
     }
 
     /**
-     * Get the interface name associated with the default route.
-     * @return The interface name.
+     * Retrieves the routes by parsing the output of "ip route".
+     * @return The list of routes.
      */
-    public static String getDefaultRouteIface() {
-        List<RouteEntry> routes = getRoutes();
-        RouteEntry re = getDefaultRoute(routes);
-        if (re == null) {
-            return null;
-        }
+    public static List<RouteEntry> getRoutesFromIpCommand() {
+        List<RouteEntry> routes = new ArrayList<RouteEntry>();
+        CommandResult res = Commands.runInRootShell("ip route");
+        IpRouteParser parser = new IpRouteParser();
 
-        return re.getInterfaceName();
+        for (String line : res.getStdOut()) {
+            RouteEntry re = new RouteEntry();
+            if (parser.parse(line, re)) {
+                routes.add(re);
+            }
+        }
+        return routes;
     }
 
     /**
@@ -422,19 +469,43 @@ public final class NetworkUtils {
     }
 
     /**
-     * Verifies that Internet is reachable.
-     * @param interfaceName The name of the network interface.
-     * @return whether the default route on interfaceName exists
+     * Builds a name for the network the device is attached to, made of
+     * the access point (or the mobile operator) and the resolver.
+     * @param ctx The Android context.
+     * @param resolver The DNS resolver, may be null.
+     * @return The name of the network, null if there is no connectivity.
      */
-    public static boolean checkRoutes(final String interfaceName) {
-        List<RouteEntry> routes = getRoutes();
-        RouteEntry oldDefaultRoute =
-            getDefaultRoute(routes, interfaceName);
+    public static String getNetworkIdentity(
+            final Context ctx,
+            final InetAddress resolver) {
+        ConnectivityManager mgr = (ConnectivityManager) ctx.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = mgr.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return null;
+        }
 
-        if (oldDefaultRoute == null) {
-            return false;
+        StringBuilder b = new StringBuilder();
+        if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+            WifiManager wifi =
+                (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wi = wifi.getConnectionInfo();
+            String id = wi == null ? null : wi.getBSSID();
+            if (id == null && wi != null) {
+                id = wi.getSSID();
+            }
+            b.append("wifi:").append(id);
+        } else {
+            TelephonyManager tm = (TelephonyManager) ctx.getSystemService(
+                    Context.TELEPHONY_SERVICE);
+            b.append("mobile:").append(tm.getNetworkOperator());
+        }
+
+        b.append('/');
+        if (resolver != null) {
+            b.append(resolver.getHostAddress());
         }
-        return true;
+        return b.toString();
     }
 
     /**
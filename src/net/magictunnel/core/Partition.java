@@ -81,7 +81,7 @@ public class Partition {
      * @param file The partition file.
      * @return A mapping from mount point to PartitionInfo.
      */
-    private Map<String, PartitionInfo> readPartitions(
+    static Map<String, PartitionInfo> readPartitions(
             final BufferedReader file) {
 
         Map<String, PartitionInfo> partitions =
@@ -0,0 +1,77 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * Waits for a condition to become true, polling it with an
+ * exponential backoff, instead of sleeping for a fixed time.
+ * @author Vitaly
+ *
+ */
+public final class Poller {
+    /** Delay before the second check, in ms. */
+    private static final long INITIAL_DELAY = 10;
+
+    /** Upper bound of the delay between two checks, in ms. */
+    private static final long MAX_DELAY = 250;
+
+    /**
+     * A condition to wait for.
+     */
+    public interface Condition {
+        /**
+         * @return Whether the condition is met.
+         */
+        boolean isMet();
+    }
+
+    /** This class is not supposed to be instantiated. */
+    private Poller() {
+
+    }
+
+    /**
+     * Waits until the condition is met or the timeout expires.
+     * The condition is checked right away, then after delays that
+     * double from 10 ms up to 250 ms.
+     * @param c The condition.
+     * @param timeout The maximum time to wait, in ms.
+     * @return Whether the condition was met.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    public static boolean waitFor(final Condition c, final long timeout)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long delay = INITIAL_DELAY;
+
+        while (true) {
+            if (c.isMet()) {
+                return true;
+            }
+
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+
+            Thread.sleep(Math.min(delay, left));
+            delay = Math.min(delay * 2, MAX_DELAY);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the kernel routing table from /proc/net/route,
+ * which needs neither root nor a child process.
+ *
+ * The file is parsed byte by byte: the hexadecimal fields are
+ * decoded in place and only the interface names become Strings.
+ * @author Vitaly
+ *
+ */
+public final class ProcRouteReader {
+    /** The IPv4 routing table. */
+    public static final String PROC_ROUTE = "/proc/net/route";
+
+    /** The route is up (RTF_UP). */
+    private static final int RTF_UP = 0x0001;
+
+    /** Initial size of the read buffer. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /** The contents of the file being parsed. */
+    private byte[] mBuf = new byte[BUFFER_SIZE];
+
+    /** Number of valid bytes in mBuf. */
+    private int mLength;
+
+    /** Parse position in mBuf. */
+    private int mPos;
+
+    /** Interface names seen so far, reused across lines. */
+    private List<String> mNames = new ArrayList<String>();
+
+    /** Use {@link #readIpv4Routes()}. */
+    private ProcRouteReader() {
+
+    }
+
+    /**
+     * Reads the IPv4 routes.
+     * @return The routes, or null if the table could not be read.
+     */
+    public static List<RouteEntry> readIpv4Routes() {
+        ProcRouteReader r = new ProcRouteReader();
+        if (!r.load(PROC_ROUTE)) {
+            return null;
+        }
+        return r.parseIpv4();
+    }
+
+    /**
+     * Reads the whole file into the buffer.
+     * @param path The file to read.
+     * @return Whether the file could be read.
+     */
+    private boolean load(final String path) {
+        FileInputStream in = null;
+        mLength = 0;
+        mPos = 0;
+        try {
+            in = new FileInputStream(path);
+            int count;
+            while ((count = in.read(mBuf, mLength, mBuf.length - mLength)) > 0) {
+                mLength += count;
+                if (mLength == mBuf.length) {
+                    byte[] b = new byte[mBuf.length * 2];
+                    System.arraycopy(mBuf, 0, b, 0, mLength);
+                    mBuf = b;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses lines of the form (after a header line):
+     * Iface Destination Gateway Flags RefCnt Use Metric Mask MTU Window IRTT
+     * wlan0 0000A8C0 00000000 0001 0 0 0 00FFFFFF 0 0 0
+     *
+     * The addresses are printed as the hexadecimal value of the
+     * raw 32-bit word, which is what RouteEntry stores on
+     * little-endian machines.
+     * @return The routes.
+     */
+    private List<RouteEntry> parseIpv4() {
+        List<RouteEntry> routes = new ArrayList<RouteEntry>();
+        boolean swap = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+        skipLine();
+        while (mPos < mLength) {
+            String iface = readName();
+            int dst = (int) readHex();
+            int gw = (int) readHex();
+            int flags = (int) readHex();
+            skipField();
+            skipField();
+            skipField();
+            int mask = (int) readHex();
+            skipLine();
+
+            if (iface == null || (flags & RTF_UP) == 0) {
+                continue;
+            }
+
+            if (swap) {
+                dst = Integer.reverseBytes(dst);
+                gw = Integer.reverseBytes(gw);
+                mask = Integer.reverseBytes(mask);
+            }
+
+            RouteEntry re = new RouteEntry();
+            re.setInterfaceName(iface);
+            re.setDestination(dst);
+            re.setGateway(gw);
+            re.setMask(mask);
+            routes.add(re);
+        }
+        return routes;
+    }
+
+    /** Skips the spaces and tabs at the parse position. */
+    private void skipBlanks() {
+        while (mPos < mLength && (mBuf[mPos] == ' ' || mBuf[mPos] == '\t')) {
+            ++mPos;
+        }
+    }
+
+    /** Skips the current field. */
+    private void skipField() {
+        skipBlanks();
+        while (mPos < mLength && !isSeparator(mBuf[mPos])) {
+            ++mPos;
+        }
+    }
+
+    /** Moves to the beginning of the next line. */
+    private void skipLine() {
+        while (mPos < mLength && mBuf[mPos] != '\n') {
+            ++mPos;
+        }
+        ++mPos;
+    }
+
+    /**
+     * @param b A character of the file.
+     * @return Whether the character ends a field.
+     */
+    private static boolean isSeparator(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n';
+    }
+
+    /**
+     * @param b A character of the file.
+     * @return The value of the hexadecimal digit, -1 if it is not one.
+     */
+    private static int hexDigit(final byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a hexadecimal field.
+     * @return The value of the field.
+     */
+    private long readHex() {
+        skipBlanks();
+        long value = 0;
+        int d;
+        while (mPos < mLength && (d = hexDigit(mBuf[mPos])) >= 0) {
+            value = (value << 4) | d;
+            ++mPos;
+        }
+        return value;
+    }
+
+    /**
+     * Reads an interface name, reusing the String of an
+     * earlier line when the name is the same.
+     * @return The name, null if the field is empty.
+     */
+    private String readName() {
+        skipBlanks();
+        int start = mPos;
+        while (mPos < mLength && !isSeparator(mBuf[mPos])) {
+            ++mPos;
+        }
+
+        int len = mPos - start;
+        if (len == 0) {
+            return null;
+        }
+
+        for (String n : mNames) {
+            if (n.length() != len) {
+                continue;
+            }
+            int i = 0;
+            while (i < len && n.charAt(i) == mBuf[start + i]) {
+                ++i;
+            }
+            if (i == len) {
+                return n;
+            }
+        }
+
+        char[] chars = new char[len];
+        for (int i = 0; i < len; ++i) {
+            chars[i] = (char) (mBuf[start + i] & 0xFF);
+        }
+        String n = new String(chars);
+        mNames.add(n);
+        return n;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Random;
+
+import net.magictunnel.settings.DnsProtocol;
+
+/**
+ * Checks whether the tunnel server is reachable directly, without
+ * going through the resolver, so that the client can be told to skip
+ * its own raw mode detection (-r) when it would fail.
+ *
+ * The check sends a query for the tunnel domain straight to the
+ * public address of the server. Any reply means that UDP traffic gets
+ * through both ways. The query is sent by {@link #start}, which does
+ * not block, and the reply is collected by {@link #await}, so that the
+ * check runs while the connection is being prepared.
+ * @author Vitaly
+ *
+ */
+public class RawPreflight {
+    /** The default time to wait for the reply, in ms. */
+    public static final int DEFAULT_TIMEOUT = 400;
+
+    /** Size of the receive buffer. */
+    private static final int MAX_PACKET = 4096;
+
+    /** Range of the query ids. */
+    private static final int MAX_ID = 0x10000;
+
+    /** Radix of the random label. */
+    private static final int LABEL_RADIX = 36;
+
+    /** The public address and port of the server. */
+    private final InetSocketAddress mServer;
+
+    /** The tunnel domain. */
+    private final String mDomain;
+
+    /** The channel the query was sent on, null if not started. */
+    private DatagramChannel mChannel;
+
+    /** Waits for the reply. */
+    private Selector mSelector;
+
+    /** The id of the query. */
+    private int mId;
+
+    /** When to stop waiting for the reply. */
+    private long mDeadline;
+
+    /**
+     * Creates a check.
+     * @param server The public address and port of the server.
+     * @param domain The tunnel domain.
+     */
+    public RawPreflight(final InetSocketAddress server, final String domain) {
+        mServer = server;
+        mDomain = domain;
+    }
+
+    /**
+     * Sends the query, without waiting for the reply.
+     * @param timeout How long the reply may take, in ms.
+     * @throws IOException if the query could not be sent.
+     */
+    public final void start(final int timeout) throws IOException {
+        Random random = new Random();
+        mId = random.nextInt(MAX_ID);
+        String name = "z" + Long.toString(random.nextLong() & Long.MAX_VALUE,
+                LABEL_RADIX) + "." + mDomain;
+        byte[] query = DnsProbe.buildQuery(mId, name,
+                DnsCodec.getRecordType(DnsProtocol.NULL));
+
+        mDeadline = System.currentTimeMillis() + timeout;
+        mChannel = DatagramChannel.open();
+        try {
+            mChannel.configureBlocking(false);
+            mChannel.connect(mServer);
+            mSelector = Selector.open();
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+            mChannel.write(ByteBuffer.wrap(query));
+        } catch (IOException e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the reply until the timeout given to {@link #start}
+     * expires, then releases the channel. A reply that came in before
+     * the deadline counts even when this is called after it.
+     * @return Whether the server replied.
+     */
+    public final boolean await() {
+        if (mChannel == null) {
+            return false;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET);
+        try {
+            while (true) {
+                long left = mDeadline - System.currentTimeMillis();
+
+                //Past the deadline, only look at what is already queued
+                int ready;
+                if (left > 0) {
+                    ready = mSelector.select(left);
+                } else {
+                    ready = mSelector.selectNow();
+                }
+                if (ready == 0) {
+                    if (left <= 0) {
+                        return false;
+                    }
+                    continue;
+                }
+                mSelector.selectedKeys().clear();
+
+                buf.clear();
+                if (mChannel.read(buf) > 0
+                        && DnsProbe.isReplyTo(buf.array(), buf.position(), mId)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            //E.g., an ICMP port unreachable was received
+            return false;
+        } finally {
+            cancel();
+        }
+    }
+
+    /**
+     * Releases the channel without waiting for the reply.
+     */
+    public final void cancel() {
+        try {
+            if (mSelector != null) {
+                mSelector.close();
+            }
+            if (mChannel != null) {
+                mChannel.close();
+            }
+        } catch (IOException e) {
+            //Nothing to do
+        }
+        mSelector = null;
+        mChannel = null;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The resolvers that the tunnel can go through, with their measured
+ * round trip time and loss rate. Each launch of the iodine binary is
+ * given one of them.
+ *
+ * Each pick is random, with a weight that grows with the delivery
+ * rate of the resolver and shrinks with its round trip time, so that
+ * the fast and reliable resolvers carry most of the traffic
+ * while the others keep being measured.
+ *
+ * The pool is set at connect time and updated when the connectivity
+ * changes. The entries of the resolvers that stay keep their figures.
+ * The methods are thread-safe.
+ * @author Vitaly
+ *
+ */
+public class ResolverPool {
+    /** Round trip time assumed for a new resolver, in ms. */
+    private static final double INITIAL_RTT = 300;
+
+    /** Smallest round trip time, in ms, to bound the weights. */
+    private static final double MIN_RTT = 5;
+
+    /** Weight of a new sample in the averages. */
+    private static final double GAIN = 0.125;
+
+    /** Highest loss rate used in the weights, so that no resolver starves. */
+    private static final double MAX_LOSS = 0.95;
+
+    /**
+     * A resolver of the pool.
+     */
+    public static final class Entry {
+        /** The address of the resolver. */
+        private final InetSocketAddress mAddress;
+
+        /** Smoothed round trip time, in ms. */
+        private double mRtt = INITIAL_RTT;
+
+        /** Smoothed loss rate, between 0 and 1. */
+        private double mLoss;
+
+        /**
+         * @param address The address of the resolver.
+         */
+        private Entry(final InetSocketAddress address) {
+            mAddress = address;
+        }
+
+        /**
+         * @return The address of the resolver.
+         */
+        public InetSocketAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return The weight of the resolver.
+         */
+        private double getWeight() {
+            return (1 - Math.min(mLoss, MAX_LOSS)) / Math.max(mRtt, MIN_RTT);
+        }
+    }
+
+    /** The resolvers. */
+    private Entry[] mEntries;
+
+    /** Picks the resolvers. */
+    private final Random mRandom = new Random();
+
+    /**
+     * Creates a pool.
+     * @param resolvers The resolvers, at least one.
+     */
+    public ResolverPool(final List<InetSocketAddress> resolvers) {
+        mEntries = new Entry[0];
+        update(resolvers);
+    }
+
+    /**
+     * Replaces the resolvers. Those already in the pool keep their
+     * figures. The pool is left as it is if the list is empty.
+     * @param resolvers The new resolvers.
+     * @return The resolvers that were not in the pool.
+     */
+    public final synchronized List<InetSocketAddress> update(
+            final List<InetSocketAddress> resolvers) {
+        List<InetSocketAddress> added = new ArrayList<InetSocketAddress>();
+        if (resolvers.isEmpty()) {
+            return added;
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (InetSocketAddress a : resolvers) {
+            if (find(entries, a) != null) {
+                continue;
+            }
+            Entry e = find(a);
+            if (e == null) {
+                e = new Entry(a);
+                added.add(a);
+            }
+            entries.add(e);
+        }
+        mEntries = entries.toArray(new Entry[entries.size()]);
+        return added;
+    }
+
+    /**
+     * @param address An address.
+     * @return The entry of the pool with that address, null if none.
+     */
+    private Entry find(final InetSocketAddress address) {
+        for (Entry e : mEntries) {
+            if (e.mAddress.equals(address)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param entries Some entries.
+     * @param address An address.
+     * @return The entry with that address, null if none.
+     */
+    private static Entry find(final List<Entry> entries, final InetSocketAddress address) {
+        for (Entry e : entries) {
+            if (e.mAddress.equals(address)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The addresses of the resolvers.
+     */
+    public final synchronized List<InetSocketAddress> getAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (Entry e : mEntries) {
+            addresses.add(e.mAddress);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return The resolvers.
+     */
+    public final synchronized Entry[] getEntries() {
+        return mEntries.clone();
+    }
+
+    /**
+     * Picks the resolver of the next query.
+     * @return The resolver.
+     */
+    public final synchronized Entry pick() {
+        Entry[] entries = mEntries;
+        if (entries.length == 1) {
+            return entries[0];
+        }
+
+        double total = 0;
+        for (Entry e : entries) {
+            total += e.getWeight();
+        }
+        double r = mRandom.nextDouble() * total;
+        for (Entry e : entries) {
+            r -= e.getWeight();
+            if (r < 0) {
+                return e;
+            }
+        }
+        return entries[entries.length - 1];
+    }
+
+    /**
+     * Records the reply to a query.
+     * @param e The resolver the query went to.
+     * @param rtt The round trip time in ms, negative if it does not
+     * tell anything about the resolver, like for a query that the
+     * server held.
+     */
+    public final synchronized void onReply(final Entry e, final long rtt) {
+        e.mLoss -= GAIN * e.mLoss;
+        if (rtt >= 0) {
+            e.mRtt += GAIN * (rtt - e.mRtt);
+        }
+    }
+
+    /**
+     * Records a query that got no reply.
+     * @param e The resolver the query went to.
+     */
+    public final synchronized void onLoss(final Entry e) {
+        e.mLoss += GAIN * (1 - e.mLoss);
+    }
+
+    /**
+     * @param e A resolver.
+     * @return Its smoothed round trip time, in ms.
+     */
+    public final synchronized long getRtt(final Entry e) {
+        return Math.round(e.mRtt);
+    }
+
+    /**
+     * @param e A resolver.
+     * @return Its smoothed loss rate, in percent.
+     */
+    public final synchronized int getLossPercent(final Entry e) {
+        return (int) Math.round(e.mLoss * 100);
+    }
+
+    @Override
+    public final synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : mEntries) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(e.mAddress.getAddress().getHostAddress());
+            sb.append(" (").append(getRtt(e)).append(" ms, ");
+            sb.append(getLossPercent(e)).append("% lost)");
+        }
+        return sb.toString();
+    }
+}
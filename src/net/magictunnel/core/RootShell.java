@@ -0,0 +1,326 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * A long-lived root shell that runs many commands
+ * over a single su process.
+ *
+ * Each command is followed by marker lines on stdout
+ * and stderr, which tell where its output ends and carry
+ * its exit code. If the shell dies, it is respawned
+ * on the next command. A command is never sent twice: if the shell
+ * dies under it, it fails, as it may have run already. A command that misses its deadline
+ * is abandoned along with the shell, which is killed.
+ * @author Vitaly
+ *
+ */
+public class RootShell {
+    /** Logging tag. */
+    private static final String TAG = "RootShell";
+
+    /** Prefix of the end-of-command markers. */
+    private static final String MARKER_PREFIX = "__MAGICTUNNEL_";
+
+    /** Queued on the output queues when the shell closes the pipe. */
+    private static final String EOF = new String("EOF");
+
+    /** Random tag that makes markers unique to this session. */
+    private final String mSession =
+        Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+
+    /** Number of commands issued so far. */
+    private long mSerial = 0;
+
+    /** The su process. */
+    private Process mProc;
+
+    /** Where commands are written to. */
+    private OutputStreamWriter mStdIn;
+
+    /** Lines read from stdout by the background reader. */
+    private LinkedBlockingQueue<String> mStdOutLines;
+
+    /** Lines read from stderr by the background reader. */
+    private LinkedBlockingQueue<String> mStdErrLines;
+
+    /**
+     * Runs the command in the shell and waits for it to complete,
+     * for {@link Commands#DEFAULT_TIMEOUT} at most.
+     * @param command The command to run.
+     * @return The exit code and the output of the command.
+     */
+    public final CommandResult run(final String command) {
+        return run(command, Commands.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Runs the command in the shell and waits for it to complete.
+     * The command runs in a subshell with /dev/null as its input.
+     * If it does not complete before the deadline, the shell is killed
+     * and the result holds the output printed so far.
+     * @param command The command to run.
+     * @param timeout The deadline, in ms.
+     * @return The exit code and the output of the command.
+     */
+    public final synchronized CommandResult run(
+            final String command, final long timeout) {
+        Trace.Span span = Tracer.begin("root shell: " + Tracer.programOf(command));
+        try {
+            if (!isAlive()) {
+                Trace.Span su = Tracer.begin("su");
+                try {
+                    start();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not start su: " + e.getMessage());
+                    close();
+                    return CommandResult.failure("Could not get a root shell");
+                } finally {
+                    su.end();
+                }
+            }
+
+            try {
+                return execute(command, timeout);
+            } catch (IOException e) {
+                //Part of the command may have reached the shell
+                Log.w(TAG, "Root shell died: " + e.getMessage());
+                close();
+                return CommandResult.failure("Root shell died");
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                return CommandResult.failure("Interrupted");
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * @return Whether the su process is running.
+     */
+    public final synchronized boolean isAlive() {
+        if (mProc == null) {
+            return false;
+        }
+
+        try {
+            mProc.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Terminates the su process.
+     * A new one is spawned by the next command.
+     */
+    public final synchronized void close() {
+        if (mProc == null) {
+            return;
+        }
+
+        try {
+            mStdIn.close();
+        } catch (IOException e) {
+            //The shell is going away anyway
+        }
+        Commands.destroy(mProc);
+        mProc = null;
+        mStdIn = null;
+        mStdOutLines = null;
+        mStdErrLines = null;
+    }
+
+    /**
+     * Spawns the su process and the threads that drain its output.
+     * @throws IOException if su could not be started.
+     */
+    private void start() throws IOException {
+        close();
+        mProc = Runtime.getRuntime().exec(Commands.SU);
+        mStdIn = new OutputStreamWriter(mProc.getOutputStream());
+        mStdOutLines = drain(mProc.getInputStream(), "RootShell-stdout");
+        mStdErrLines = drain(mProc.getErrorStream(), "RootShell-stderr");
+    }
+
+    /**
+     * Starts a thread that reads the lines of a stream into a queue,
+     * followed by {@link #EOF}. The commands wait on the queue rather
+     * than on the stream, which lets them give up at their deadline
+     * even if a child of the shell keeps the pipe open.
+     * @param is The stream to read.
+     * @param name The name of the thread.
+     * @return The queue of lines.
+     */
+    private static LinkedBlockingQueue<String> drain(
+            final InputStream is, final String name) {
+        final LinkedBlockingQueue<String> lines =
+            new LinkedBlockingQueue<String>();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(is));
+
+        Thread t = new Thread(name) {
+            @Override
+            public void run() {
+                try {
+                    String l;
+                    while ((l = reader.readLine()) != null) {
+                        lines.add(l);
+                    }
+                } catch (IOException e) {
+                    //Treated as end of stream
+                }
+                lines.add(EOF);
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return lines;
+    }
+
+    /**
+     * Writes the command followed by its markers, then collects
+     * everything up to the markers.
+     * @param command The command to run.
+     * @param timeout The deadline, in ms.
+     * @return The result of the command.
+     * @throws IOException if the shell died.
+     * @throws InterruptedException if the caller got interrupted.
+     */
+    private CommandResult execute(final String command, final long timeout)
+        throws IOException, InterruptedException {
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        String marker = MARKER_PREFIX + mSession + "_" + (++mSerial);
+
+        mStdIn.write("(\n" + command + "\n) < /dev/null\n");
+        mStdIn.write("echo \"" + marker + " $?\"\n");
+        mStdIn.write("echo \"" + marker + "\" >&2\n");
+        mStdIn.flush();
+
+        List<String> out = new ArrayList<String>();
+        List<String> err = new ArrayList<String>();
+        int exitCode = CommandResult.EXIT_FAILURE;
+        String l;
+
+        while (true) {
+            l = poll(mStdOutLines, deadline);
+            if (l == null) {
+                return timedOut(command, out, err, start);
+            } else if (l == EOF) {
+                throw new IOException("stdout closed");
+            }
+
+            int pos = l.indexOf(marker);
+            if (pos < 0) {
+                out.add(l);
+                continue;
+            }
+
+            //Output that did not end with a new line
+            if (pos > 0) {
+                out.add(l.substring(0, pos));
+            }
+
+            try {
+                exitCode = Integer.parseInt(
+                        l.substring(pos + marker.length()).trim());
+            } catch (NumberFormatException e) {
+                exitCode = CommandResult.EXIT_FAILURE;
+            }
+            break;
+        }
+
+        while (true) {
+            l = poll(mStdErrLines, deadline);
+            if (l == null) {
+                return timedOut(command, out, err, start);
+            } else if (l == EOF) {
+                throw new IOException("stderr closed");
+            }
+
+            int pos = l.indexOf(marker);
+            if (pos < 0) {
+                err.add(l);
+                continue;
+            }
+
+            if (pos > 0) {
+                err.add(l.substring(0, pos));
+            }
+            break;
+        }
+
+        return new CommandResult(exitCode, out, err,
+                System.currentTimeMillis() - start, false);
+    }
+
+    /**
+     * @param lines The queue to wait on.
+     * @param deadline When to give up, in ms since the epoch.
+     * @return The next line, or null if the deadline passed.
+     * @throws InterruptedException if the caller got interrupted.
+     */
+    private static String poll(
+            final LinkedBlockingQueue<String> lines, final long deadline)
+        throws InterruptedException {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+            return lines.poll();
+        }
+        return lines.poll(left, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Kills the shell, whose state is unknown once a command
+     * missed its deadline.
+     * @param command The command that timed out.
+     * @param out The output printed so far.
+     * @param err The error output printed so far.
+     * @param start When the command started, in ms since the epoch.
+     * @return The result of the command.
+     */
+    private CommandResult timedOut(
+            final String command,
+            final List<String> out,
+            final List<String> err,
+            final long start) {
+        Log.w(TAG, "Timed out: " + Tracer.programOf(command));
+        close();
+        return new CommandResult(CommandResult.EXIT_FAILURE, out, err,
+                System.currentTimeMillis() - start, true);
+    }
+}
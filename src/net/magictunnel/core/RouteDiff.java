@@ -0,0 +1,121 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The minimal set of changes that turns one routing table
+ * into another one.
+ * @author Vitaly
+ *
+ */
+public final class RouteDiff {
+    /** Routes that must go away. */
+    private List<RouteEntry> mToDelete = new ArrayList<RouteEntry>();
+
+    /** Routes that must be added. */
+    private List<RouteEntry> mToAdd = new ArrayList<RouteEntry>();
+
+    /** Use {@link #compute(List, List)} instead. */
+    private RouteDiff() {
+
+    }
+
+    /**
+     * Compares two routing tables.
+     *
+     * Routes through a gateway are deleted before directly-connected ones
+     * and added after them, so that a gateway is always reachable
+     * when a route through it is added.
+     * @param current The routes that are active now.
+     * @param target The routes that should be active.
+     * @return The changes to apply to current to get target.
+     */
+    public static RouteDiff compute(
+            final List<RouteEntry> current,
+            final List<RouteEntry> target) {
+        RouteDiff diff = new RouteDiff();
+        Set<RouteEntry> cur = new HashSet<RouteEntry>(current);
+        Set<RouteEntry> tgt = new HashSet<RouteEntry>(target);
+
+        for (RouteEntry re : current) {
+            if (!tgt.contains(re) && re.getGateway() != 0) {
+                diff.mToDelete.add(re);
+            }
+        }
+        for (RouteEntry re : current) {
+            if (!tgt.contains(re) && re.getGateway() == 0) {
+                diff.mToDelete.add(re);
+            }
+        }
+
+        for (RouteEntry re : target) {
+            if (!cur.contains(re) && re.getGateway() == 0) {
+                diff.mToAdd.add(re);
+            }
+        }
+        for (RouteEntry re : target) {
+            if (!cur.contains(re) && re.getGateway() != 0) {
+                diff.mToAdd.add(re);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return The routes that must be deleted.
+     */
+    public List<RouteEntry> getRoutesToDelete() {
+        return mToDelete;
+    }
+
+    /**
+     * @return The routes that must be added.
+     */
+    public List<RouteEntry> getRoutesToAdd() {
+        return mToAdd;
+    }
+
+    /**
+     * @return Whether both routing tables are the same.
+     */
+    public boolean isEmpty() {
+        return mToDelete.isEmpty() && mToAdd.isEmpty();
+    }
+
+    /**
+     * Queues the changes into a route transaction,
+     * deletions first.
+     * @param tr The transaction.
+     * @return The transaction.
+     */
+    public RouteTransaction appendTo(final RouteTransaction tr) {
+        for (RouteEntry re : mToDelete) {
+            tr.deleteRoute(re);
+        }
+        for (RouteEntry re : mToAdd) {
+            tr.addRoute(re);
+        }
+        return tr;
+    }
+}
@@ -19,8 +19,6 @@
 package net.magictunnel.core;
 
 import java.net.InetAddress;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class models a routing table entry.
@@ -29,32 +27,6 @@ import java.util.regex.Pattern;
  */
 public class RouteEntry {
 
-    /**
-     * Regular expression that represents an address of the form:
-     * 192.168.1.2/24, at a line start.
-     */
-    private static final Pattern REGEX_DESTINATION =
-        Pattern.compile("^(\\d+\\.\\d+\\.\\d+\\.\\d+)(?:/(\\d+))?");
-
-    /**
-     * Regular expression that represents a gateway entry of the form:
-     * via 192.168.1.2.
-     */
-    private static final Pattern REGEX_GW =
-        Pattern.compile("via\\s+(\\d+\\.\\d+.\\d+.\\d+)");
-
-    /**
-     * Regex of the form:
-     * dev eth0.
-     */
-    private static final Pattern REGEX_DEV =
-        Pattern.compile("dev\\s+(\\w+)");
-
-    /**
-     * The maximum length of a network mask.
-     */
-    private static final int MAX_MASK_LENGTH = 32;
-
     /**
      * The destination network.
      */
@@ -153,6 +125,37 @@ public class RouteEntry {
         return strDest + " " + strMask + " via " + strGw + " dev " + iface;
     }
 
+    @Override
+    public final boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RouteEntry)) {
+            return false;
+        }
+
+        RouteEntry re = (RouteEntry) o;
+        if (destination != re.destination || gateway != re.gateway
+                || mask != re.mask) {
+            return false;
+        }
+
+        if (iface == null) {
+            return re.iface == null;
+        }
+        return iface.equals(re.iface);
+    }
+
+    @Override
+    public final int hashCode() {
+        final int prime = 31;
+        int result = destination;
+        result = prime * result + gateway;
+        result = prime * result + mask;
+        result = prime * result + (iface == null ? 0 : iface.hashCode());
+        return result;
+    }
+
 
     /**
      * Parses the following types of entries:
@@ -176,40 +179,9 @@ public class RouteEntry {
      */
     public static RouteEntry fromIpRouteCommand(final String cmdOutput) {
         RouteEntry re = new RouteEntry();
-
-        //Parse the destination, which is the column
-        if (cmdOutput.startsWith("default")) {
-            re.destination = 0;
-            re.gateway = 0;
-        } else {
-            Matcher m = REGEX_DESTINATION.matcher(cmdOutput);
-
-            if (m.find()) {
-                re.destination = NetworkUtils.v4StringToInt(m.group(1));
-                if (m.group(2) != null) {
-                    re.mask = NetworkUtils.prefixLengthToMask(
-                                Integer.valueOf(m.group(2))
-                              );
-                } else {
-                    re.mask = MAX_MASK_LENGTH;
-                }
-            } else {
-                return null;
-            }
-        }
-
-        //Parse the gateway
-        Matcher m = REGEX_GW.matcher(cmdOutput);
-        if (m.find()) {
-            re.gateway = NetworkUtils.v4StringToInt(m.group(1));
+        if (!new IpRouteParser().parse(cmdOutput, re)) {
+            return null;
         }
-
-        //Parse the device
-        m = REGEX_DEV.matcher(cmdOutput);
-        if (m.find()) {
-            re.iface = m.group(1);
-        }
-
         return re;
     }
 }
@@ -0,0 +1,245 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Collects route changes and applies them all at once
+ * with a single "ip -batch" invocation.
+ *
+ * If any of the changes fails, the routing table is
+ * brought back to the state it had before the commit.
+ * @author Vitaly
+ *
+ */
+public class RouteTransaction {
+    /** Logging tag. */
+    private static final String TAG = "RouteTransaction";
+
+    /** Terminates the here-document that feeds ip. */
+    private static final String BATCH_EOF = "MAGICTUNNEL_ROUTES";
+
+    /** The ip commands of the transaction, without the "ip" prefix. */
+    private List<String> mCommands = new ArrayList<String>();
+
+    /**
+     * Builds the arguments that designate a route.
+     * @param interfaceName The interface of the route.
+     * @param dst The destination network or host.
+     * @param prefixLength The prefix length of the destination.
+     * @param gw The gateway, null for directly-connected routes.
+     * @return The route specification.
+     */
+    private static String routeSpec(
+            final String interfaceName,
+            final String dst,
+            final int prefixLength,
+            final String gw) {
+        StringBuilder b = new StringBuilder();
+        b.append(dst).append('/').append(prefixLength);
+        if (gw != null) {
+            b.append(" via ").append(gw);
+        }
+        b.append(" dev ").append(interfaceName);
+        return b.toString();
+    }
+
+    /**
+     * Builds the arguments that designate a route.
+     * @param re The route.
+     * @return The route specification.
+     */
+    private static String routeSpec(final RouteEntry re) {
+        String dst = NetworkUtils.intToInetAddress(
+                re.getDestination()).getHostAddress();
+        String gw = null;
+        if (re.getGateway() != 0) {
+            gw = NetworkUtils.intToInetAddress(re.getGateway()).getHostAddress();
+        }
+        return routeSpec(re.getInterfaceName(), dst,
+                NetworkUtils.maskToPrefixLength(re.getMask()), gw);
+    }
+
+    /**
+     * @return Whether the transaction contains no change.
+     */
+    public final boolean isEmpty() {
+        return mCommands.isEmpty();
+    }
+
+    /**
+     * Queue the addition of a route.
+     * @param interfaceName the interface to route through.
+     * @param dst the network or host to route to.
+     * @param prefixLength the prefix length of the route.
+     * @param gw the gateway to use. If null,
+     * indicates a directly-connected route.
+     * @return This transaction.
+     */
+    public final RouteTransaction addRoute(
+            final String interfaceName,
+            final String dst,
+            final int prefixLength,
+            final String gw) {
+        mCommands.add("route add "
+                + routeSpec(interfaceName, dst, prefixLength, gw));
+        return this;
+    }
+
+    /**
+     * Queue the addition of a route.
+     * @param re The route to add.
+     * @return This transaction.
+     */
+    public final RouteTransaction addRoute(final RouteEntry re) {
+        mCommands.add("route add " + routeSpec(re));
+        return this;
+    }
+
+    /**
+     * Queue the removal of a route.
+     * @param re The route to delete.
+     * @return This transaction.
+     */
+    public final RouteTransaction deleteRoute(final RouteEntry re) {
+        mCommands.add("route delete " + routeSpec(re));
+        return this;
+    }
+
+    /**
+     * Queue the addition of a default route through the specified gateway.
+     * @param interfaceName interface on which the route should be added
+     * @param gw the IPv4 address of the gateway.
+     * @return This transaction.
+     */
+    public final RouteTransaction addDefaultRoute(
+            final String interfaceName,
+            final InetAddress gw) {
+        return addRoute(interfaceName, "0.0.0.0", 0, gw.getHostAddress());
+    }
+
+    /**
+     * Queue the addition of a host route.
+     * @param interfaceName interface on which the route should be added
+     * @param dst the IPv4 address of the host.
+     * @param gw the IP address of the gateway, if null,
+     * indicates a directly-connected route.
+     * @return This transaction.
+     */
+    public final RouteTransaction addHostRoute(
+            final String interfaceName,
+            final InetAddress dst,
+            final InetAddress gw) {
+        String gwStr = gw == null ? null : gw.getHostAddress();
+        return addRoute(interfaceName, dst.getHostAddress(),
+                NetworkUtils.HOST_ROUTE_PREFIX_IPV4, gwStr);
+    }
+
+    /**
+     * Queue the removal of the default route of the named interface.
+     * @param interfaceName The name of the interface.
+     * @return This transaction.
+     */
+    public final RouteTransaction removeDefaultRoute(final String interfaceName) {
+        mCommands.add("route delete default dev " + interfaceName);
+        return this;
+    }
+
+    /**
+     * Applies all the queued changes.
+     * If one of them fails, the routes that were in place
+     * before the commit are restored.
+     * @return Whether all changes were applied.
+     */
+    public final boolean commit() {
+        if (mCommands.isEmpty()) {
+            return true;
+        }
+        return commit(NetworkUtils.getRoutes());
+    }
+
+    /**
+     * Applies all the queued changes.
+     * If one of them fails, the specified routes are restored.
+     * @param snapshot The routes that are active before the commit.
+     * @return Whether all changes were applied.
+     */
+    public final boolean commit(final List<RouteEntry> snapshot) {
+        if (mCommands.isEmpty()) {
+            return true;
+        }
+
+        Trace.Span span = Tracer.begin("routes: commit");
+        CommandResult res = runBatch(mCommands, false);
+        span.end();
+        if (res.isSuccess()) {
+            return true;
+        }
+
+        Log.w(TAG, "Route transaction failed: " + res.getStdErr());
+        span = Tracer.begin("routes: rollback");
+        rollback(snapshot);
+        span.end();
+        return false;
+    }
+
+    /**
+     * Puts back the routes that were active before the transaction.
+     * @param snapshot The routes before the transaction.
+     */
+    private void rollback(final List<RouteEntry> snapshot) {
+        RouteDiff diff = RouteDiff.compute(NetworkUtils.getRoutes(), snapshot);
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        RouteTransaction undo = diff.appendTo(new RouteTransaction());
+        CommandResult res = runBatch(undo.mCommands, true);
+        if (!res.isSuccess()) {
+            Log.e(TAG, "Route rollback incomplete: " + res.getStdErr());
+        }
+    }
+
+    /**
+     * Feeds the commands to a single ip process.
+     * @param commands The ip commands, one per line.
+     * @param force Whether to keep going after a failed command.
+     * @return The result of the ip invocation.
+     */
+    private static CommandResult runBatch(
+            final List<String> commands,
+            final boolean force) {
+        StringBuilder script = new StringBuilder();
+        script.append("ip ");
+        if (force) {
+            script.append("-force ");
+        }
+        script.append("-batch - <<'").append(BATCH_EOF).append("'\n");
+        for (String c : commands) {
+            script.append(c).append('\n');
+        }
+        script.append(BATCH_EOF);
+        return Commands.runInRootShell(script.toString());
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The spans of one connection attempt: when each phase started and
+ * ended, in ns relative to the start of the trace, and on which
+ * thread. Phases may run on different threads and overlap.
+ *
+ * Traces are created and kept by {@link Tracer}.
+ * @author Vitaly
+ *
+ */
+public class Trace {
+    /** Nanoseconds per millisecond. */
+    private static final long NS_PER_MS = 1000000;
+
+    /** Nanoseconds per microsecond. */
+    private static final long NS_PER_US = 1000;
+
+    /** The name of the trace. */
+    private final String mName;
+
+    /** When the trace started, wall clock, in ms. */
+    private final long mWallStart = System.currentTimeMillis();
+
+    /** When the trace started, in ns. */
+    private final long mStart = System.nanoTime();
+
+    /** When the trace ended, relative to its start, in ns, -1 if not. */
+    private volatile long mEnd = -1;
+
+    /** The spans, in the order they started. */
+    private final ArrayList<Span> mSpans = new ArrayList<Span>();
+
+    /**
+     * A phase of the connection, or an instant if it has no duration.
+     */
+    public static final class Span {
+        /** The trace the span belongs to, null for the dummy span. */
+        private final Trace mTrace;
+
+        /** The name of the span. */
+        private final String mName;
+
+        /** The id of the thread that started the span. */
+        private final long mThreadId;
+
+        /** The name of the thread that started the span. */
+        private final String mThreadName;
+
+        /** When the span started, relative to the trace, in ns. */
+        private final long mBegin;
+
+        /** When the span ended, relative to the trace, in ns, -1 if not. */
+        private volatile long mEnd = -1;
+
+        /** Whether the span is an instant. */
+        private final boolean mInstant;
+
+        /**
+         * Starts a span on the current thread.
+         * @param trace The trace, null for the dummy span.
+         * @param name The name of the span.
+         * @param instant Whether the span is an instant.
+         */
+        Span(final Trace trace, final String name, final boolean instant) {
+            Thread t = Thread.currentThread();
+            mTrace = trace;
+            mName = name;
+            mThreadId = t.getId();
+            mThreadName = t.getName();
+            mBegin = trace == null ? 0 : trace.now();
+            mInstant = instant;
+            if (instant) {
+                mEnd = mBegin;
+            }
+        }
+
+        /**
+         * Ends the span. Only the first call counts.
+         */
+        public void end() {
+            if (mEnd < 0 && mTrace != null) {
+                mEnd = mTrace.now();
+            }
+        }
+
+        /**
+         * @return The name of the span.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return The duration of the span, in ns, -1 if it did not end.
+         */
+        public long getDuration() {
+            return mEnd < 0 ? -1 : mEnd - mBegin;
+        }
+
+        @Override
+        public String toString() {
+            if (mInstant) {
+                return mName + " at " + formatMs(mBegin);
+            }
+            if (mEnd < 0) {
+                return mName + " unfinished (from " + formatMs(mBegin) + ")";
+            }
+            return mName + " " + formatMs(mEnd - mBegin) + " ms ("
+                + formatMs(mBegin) + "-" + formatMs(mEnd) + ")";
+        }
+    }
+
+    /**
+     * Starts a trace.
+     * @param name The name of the trace.
+     */
+    Trace(final String name) {
+        mName = name;
+    }
+
+    /**
+     * @return The time since the start of the trace, in ns.
+     */
+    final long now() {
+        return System.nanoTime() - mStart;
+    }
+
+    /**
+     * @return The name of the trace.
+     */
+    public final String getName() {
+        return mName;
+    }
+
+    /**
+     * @return When the trace started, wall clock, in ms.
+     */
+    public final long getWallStart() {
+        return mWallStart;
+    }
+
+    /**
+     * Starts a span on the current thread.
+     * @param name The name of the span.
+     * @return The span, to end when the phase is done.
+     */
+    public final Span begin(final String name) {
+        Span s = new Span(this, name, false);
+        synchronized (mSpans) {
+            mSpans.add(s);
+        }
+        return s;
+    }
+
+    /**
+     * Records an instant on the current thread.
+     * @param name The name of the instant.
+     */
+    public final void mark(final String name) {
+        synchronized (mSpans) {
+            mSpans.add(new Span(this, name, true));
+        }
+    }
+
+    /**
+     * Wraps a task into a span, which starts when the task runs.
+     * @param <T> The result of the task.
+     * @param name The name of the span.
+     * @param task The task.
+     * @return The traced task.
+     */
+    public final <T> Callable<T> timed(final String name, final Callable<T> task) {
+        return new Callable<T>() {
+            public T call() throws Exception {
+                Span s = begin(name);
+                try {
+                    return task.call();
+                } finally {
+                    s.end();
+                }
+            }
+        };
+    }
+
+    /** Ends the trace. */
+    final void finish() {
+        if (mEnd < 0) {
+            mEnd = now();
+        }
+    }
+
+    /**
+     * @return The duration of the trace so far, in ns.
+     */
+    public final long getDuration() {
+        long end = mEnd;
+        return end < 0 ? now() : end;
+    }
+
+    /**
+     * @return A copy of the spans.
+     */
+    public final List<Span> getSpans() {
+        synchronized (mSpans) {
+            return new ArrayList<Span>(mSpans);
+        }
+    }
+
+    /**
+     * @param ns A duration, in ns.
+     * @return The duration in ms, with one decimal.
+     */
+    private static String formatMs(final long ns) {
+        long tenths = ns / (NS_PER_MS / 10);
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    /**
+     * Appends the events of the trace in the Chrome trace event format.
+     * The trace is shown as a process, its threads as threads.
+     * @param b Where to append the events.
+     * @param pid The process id to give to the trace.
+     * @param first Whether no event was appended before.
+     * @return Whether still no event was appended, to pass as first
+     * to the next call.
+     */
+    final boolean appendChromeEvents(
+            final StringBuilder b,
+            final int pid,
+            final boolean first) {
+        boolean none = first;
+        List<Long> threads = new ArrayList<Long>();
+
+        none = appendSeparator(b, none);
+        b.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(pid);
+        b.append(",\"args\":{\"name\":");
+        appendString(b, mName);
+        b.append("}}");
+
+        for (Span s : getSpans()) {
+            if (!threads.contains(s.mThreadId)) {
+                threads.add(s.mThreadId);
+                none = appendSeparator(b, none);
+                b.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":");
+                b.append(pid).append(",\"tid\":").append(s.mThreadId);
+                b.append(",\"args\":{\"name\":");
+                appendString(b, s.mThreadName);
+                b.append("}}");
+            }
+
+            none = appendSeparator(b, none);
+            b.append("{\"name\":");
+            appendString(b, s.mName);
+            b.append(",\"pid\":").append(pid);
+            b.append(",\"tid\":").append(s.mThreadId);
+            b.append(",\"ts\":");
+            appendMicros(b, s.mBegin);
+            if (s.mInstant) {
+                b.append(",\"ph\":\"i\",\"s\":\"t\"}");
+            } else {
+                long end = s.mEnd < 0 ? getDuration() : s.mEnd;
+                b.append(",\"ph\":\"X\",\"dur\":");
+                appendMicros(b, end - s.mBegin);
+                b.append('}');
+            }
+        }
+        return none;
+    }
+
+    /**
+     * @param b Where to append.
+     * @param first Whether nothing was appended before.
+     * @return false, nothing is first anymore.
+     */
+    private static boolean appendSeparator(final StringBuilder b, final boolean first) {
+        if (!first) {
+            b.append(',');
+        }
+        return false;
+    }
+
+    /**
+     * Appends a time in microseconds, with ns precision.
+     * @param b Where to append.
+     * @param ns The time, in ns.
+     */
+    private static void appendMicros(final StringBuilder b, final long ns) {
+        b.append(ns / NS_PER_US).append('.');
+        long frac = ns % NS_PER_US;
+        if (frac < 100) {
+            b.append('0');
+        }
+        if (frac < 10) {
+            b.append('0');
+        }
+        b.append(frac);
+    }
+
+    /**
+     * Appends a JSON string.
+     * @param b Where to append.
+     * @param s The string.
+     */
+    static void appendString(final StringBuilder b, final String s) {
+        b.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                b.append("\\\"");
+                break;
+            case '\\':
+                b.append("\\\\");
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\t':
+                b.append("\\t");
+                break;
+            default:
+                if (c < ' ') {
+                    String hex = Integer.toHexString(c);
+                    b.append("\\u");
+                    for (int j = hex.length(); j < 4; ++j) {
+                        b.append('0');
+                    }
+                    b.append(hex);
+                } else {
+                    b.append(c);
+                }
+                break;
+            }
+        }
+        b.append('"');
+    }
+
+    /**
+     * @return One line per span, then the total time.
+     */
+    @Override
+    public final String toString() {
+        StringBuilder b = new StringBuilder();
+        for (Span s : getSpans()) {
+            b.append(s).append('\n');
+        }
+        b.append("total ").append(formatMs(getDuration())).append(" ms");
+        return b.toString();
+    }
+}
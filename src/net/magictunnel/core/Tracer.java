@@ -0,0 +1,148 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the traces of the last connection attempts (see {@link Trace}),
+ * and lets any code add spans to the one in progress, without having
+ * to pass it around.
+ *
+ * The traces can be exported in the Chrome trace event format, which
+ * chrome://tracing and Perfetto display as a timeline.
+ * @author Vitaly
+ *
+ */
+public final class Tracer {
+    /** How many traces to keep. */
+    public static final int MAX_TRACES = 8;
+
+    /** Returned when no trace is in progress. Ending it does nothing. */
+    private static final Trace.Span NO_SPAN = new Trace.Span(null, "", false);
+
+    /** The trace in progress, null if none. */
+    private static volatile Trace sCurrent;
+
+    /** The last traces, oldest first. */
+    private static final LinkedList<Trace> TRACES = new LinkedList<Trace>();
+
+    /** This class is not supposed to be instantiated. */
+    private Tracer() {
+
+    }
+
+    /**
+     * Starts a trace, which becomes the one in progress.
+     * The oldest trace is dropped if there are too many.
+     * @param name The name of the trace.
+     * @return The trace.
+     */
+    public static Trace startTrace(final String name) {
+        Trace t = new Trace(name);
+        synchronized (TRACES) {
+            TRACES.add(t);
+            while (TRACES.size() > MAX_TRACES) {
+                TRACES.removeFirst();
+            }
+        }
+        sCurrent = t;
+        return t;
+    }
+
+    /**
+     * Ends a trace. It stops being the one in progress.
+     * @param t The trace.
+     */
+    public static void endTrace(final Trace t) {
+        t.finish();
+        if (sCurrent == t) {
+            sCurrent = null;
+        }
+    }
+
+    /**
+     * Starts a span in the trace in progress.
+     * @param name The name of the span.
+     * @return The span, to end when the phase is done, a span that
+     * records nothing if no trace is in progress.
+     */
+    public static Trace.Span begin(final String name) {
+        Trace t = sCurrent;
+        if (t == null) {
+            return NO_SPAN;
+        }
+        return t.begin(name);
+    }
+
+    /**
+     * Records an instant in the trace in progress, if any.
+     * @param name The name of the instant.
+     */
+    public static void mark(final String name) {
+        Trace t = sCurrent;
+        if (t != null) {
+            t.mark(name);
+        }
+    }
+
+    /**
+     * Names a command after the program it runs. The arguments are
+     * left out, since they may contain passwords.
+     * @param command The command line.
+     * @return The name of the program.
+     */
+    public static String programOf(final String command) {
+        String c = command.trim();
+        int end = 0;
+        while (end < c.length() && !Character.isWhitespace(c.charAt(end))) {
+            ++end;
+        }
+        String program = c.substring(0, end);
+        return program.substring(program.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return The last traces, oldest first.
+     */
+    public static List<Trace> getTraces() {
+        synchronized (TRACES) {
+            return new ArrayList<Trace>(TRACES);
+        }
+    }
+
+    /**
+     * Exports the last traces in the Chrome trace event format.
+     * Each trace is shown as a process, numbered from the oldest.
+     * @return The JSON document.
+     */
+    public static String toChromeJson() {
+        StringBuilder b = new StringBuilder();
+        b.append("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+        boolean first = true;
+        int pid = 1;
+        for (Trace t : getTraces()) {
+            first = t.appendChromeEvents(b, pid++, first);
+        }
+        b.append("]}");
+        return b.toString();
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Remembers, per profile and per network, the connection parameters
+ * that the Iodine client negotiated, so that the next connection on
+ * the same network can skip the autodetection.
+ *
+ * Entries are stored in the preferences under keys of the form
+ * tuning_profile@network, as a list of comma-separated fields:
+ * r=0,a=192.0.2.1,m=1246,T=NULL,O=Raw.
+ * @author Vitaly
+ *
+ */
+public class TuningCache {
+    /** Prefix of the cache entries. */
+    public static final String TUNING_PREFIX = "tuning_";
+
+    /** Field for the downstream fragment size (-m). */
+    private static final char FIELD_FRAGMENT_SIZE = 'm';
+
+    /** Field for the DNS query type (-T). */
+    private static final char FIELD_DNS_TYPE = 'T';
+
+    /** Field for the downstream codec (-O). */
+    private static final char FIELD_CODEC = 'O';
+
+    /** Field for the raw mode. */
+    private static final char FIELD_RAW = 'r';
+
+    /** Field for the public address of the server. */
+    private static final char FIELD_SERVER_ADDRESS = 'a';
+
+    /** The parameters that worked on a network. */
+    public static final class Entry {
+        /** The downstream fragment size, 0 if unknown. */
+        private int mFragmentSize;
+
+        /** The DNS query type, null if unknown. */
+        private String mDnsType;
+
+        /** The downstream codec, null if unknown. */
+        private String mCodec;
+
+        /** Whether the server is reachable without a resolver. */
+        private boolean mRaw;
+
+        /** The public address of the server, null if unknown. */
+        private String mServerAddress;
+
+        /**
+         * @return The downstream fragment size, 0 if unknown.
+         */
+        public int getFragmentSize() {
+            return mFragmentSize;
+        }
+
+        /**
+         * @return The DNS query type, null if unknown.
+         */
+        public String getDnsType() {
+            return mDnsType;
+        }
+
+        /**
+         * @return The downstream codec, null if unknown.
+         */
+        public String getCodec() {
+            return mCodec;
+        }
+
+        /**
+         * @return Whether the server is reachable without a resolver.
+         */
+        public boolean isRaw() {
+            return mRaw;
+        }
+
+        /**
+         * Updates the raw mode, e.g., after checking it again.
+         * @param raw Whether the server is reachable without a resolver.
+         */
+        void setRaw(final boolean raw) {
+            mRaw = raw;
+        }
+
+        /**
+         * @return The public address of the server, null if unknown.
+         */
+        public String getServerAddress() {
+            return mServerAddress;
+        }
+    }
+
+    /** Where the entries are stored. */
+    private SharedPreferences mPrefs;
+
+    /**
+     * Creates a cache.
+     * @param prefs Where the entries are stored.
+     */
+    public TuningCache(final SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * @param profile The name of the profile.
+     * @param network The identity of the network.
+     * @return The key of the entry.
+     */
+    private static String key(final String profile, final String network) {
+        return TUNING_PREFIX + profile + "@" + network;
+    }
+
+    /**
+     * Looks up the parameters that worked before.
+     * @param profile The name of the profile.
+     * @param network The identity of the network, may be null.
+     * @return The parameters, null if none are known.
+     */
+    public final Entry get(final String profile, final String network) {
+        if (network == null) {
+            return null;
+        }
+        String value = mPrefs.getString(key(profile, network), null);
+        if (value == null) {
+            return null;
+        }
+
+        Entry e = new Entry();
+        for (String field : value.split(",")) {
+            if (field.length() < 3 || field.charAt(1) != '=') {
+                continue;
+            }
+            String v = field.substring(2);
+            switch (field.charAt(0)) {
+            case FIELD_FRAGMENT_SIZE:
+                try {
+                    e.mFragmentSize = Integer.parseInt(v);
+                } catch (NumberFormatException ex) {
+                    e.mFragmentSize = 0;
+                }
+                break;
+            case FIELD_DNS_TYPE:
+                e.mDnsType = v;
+                break;
+            case FIELD_CODEC:
+                e.mCodec = v;
+                break;
+            case FIELD_RAW:
+                e.mRaw = v.equals("1");
+                break;
+            case FIELD_SERVER_ADDRESS:
+                e.mServerAddress = v;
+                break;
+            default:
+                break;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Remembers the parameters negotiated by the client.
+     * The parameters the client did not report are taken from the
+     * entry the connection was made with, if any.
+     * @param profile The name of the profile.
+     * @param network The identity of the network, may be null.
+     * @param handshake What the client printed while connecting.
+     * @param used The entry the connection was made with, may be null.
+     */
+    public final void put(
+            final String profile,
+            final String network,
+            final IodineLogParser handshake,
+            final Entry used) {
+        if (network == null || handshake == null) {
+            return;
+        }
+
+        int fragmentSize = handshake.getFragmentSize();
+        String dnsType = handshake.getDnsType();
+        String codec = handshake.getDownstreamCodec();
+        String address = null;
+        if (handshake.getServerAddress() != null) {
+            address = handshake.getServerAddress().getHostAddress();
+        } else if (handshake.getRawEndpoint() != null) {
+            address = handshake.getRawEndpoint().getHostAddress();
+        }
+
+        if (used != null) {
+            if (address == null) {
+                address = used.mServerAddress;
+            }
+            if (fragmentSize <= 0) {
+                fragmentSize = used.mFragmentSize;
+            }
+            if (dnsType == null) {
+                dnsType = used.mDnsType;
+            }
+            if (codec == null) {
+                codec = used.mCodec;
+            }
+        }
+
+        StringBuilder b = new StringBuilder();
+        b.append(FIELD_RAW).append('=');
+        b.append(handshake.getRawEndpoint() != null ? '1' : '0');
+        if (address != null) {
+            b.append(',').append(FIELD_SERVER_ADDRESS).append('=');
+            b.append(address);
+        }
+        if (fragmentSize > 0) {
+            b.append(',').append(FIELD_FRAGMENT_SIZE).append('=');
+            b.append(fragmentSize);
+        }
+        if (dnsType != null) {
+            b.append(',').append(FIELD_DNS_TYPE).append('=').append(dnsType);
+        }
+        if (codec != null) {
+            b.append(',').append(FIELD_CODEC).append('=').append(codec);
+        }
+
+        Editor edit = mPrefs.edit();
+        edit.putString(key(profile, network), b.toString());
+        edit.commit();
+    }
+
+    /**
+     * Forgets the parameters, e.g., because they stopped working.
+     * @param profile The name of the profile.
+     * @param network The identity of the network, may be null.
+     */
+    public final void remove(final String profile, final String network) {
+        if (network == null) {
+            return;
+        }
+        Editor edit = mPrefs.edit();
+        edit.remove(key(profile, network));
+        edit.commit();
+    }
+
+    /**
+     * Forgets the parameters of a profile on all networks,
+     * e.g., because the profile was deleted or renamed.
+     * @param prefs Where the entries are stored.
+     * @param edit The editor that removes the entries.
+     * @param profile The name of the profile.
+     */
+    public static void removeProfile(
+            final SharedPreferences prefs,
+            final Editor edit,
+            final String profile) {
+        String prefix = key(profile, "");
+        for (String k : prefs.getAll().keySet()) {
+            if (k.startsWith(prefix)) {
+                edit.remove(k);
+            }
+        }
+    }
+}
@@ -0,0 +1,1097 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.magictunnel.R;
+import net.magictunnel.settings.DnsProtocol;
+import net.magictunnel.settings.DnsRawConnection;
+import net.magictunnel.settings.Profile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Drives the tunnel through its states (see {@link TunnelState}).
+ *
+ * All the work, which needs root and may block, runs on a dedicated
+ * thread. Requests are queued and handled in order. The listeners are
+ * notified in the UI thread.
+ *
+ * While connecting, the stages that do not depend on each other, such
+ * as killing the previous client, taking a snapshot of the routes and
+ * looking up the resolver, run at the same time. The time taken by
+ * each stage is written to the log, and kept with the spans recorded
+ * by the lower layers (see {@link Tracer}).
+ *
+ * When the profile asks for it, the client is supervised once the
+ * tunnel is up. If it dies, or if the tunnel stalls while it is
+ * running (see {@link TunnelWatchdog}), only the client is restarted,
+ * with an exponential backoff: the host route to the tunnel entry and
+ * the saved routes stay in place, and only the default route through
+ * the tunnel is added back.
+ *
+ * When the profile asks for it, the DNS record types are raced against
+ * the server (see {@link DnsProbe}) before launching the client, which
+ * then uses the fastest one.
+ *
+ * While the tunnel is up, its performance figures are sampled every
+ * second (see {@link TunnelMetrics}) and sent to the metrics listeners.
+ *
+ * The parameters negotiated by the client are remembered per network
+ * (see {@link TuningCache}) and passed to the next connections on the
+ * same network. Whether the server is reachable directly is checked
+ * again (see {@link RawPreflight}) while the previous client is being
+ * killed. If they do not work anymore, they are forgotten and
+ * the client autodetects them again.
+ * @author Vitaly
+ *
+ */
+public class TunnelController {
+    /** Logging tag. */
+    private static final String TAG = "TunnelController";
+
+    /** Message id of a request that was superseded by a newer one. */
+    private static final int CANCELLED = 0;
+
+    /** Port of the DNS resolvers. */
+    private static final int DNS_PORT = 53;
+
+    /** How often to check that the client is alive, in ms. */
+    private static final long SUPERVISE_INTERVAL = 500;
+
+    /** Delay before the second restart attempt, in ms. */
+    private static final long RECONNECT_BASE_DELAY = 250;
+
+    /** Upper bound of the delay between restart attempts, in ms. */
+    private static final long RECONNECT_MAX_DELAY = 30000;
+
+    /** Beyond this many doublings, the delay is at its upper bound anyway. */
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    /** How long to wait for the answer to a ping, in ms. */
+    private static final int PING_TIMEOUT = 2000;
+
+    /** How often to sample the metrics, in ms. */
+    private static final long METRICS_INTERVAL = 1000;
+
+    /** Measure the round trip time every this many samples. */
+    private static final int RTT_PROBE_TICKS = 10;
+
+    /** How many times to try restarting the client. */
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+
+    /** Creates the threads of the executors, as daemon threads. */
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /** The Iodine client. */
+    private final Iodine mIodine;
+
+    /** Runs the requests and the supervision, one at a time. */
+    private final ScheduledExecutorService mExecutor =
+        Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+
+    /**
+     * Runs the stages of a connection that do not depend on each other
+     * at the same time.
+     */
+    private final ExecutorService mStageExecutor =
+        Executors.newCachedThreadPool(DAEMON_THREADS);
+
+    /** Posts the notifications to the UI thread. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** The current state. */
+    private volatile TunnelState mState = TunnelState.IDLE;
+
+    /** The profile being connected or connected. */
+    private volatile String mProfileName;
+
+    /**
+     * Incremented by each request. A connection attempt gives up
+     * as soon as a newer request is made.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /** The parameters that worked before, created on first use. */
+    private TuningCache mTuningCache;
+
+    /** The identity of the network the tunnel goes through. */
+    private volatile String mNetwork;
+
+    /** The parameters the tunnel was set up with, null if autodetected. */
+    private volatile TuningCache.Entry mTuning;
+
+    /**
+     * Tells whether the tunnel stalled. Only used in the controller
+     * thread, created on first use.
+     */
+    private TunnelWatchdog mWatchdog;
+
+    /** The performance figures, only used in the controller thread. */
+    private final TunnelMetrics mMetrics = new TunnelMetrics();
+
+    /** Whether metrics were posted and not delivered yet. */
+    private final AtomicBoolean mMetricsPending = new AtomicBoolean();
+
+    /** Spreads the restart attempts of several devices. */
+    private final Random mRandom = new Random();
+
+    /** The listeners, only accessed in the UI thread. */
+    private ArrayList<ITunnelStatusListener> mListeners =
+        new ArrayList<ITunnelStatusListener>();
+
+    /** The metrics listeners, only accessed in the UI thread. */
+    private ArrayList<ITunnelMetricsListener> mMetricsListeners =
+        new ArrayList<ITunnelMetricsListener>();
+
+    /**
+     * Creates a controller.
+     * @param iodine The Iodine client.
+     */
+    TunnelController(final Iodine iodine) {
+        mIodine = iodine;
+    }
+
+    /**
+     * @return The current state.
+     */
+    public final TunnelState getState() {
+        return mState;
+    }
+
+    /**
+     * Sets up the tunnel of the specified profile, tearing down
+     * the current one first, if any.
+     * @param p The profile.
+     */
+    public final void connect(final Profile p) {
+        final int generation = supersede();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                doConnect(p, generation, false);
+            }
+        });
+    }
+
+    /**
+     * Tears down the tunnel and sets it up again with the same profile.
+     */
+    public final void reconnect() {
+        final int generation = supersede();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Profile p = mIodine.getActiveProfile();
+                if (p != null) {
+                    doConnect(p, generation, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tears down the tunnel, or abandons the connection in progress.
+     */
+    public final void disconnect() {
+        supersede();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                doDisconnect();
+            }
+        });
+    }
+
+    /**
+     * Updates the resolvers the client is launched with, after a
+     * connectivity change. The resolvers that joined get a host route.
+     */
+    public final void refreshResolvers() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                ResolverPool pool = mIodine.getResolverPool();
+                Profile p = mIodine.getActiveProfile();
+                if (pool == null || p == null) {
+                    return;
+                }
+
+                //Without any resolver, the network is going down:
+                //leave the pool as it is
+                List<InetSocketAddress> resolvers = getResolvers(p);
+                if (resolvers.isEmpty()) {
+                    return;
+                }
+                List<InetSocketAddress> added = pool.update(resolvers);
+                mIodine.log("Resolvers: " + pool);
+                if (!added.isEmpty() && !mIodine.addResolverRoutes(added)) {
+                    mIodine.log("Could not add the routes to the new resolvers");
+                }
+            }
+        });
+    }
+
+    /**
+     * @param p The profile.
+     * @param dns The resolver of the system, may be null.
+     * @return The resolvers to launch the client with, null if none
+     * is known.
+     */
+    private ResolverPool buildResolverPool(final Profile p, final InetAddress dns) {
+        List<InetSocketAddress> resolvers = getResolvers(p);
+        if (resolvers.isEmpty() && dns != null) {
+            resolvers.add(new InetSocketAddress(dns, DNS_PORT));
+        }
+        if (resolvers.isEmpty()) {
+            return null;
+        }
+        ResolverPool pool = new ResolverPool(resolvers);
+        mIodine.log("Found " + resolvers.size() + " resolvers");
+        return pool;
+    }
+
+    /**
+     * @param p The profile.
+     * @return The resolvers of the system, from net.dns1 to net.dns4,
+     * then those of the profile.
+     */
+    private static List<InetSocketAddress> getResolvers(final Profile p) {
+        List<InetAddress> addresses = NetworkUtils.getDnsServers();
+        for (InetAddress a : NetworkUtils.parseAddresses(p.getResolvers())) {
+            if (!addresses.contains(a)) {
+                addresses.add(a);
+            }
+        }
+
+        List<InetSocketAddress> resolvers = new ArrayList<InetSocketAddress>();
+        for (InetAddress a : addresses) {
+            resolvers.add(new InetSocketAddress(a, DNS_PORT));
+        }
+        return resolvers;
+    }
+
+    /**
+     * Makes the request in progress, if any, give up.
+     * @return The generation of the new request.
+     */
+    private int supersede() {
+        int generation = mGeneration.incrementAndGet();
+        if (mState == TunnelState.LAUNCHING || mState == TunnelState.HANDSHAKE
+                || mState == TunnelState.RECONNECTING) {
+            //The launcher thread is blocked reading the client output
+            new Thread(new Runnable() {
+                public void run() {
+                    mIodine.abortClient();
+                }
+            }, TAG).start();
+        }
+        return generation;
+    }
+
+    /**
+     * Checks whether a newer request was made.
+     * @param generation The generation of the request.
+     * @throws IodineException if the request was superseded.
+     */
+    private void checkCurrent(final int generation) throws IodineException {
+        if (generation != mGeneration.get()) {
+            throw new IodineException(CANCELLED);
+        }
+    }
+
+    /**
+     * Sets up the tunnel, on the controller thread.
+     * @param p The profile.
+     * @param generation The generation of the request.
+     * @param reconnect Whether the tunnel of the same profile is up.
+     */
+    private void doConnect(
+            final Profile p,
+            final int generation,
+            final boolean reconnect) {
+        if (generation != mGeneration.get()) {
+            return;
+        }
+
+        if (reconnect) {
+            mMetrics.onReconnect();
+            setState(TunnelState.RECONNECTING);
+            mIodine.restoreRoutes();
+            mIodine.setActiveProfile(null);
+        } else if (mIodine.getActiveProfile() != null) {
+            doDisconnect();
+        }
+
+        mProfileName = p.getName();
+        final Context ctx = mIodine.getContext();
+        Trace trace = Tracer.startTrace("connect " + p.getName());
+        RawPreflight preflight = null;
+        boolean connected = false;
+
+        try {
+            if (!NetworkUtils.checkConnectivity(ctx)) {
+                throw new IodineException(R.string.iodine_no_connectivity,
+                        R.string.iodine_enable_wifi_or_mobile);
+            }
+
+            setState(TunnelState.KILLING);
+            mIodine.resetLog();
+            mIodine.log("Killing previous instance of iodine...");
+
+            //These stages do not depend on each other
+            Future<Boolean> killed = mStageExecutor.submit(
+                    trace.timed("kill", new Callable<Boolean>() {
+                        public Boolean call() throws InterruptedException {
+                            return mIodine.killIodine();
+                        }
+                    }));
+            Future<List<RouteEntry>> routes = mStageExecutor.submit(
+                    trace.timed("routes", new Callable<List<RouteEntry>>() {
+                        public List<RouteEntry> call() {
+                            return NetworkUtils.getRoutes();
+                        }
+                    }));
+            Future<InetAddress> resolver = mStageExecutor.submit(
+                    trace.timed("resolver", new Callable<InetAddress>() {
+                        public InetAddress call() {
+                            return NetworkUtils.getDns();
+                        }
+                    }));
+
+            //The tuning depends on the network, hence on the resolver
+            InetAddress dns = join(resolver);
+            Trace.Span stage = trace.begin("tuning");
+            mNetwork = NetworkUtils.getNetworkIdentity(ctx, dns);
+            mTuning = getTuningCache().get(p.getName(), mNetwork);
+            stage.end();
+
+            //The resolvers are fixed for the whole connection, and only
+            //updated when the connectivity changes
+            ResolverPool pool = null;
+            if (p.isStriping()) {
+                stage = trace.begin("resolvers");
+                pool = buildResolverPool(p, dns);
+                stage.end();
+            }
+            mIodine.setResolverPool(pool);
+
+            Trace.Span preflightStage = trace.begin("preflight");
+            preflight = startPreflight(p);
+            if (preflight == null) {
+                preflightStage.end();
+            }
+
+            List<RouteEntry> snapshot = join(routes);
+            RouteEntry defaultRoute = NetworkUtils.getDefaultRoute(snapshot);
+            if (defaultRoute == null) {
+                throw new IodineException(R.string.iodine_no_route,
+                        R.string.iodine_cycle_connection);
+            }
+            String iface = defaultRoute.getInterfaceName();
+
+            p.setProbedProtocol(null);
+            if (p.getDnsProtocol() == DnsProtocol.RACE
+                    && (mTuning == null || mTuning.getDnsType() == null)) {
+                setState(TunnelState.PROBING);
+                stage = trace.begin("race");
+                p.setProbedProtocol(race(p, dns));
+                stage.end();
+                checkCurrent(generation);
+            }
+
+            if (preflight != null) {
+                boolean raw = preflight.await();
+                preflightStage.end();
+                mIodine.log(raw ? "Server is reachable directly"
+                        : "Server is not reachable directly, skipping raw mode");
+                mTuning.setRaw(raw);
+            }
+
+            if (!join(killed)) {
+                mIodine.log("Previous instance of iodine did not exit");
+            }
+            checkCurrent(generation);
+
+            while (true) {
+                setState(TunnelState.LAUNCHING);
+                stage = trace.begin("launch");
+                mIodine.startClient(p, mTuning);
+                stage.end();
+
+                setState(TunnelState.HANDSHAKE);
+                stage = trace.begin("handshake");
+                long start = SystemClock.elapsedRealtime();
+                boolean handshake = mIodine.waitForHandshake();
+                mMetrics.onHandshake(SystemClock.elapsedRealtime() - start,
+                        handshake);
+                stage.end();
+                if (handshake) {
+                    break;
+                }
+                checkCurrent(generation);
+                if (mTuning != null) {
+                    forgetTuning(p);
+                } else if (p.getProbedProtocol() != null) {
+                    mIodine.log("Race winner failed, autodetecting the type");
+                    p.setProbedProtocol(null);
+                } else {
+                    throw new IodineException(R.string.iodine_check_dns);
+                }
+
+                mIodine.killIodine();
+                checkCurrent(generation);
+            }
+            checkCurrent(generation);
+
+            setState(TunnelState.ROUTING);
+            stage = trace.begin("routing");
+            boolean routed = mIodine.setupRoute(iface, snapshot, dns);
+            stage.end();
+            if (!routed) {
+                throw new IodineException(R.string.iodine_routing_error);
+            }
+            checkCurrent(generation);
+            connected = true;
+        } catch (IodineException e) {
+            abandon(e);
+        } catch (InterruptedException e) {
+            abandon(new IodineException(CANCELLED));
+        } catch (RuntimeException e) {
+            //A failed stage must not leave the tunnel half set up
+            Log.e(TAG, "Connection attempt failed", e);
+            mIodine.log("Internal error: " + e);
+            abandon(new IodineException(R.string.iodine_unexpected_error));
+        } finally {
+            if (preflight != null) {
+                preflight.cancel();
+            }
+            Tracer.endTrace(trace);
+            logTimings(trace);
+        }
+
+        if (!connected) {
+            return;
+        }
+
+        mIodine.setActiveProfile(p);
+        setState(TunnelState.CONNECTED);
+        notifyConnected(p.getName());
+        getTuningCache().put(p.getName(), mNetwork, mIodine.getHandshake(), mTuning);
+        mMetrics.resetTraffic();
+        monitor(p.getName(), generation, 0);
+
+        if (p.isAutoReconnect()) {
+            startSupervision(p, generation);
+        }
+    }
+
+    /**
+     * Waits for a stage run by the stage executor.
+     * @param <T> The result of the stage.
+     * @param stage The stage.
+     * @return The result of the stage.
+     * @throws InterruptedException if the stage or the wait was
+     * interrupted.
+     */
+    private static <T> T join(final Future<T> stage)
+        throws InterruptedException {
+        try {
+            return stage.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Writes the time taken by each stage of the connection to the log.
+     * @param trace The trace of the connection.
+     */
+    private void logTimings(final Trace trace) {
+        mIodine.log("Connection stages:");
+        for (String line : trace.toString().split("\n")) {
+            mIodine.log("  " + line);
+        }
+    }
+
+    /**
+     * Starts checking whether the server is reachable directly, when
+     * the client would otherwise detect it. This needs the public
+     * address of the server, which is only known from a previous
+     * connection on the same network.
+     * @param p The profile.
+     * @return The check in progress, null if there is none.
+     */
+    private RawPreflight startPreflight(final Profile p) {
+        if (p.getRawConnection() != DnsRawConnection.AUTODETECT
+                || mTuning == null || mTuning.getServerAddress() == null) {
+            return null;
+        }
+
+        try {
+            InetAddress server = InetAddress.getByName(mTuning.getServerAddress());
+            RawPreflight preflight = new RawPreflight(
+                    new InetSocketAddress(server, DNS_PORT), p.getDomainName());
+            preflight.start(RawPreflight.DEFAULT_TIMEOUT);
+            return preflight;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not check the direct connection", e);
+            return null;
+        }
+    }
+
+    /**
+     * Races the DNS record types against the server.
+     * @param p The profile.
+     * @param resolver The resolver of the current network.
+     * @return The record type with the highest throughput,
+     * null to let the client autodetect it.
+     */
+    private DnsProtocol race(final Profile p, final InetAddress resolver) {
+        if (resolver == null) {
+            mIodine.log("No resolver to race the record types against");
+            return null;
+        }
+
+        mIodine.log("Racing DNS record types...");
+        DnsProbe probe = new DnsProbe(
+                new InetSocketAddress(resolver, DNS_PORT), p.getDomainName());
+        try {
+            DnsProbe.Result[] results = probe.race(DnsProbe.CANDIDATES);
+            for (DnsProbe.Result r : results) {
+                mIodine.log(r.toString());
+            }
+
+            DnsProtocol best = DnsProbe.pickBest(results);
+            if (best == null) {
+                mIodine.log("No record type got through, autodetecting");
+            } else {
+                mIodine.log("Using DNS type " + best);
+            }
+            return best;
+        } catch (IOException e) {
+            mIodine.log("Could not race the record types: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return The tuning cache.
+     */
+    private TuningCache getTuningCache() {
+        if (mTuningCache == null) {
+            mTuningCache = new TuningCache(
+                    PreferenceManager.getDefaultSharedPreferences(
+                            mIodine.getContext()));
+        }
+        return mTuningCache;
+    }
+
+    /**
+     * Forgets the cached parameters of the current network, so that
+     * the next launch autodetects them.
+     * @param p The profile.
+     */
+    private void forgetTuning(final Profile p) {
+        mIodine.log("Remembered parameters failed, autodetecting them");
+        getTuningCache().remove(p.getName(), mNetwork);
+        mTuning = null;
+    }
+
+    /**
+     * Tells the listeners that the tunnel is up.
+     * @param name The name of the profile.
+     */
+    private void notifyConnected(final String name) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mIodine.showConnectionToast(R.string.iodine_notify_connected);
+                for (ITunnelStatusListener l : mListeners) {
+                    l.onTunnelConnect(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts watching the traffic of a tunnel that was just set up,
+     * then supervises it.
+     * @param p The profile of the tunnel.
+     * @param generation The generation of the request that set it up.
+     */
+    private void startSupervision(final Profile p, final int generation) {
+        long now = SystemClock.elapsedRealtime();
+        if (mWatchdog == null) {
+            mWatchdog = new TunnelWatchdog(now);
+        } else {
+            mWatchdog.reset(now);
+        }
+        supervise(p, generation);
+    }
+
+    /**
+     * Feeds the watchdog with the traffic counters of the tunnel and
+     * pings the server if the tunnel is idle.
+     * @return Whether the tunnel is stalled.
+     */
+    private boolean checkStall() {
+        long now = SystemClock.elapsedRealtime();
+        mWatchdog.sample(now, InterfaceStats.read(Iodine.TUNNEL_INTERFACE));
+
+        if (mWatchdog.isStalled(now)) {
+            long duration = mWatchdog.getStallDuration(now);
+            mMetrics.onStall(duration);
+            mIodine.log("Tunnel stalled for " + duration + " ms, restarting iodine");
+            return true;
+        }
+
+        IodineLogParser handshake = mIodine.getHandshake();
+        if (handshake != null && handshake.getServerTunnelIp() != null
+                && mWatchdog.shouldPing(now)) {
+            mWatchdog.onPingSent(now);
+            ping(handshake.getServerTunnelIp());
+        }
+        return false;
+    }
+
+    /**
+     * Pings the server in the background, then tells the watchdog
+     * whether it answered.
+     * @param server The server tunnel IP.
+     */
+    private void ping(final InetAddress server) {
+        mStageExecutor.execute(new Runnable() {
+            public void run() {
+                boolean reachable;
+                try {
+                    reachable = server.isReachable(PING_TIMEOUT);
+                } catch (IOException e) {
+                    reachable = false;
+                }
+
+                final boolean answered = reachable;
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        mWatchdog.onPingResult(
+                                SystemClock.elapsedRealtime(), answered);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called in the thread that reads the output of the connected
+     * client, for each line. The line is logged in the controller
+     * thread, the only writer of the log.
+     * @param line The line.
+     */
+    final void onClientOutput(final String line) {
+        final boolean error = IodineLogParser.isError(line);
+        final long now = SystemClock.elapsedRealtime();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                mIodine.log(line);
+                if (error && mWatchdog != null) {
+                    mWatchdog.onOutput(now, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Samples the metrics of the tunnel every second, and measures the
+     * round trip time to the server every {@link #RTT_PROBE_TICKS}
+     * seconds, until the tunnel goes down.
+     * @param name The name of the tunnel.
+     * @param generation The generation of the request that set it up.
+     * @param tick How many samples were taken before.
+     */
+    private void monitor(
+            final String name,
+            final int generation,
+            final int tick) {
+        mExecutor.schedule(new Runnable() {
+            public void run() {
+                if (generation != mGeneration.get()
+                        || (mState != TunnelState.CONNECTED
+                        && mState != TunnelState.RECONNECTING)) {
+                    return;
+                }
+
+                mMetrics.sample(SystemClock.elapsedRealtime(),
+                        InterfaceStats.read(Iodine.TUNNEL_INTERFACE));
+
+                IodineLogParser handshake = mIodine.getHandshake();
+                if (tick % RTT_PROBE_TICKS == 0 && handshake != null
+                        && handshake.getServerTunnelIp() != null
+                        && mState == TunnelState.CONNECTED) {
+                    probeRtt(handshake.getServerTunnelIp());
+                }
+
+                publishMetrics(name);
+                monitor(name, generation, tick + 1);
+            }
+        }, METRICS_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Measures the round trip time to the server in the background.
+     * @param server The server tunnel IP.
+     */
+    private void probeRtt(final InetAddress server) {
+        mStageExecutor.execute(new Runnable() {
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                boolean reachable;
+                try {
+                    reachable = server.isReachable(PING_TIMEOUT);
+                } catch (IOException e) {
+                    reachable = false;
+                }
+                if (!reachable) {
+                    return;
+                }
+
+                final long rtt = SystemClock.elapsedRealtime() - start;
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        mMetrics.onRtt(rtt);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the current metrics to the listeners, unless the previous
+     * ones are still waiting to be delivered.
+     * @param name The name of the tunnel.
+     */
+    private void publishMetrics(final String name) {
+        if (!mMetricsPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        final TunnelMetrics.Snapshot snapshot = mMetrics.snapshot();
+        mHandler.post(new Runnable() {
+            public void run() {
+                mMetricsPending.set(false);
+                for (ITunnelMetricsListener l : mMetricsListeners) {
+                    l.onTunnelMetrics(name, snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules the next check of the client.
+     * @param p The profile of the tunnel.
+     * @param generation The generation of the request that set it up.
+     */
+    private void supervise(final Profile p, final int generation) {
+        mExecutor.schedule(new Runnable() {
+            public void run() {
+                if (generation != mGeneration.get()
+                        || mState != TunnelState.CONNECTED) {
+                    return;
+                }
+                if (mIodine.checkClient()) {
+                    if (!checkStall()) {
+                        supervise(p, generation);
+                        return;
+                    }
+                } else {
+                    Log.w(TAG, "The client died, restarting it");
+                }
+
+                mMetrics.onReconnect();
+                setState(TunnelState.RECONNECTING);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mIodine.showConnectionToast(
+                                R.string.iodine_notify_reconnecting);
+                    }
+                });
+                restart(p, generation, 0);
+            }
+        }, SUPERVISE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Restarts the client, keeping the routes to the tunnel entry.
+     * Schedules another attempt if this one fails.
+     * @param p The profile of the tunnel.
+     * @param generation The generation of the request that set it up.
+     * @param attempt How many attempts were made before.
+     */
+    private void restart(
+            final Profile p,
+            final int generation,
+            final int attempt) {
+        if (generation != mGeneration.get()) {
+            return;
+        }
+
+        mIodine.log("Restarting iodine, attempt " + (attempt + 1));
+        Trace trace = Tracer.startTrace("restart " + p.getName()
+                + " #" + (attempt + 1));
+        try {
+            //The resolver may be what broke the tunnel, the failed
+            //handshakes of the next attempts are already reported
+            if (attempt == 0) {
+                mIodine.reportResolver(false);
+            }
+            Trace.Span span = trace.begin("kill");
+            mIodine.killIodine();
+            span.end();
+
+            span = trace.begin("launch");
+            mIodine.startClient(p, mTuning);
+            span.end();
+
+            span = trace.begin("handshake");
+            long start = SystemClock.elapsedRealtime();
+            boolean handshake = mIodine.waitForHandshake();
+            mMetrics.onHandshake(SystemClock.elapsedRealtime() - start,
+                    handshake);
+            span.end();
+
+            if (handshake && generation == mGeneration.get()) {
+                span = trace.begin("routing");
+                boolean routed = mIodine.restoreTunnelRoute();
+                span.end();
+                if (routed) {
+                    setState(TunnelState.CONNECTED);
+                    notifyConnected(p.getName());
+                    startSupervision(p, generation);
+                    return;
+                }
+            }
+            if (!handshake && mTuning != null
+                    && generation == mGeneration.get()) {
+                forgetTuning(p);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Restart failed", e);
+            mIodine.log("Internal error: " + e);
+            if (generation == mGeneration.get()) {
+                abandon(new IodineException(R.string.iodine_unexpected_error));
+            }
+            return;
+        } finally {
+            Tracer.endTrace(trace);
+        }
+
+        if (generation != mGeneration.get()) {
+            return;
+        }
+
+        if (attempt + 1 >= MAX_RECONNECT_ATTEMPTS) {
+            abandon(new IodineException(R.string.iodine_reconnect_failed));
+            return;
+        }
+
+        mExecutor.schedule(new Runnable() {
+            public void run() {
+                restart(p, generation, attempt + 1);
+            }
+        }, getBackoff(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Computes the delay before the next restart attempt: it doubles
+     * with each attempt, up to a limit, and half of it is random.
+     * @param attempt How many attempts were made before.
+     * @return The delay in ms.
+     */
+    private long getBackoff(final int attempt) {
+        long delay = RECONNECT_BASE_DELAY << Math.min(attempt, MAX_BACKOFF_SHIFT);
+        delay = Math.min(delay, RECONNECT_MAX_DELAY);
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Undoes a failed connection attempt and reports the error.
+     * @param error Why the attempt failed.
+     */
+    private void abandon(final IodineException error) {
+        Log.w(TAG, "Connection attempt abandoned: " + error.getMessageId());
+        mIodine.restoreRoutes();
+        try {
+            mIodine.killIodine();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mIodine.setActiveProfile(null);
+        setState(TunnelState.IDLE);
+
+        if (error.getMessageId() == CANCELLED) {
+            return;
+        }
+
+        final String name = mProfileName;
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (ITunnelStatusListener l : mListeners) {
+                    l.onTunnelError(name, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tears down the tunnel, on the controller thread.
+     */
+    private void doDisconnect() {
+        Profile p = mIodine.getActiveProfile();
+        if (p == null) {
+            return;
+        }
+
+        setState(TunnelState.DISCONNECTING);
+        mIodine.restoreRoutes();
+        try {
+            mIodine.killIodine();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mIodine.setActiveProfile(null);
+        mIodine.setResolverPool(null);
+        setState(TunnelState.IDLE);
+
+        final String name = p.getName();
+        mHandler.post(new Runnable() {
+            public void run() {
+                mIodine.showConnectionToast(R.string.iodine_notify_disconnected);
+                for (ITunnelStatusListener l : mListeners) {
+                    l.onTunnelDisconnect(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a transition and notifies the listeners.
+     * @param state The new state.
+     */
+    private void setState(final TunnelState state) {
+        mState = state;
+        final String name = mProfileName;
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (ITunnelStatusListener l : mListeners) {
+                    l.onTunnelStateChanged(name, state);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forwards a message of the client to the listeners.
+     * @param message The message.
+     */
+    final void publishProgress(final String message) {
+        final String name = mProfileName;
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (ITunnelStatusListener l : mListeners) {
+                    l.onTunnelProgress(name, message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Register a listener for the tunnel events.
+     * Must be called in the UI thread.
+     * @param listener The listener.
+     */
+    public final void registerListener(final ITunnelStatusListener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener for the tunnel events.
+     * Must be called in the UI thread.
+     * @param listener The listener.
+     */
+    public final void unregisterListener(final ITunnelStatusListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Register a listener for the metrics of the tunnel, which are
+     * sent at most once per second while the tunnel is up.
+     * Must be called in the UI thread.
+     * @param listener The listener.
+     */
+    public final void registerMetricsListener(
+            final ITunnelMetricsListener listener) {
+        if (mMetricsListeners.contains(listener)) {
+            return;
+        }
+        mMetricsListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener for the metrics of the tunnel.
+     * Must be called in the UI thread.
+     * @param listener The listener.
+     */
+    public final void unregisterMetricsListener(
+            final ITunnelMetricsListener listener) {
+        mMetricsListeners.remove(listener);
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * Collects the performance figures of the tunnel: the traffic rates
+ * of the tunnel interface over the last 1, 10 and 60 seconds, the
+ * round trip times to the server, and the reconnections, stalls and
+ * handshake durations.
+ *
+ * The memory used is fixed: the counters are kept for the last
+ * minute only, and the round trip times in a histogram with
+ * power-of-two buckets.
+ *
+ * The metrics are not thread-safe. The snapshots are immutable and
+ * can be passed to other threads.
+ * @author Vitaly
+ *
+ */
+public class TunnelMetrics {
+    /** The windows of the rates, in seconds. */
+    public static final int[] WINDOWS = {1, 10, 60};
+
+    /** Number of buckets of the round trip time histogram. */
+    public static final int RTT_BUCKETS = 16;
+
+    /** How many counter samples to keep, one more than the widest window. */
+    private static final int HISTORY = 61;
+
+    /** Milliseconds per second. */
+    private static final long MS_PER_SECOND = 1000;
+
+    /** Time of each sample, in ms. */
+    private final long[] mTimes = new long[HISTORY];
+
+    /** Received bytes at each sample. */
+    private final long[] mRxBytes = new long[HISTORY];
+
+    /** Transmitted bytes at each sample. */
+    private final long[] mTxBytes = new long[HISTORY];
+
+    /** Received packets at each sample. */
+    private final long[] mRxPackets = new long[HISTORY];
+
+    /** Transmitted packets at each sample. */
+    private final long[] mTxPackets = new long[HISTORY];
+
+    /** Number of samples taken since the traffic was reset. */
+    private int mSamples;
+
+    /** Round trip times, bucket i counts the ones below 2^(i+1) ms. */
+    private final long[] mRtt = new long[RTT_BUCKETS];
+
+    /** Number of round trip times. */
+    private long mRttCount;
+
+    /** Sum of the round trip times, in ms. */
+    private long mRttSum;
+
+    /** Number of reconnections. */
+    private int mReconnects;
+
+    /** Number of stalls. */
+    private int mStalls;
+
+    /** How long the last stall lasted before it was detected, in ms. */
+    private long mLastStall;
+
+    /** Number of successful handshakes. */
+    private int mHandshakes;
+
+    /** Number of failed handshakes. */
+    private int mFailedHandshakes;
+
+    /** Duration of the last successful handshake, in ms. */
+    private long mLastHandshake;
+
+    /** Sum of the durations of the successful handshakes, in ms. */
+    private long mHandshakeSum;
+
+    /**
+     * The metrics at a given time.
+     */
+    public static final class Snapshot {
+        /** Received bytes per second, for each window. */
+        private final long[] mRxByteRates = new long[WINDOWS.length];
+
+        /** Transmitted bytes per second, for each window. */
+        private final long[] mTxByteRates = new long[WINDOWS.length];
+
+        /** Received packets per second, for each window. */
+        private final long[] mRxPacketRates = new long[WINDOWS.length];
+
+        /** Transmitted packets per second, for each window. */
+        private final long[] mTxPacketRates = new long[WINDOWS.length];
+
+        /** The round trip time histogram. */
+        private final long[] mRtt = new long[RTT_BUCKETS];
+
+        /** Number of round trip times. */
+        private long mRttCount;
+
+        /** Mean round trip time, in ms. */
+        private long mRttMean;
+
+        /** Number of reconnections. */
+        private int mReconnects;
+
+        /** Number of stalls. */
+        private int mStalls;
+
+        /** How long the last stall lasted before it was detected, in ms. */
+        private long mLastStall;
+
+        /** Number of successful handshakes. */
+        private int mHandshakes;
+
+        /** Number of failed handshakes. */
+        private int mFailedHandshakes;
+
+        /** Duration of the last successful handshake, in ms. */
+        private long mLastHandshake;
+
+        /** Mean duration of the successful handshakes, in ms. */
+        private long mHandshakeMean;
+
+        /** Use {@link TunnelMetrics#snapshot()}. */
+        private Snapshot() {
+
+        }
+
+        /**
+         * @param seconds One of {@link TunnelMetrics#WINDOWS}.
+         * @return The index of the window.
+         */
+        private static int window(final int seconds) {
+            for (int i = 0; i < WINDOWS.length; ++i) {
+                if (WINDOWS[i] == seconds) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No " + seconds + " s window");
+        }
+
+        /**
+         * @param seconds The window, one of {@link TunnelMetrics#WINDOWS}.
+         * @return The received bytes per second over the window.
+         */
+        public long getRxBytesPerSecond(final int seconds) {
+            return mRxByteRates[window(seconds)];
+        }
+
+        /**
+         * @param seconds The window, one of {@link TunnelMetrics#WINDOWS}.
+         * @return The transmitted bytes per second over the window.
+         */
+        public long getTxBytesPerSecond(final int seconds) {
+            return mTxByteRates[window(seconds)];
+        }
+
+        /**
+         * @param seconds The window, one of {@link TunnelMetrics#WINDOWS}.
+         * @return The received packets per second over the window.
+         */
+        public long getRxPacketsPerSecond(final int seconds) {
+            return mRxPacketRates[window(seconds)];
+        }
+
+        /**
+         * @param seconds The window, one of {@link TunnelMetrics#WINDOWS}.
+         * @return The transmitted packets per second over the window.
+         */
+        public long getTxPacketsPerSecond(final int seconds) {
+            return mTxPacketRates[window(seconds)];
+        }
+
+        /**
+         * @return The round trip time histogram: bucket 0 counts the
+         * times below 2 ms, bucket i the ones from 2^i to 2^(i+1) ms,
+         * and the last bucket everything above.
+         */
+        public long[] getRttHistogram() {
+            return mRtt.clone();
+        }
+
+        /**
+         * @return Number of round trip times measured.
+         */
+        public long getRttCount() {
+            return mRttCount;
+        }
+
+        /**
+         * @return Mean round trip time, in ms, 0 if none was measured.
+         */
+        public long getRttMean() {
+            return mRttMean;
+        }
+
+        /**
+         * @param percent The percentile, between 0 and 100.
+         * @return The upper bound of the bucket holding the percentile,
+         * in ms, 0 if no round trip time was measured.
+         */
+        public long getRttPercentile(final int percent) {
+            if (mRttCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (mRttCount * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < RTT_BUCKETS; ++i) {
+                seen += mRtt[i];
+                if (seen >= rank) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 1L << RTT_BUCKETS;
+        }
+
+        /**
+         * @return Number of reconnections.
+         */
+        public int getReconnects() {
+            return mReconnects;
+        }
+
+        /**
+         * @return Number of stalls.
+         */
+        public int getStalls() {
+            return mStalls;
+        }
+
+        /**
+         * @return How long the last stall lasted before it was detected,
+         * in ms, 0 if the tunnel never stalled.
+         */
+        public long getLastStallDuration() {
+            return mLastStall;
+        }
+
+        /**
+         * @return Number of successful handshakes.
+         */
+        public int getHandshakes() {
+            return mHandshakes;
+        }
+
+        /**
+         * @return Number of failed handshakes.
+         */
+        public int getFailedHandshakes() {
+            return mFailedHandshakes;
+        }
+
+        /**
+         * @return Duration of the last successful handshake, in ms.
+         */
+        public long getLastHandshakeDuration() {
+            return mLastHandshake;
+        }
+
+        /**
+         * @return Mean duration of the successful handshakes, in ms.
+         */
+        public long getMeanHandshakeDuration() {
+            return mHandshakeMean;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < WINDOWS.length; ++i) {
+                b.append(WINDOWS[i]).append("s: rx ").append(mRxByteRates[i]);
+                b.append(" B/s, tx ").append(mTxByteRates[i]).append(" B/s; ");
+            }
+            b.append("rtt mean ").append(mRttMean).append(" ms, p90 ");
+            b.append(getRttPercentile(90)).append(" ms; ");
+            b.append("reconnects ").append(mReconnects);
+            b.append(", stalls ").append(mStalls);
+            b.append(", handshake ").append(mLastHandshake).append(" ms");
+            return b.toString();
+        }
+    }
+
+    /**
+     * Forgets the traffic samples, e.g., because the tunnel interface
+     * was created again and its counters restarted from zero.
+     */
+    public final void resetTraffic() {
+        mSamples = 0;
+    }
+
+    /**
+     * Records the counters of the tunnel interface. Should be called
+     * about once per second.
+     * @param now The current time, in ms.
+     * @param stats The counters, null if the interface is gone.
+     */
+    public final void sample(final long now, final InterfaceStats stats) {
+        if (stats == null) {
+            return;
+        }
+
+        if (mSamples > 0) {
+            int last = (mSamples - 1) % HISTORY;
+            if (stats.getRxBytes() < mRxBytes[last]
+                    || stats.getTxBytes() < mTxBytes[last]) {
+                resetTraffic();
+            }
+        }
+
+        int i = mSamples % HISTORY;
+        mTimes[i] = now;
+        mRxBytes[i] = stats.getRxBytes();
+        mTxBytes[i] = stats.getTxBytes();
+        mRxPackets[i] = stats.getRxPackets();
+        mTxPackets[i] = stats.getTxPackets();
+        ++mSamples;
+    }
+
+    /**
+     * Records a round trip time to the server.
+     * @param rtt The round trip time, in ms.
+     */
+    public final void onRtt(final long rtt) {
+        int bucket = 0;
+        while (bucket < RTT_BUCKETS - 1 && rtt >= (2L << bucket)) {
+            ++bucket;
+        }
+        ++mRtt[bucket];
+        ++mRttCount;
+        mRttSum += rtt;
+    }
+
+    /** Records a reconnection. */
+    public final void onReconnect() {
+        ++mReconnects;
+    }
+
+    /**
+     * Records a stall.
+     * @param duration How long it lasted before it was detected, in ms.
+     */
+    public final void onStall(final long duration) {
+        ++mStalls;
+        mLastStall = duration;
+    }
+
+    /**
+     * Records a handshake.
+     * @param duration How long it took, in ms.
+     * @param success Whether it succeeded.
+     */
+    public final void onHandshake(final long duration, final boolean success) {
+        if (!success) {
+            ++mFailedHandshakes;
+            return;
+        }
+        ++mHandshakes;
+        mLastHandshake = duration;
+        mHandshakeSum += duration;
+    }
+
+    /**
+     * @param history The samples of a counter.
+     * @param seconds The window.
+     * @return The rate of the counter over the window, per second.
+     */
+    private long rate(final long[] history, final int seconds) {
+        int span = Math.min(seconds, mSamples - 1);
+        if (span <= 0) {
+            return 0;
+        }
+        int last = (mSamples - 1) % HISTORY;
+        int first = (mSamples - 1 - span) % HISTORY;
+        long elapsed = mTimes[last] - mTimes[first];
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (history[last] - history[first]) * MS_PER_SECOND / elapsed;
+    }
+
+    /**
+     * @return The current metrics.
+     */
+    public final Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        for (int i = 0; i < WINDOWS.length; ++i) {
+            s.mRxByteRates[i] = rate(mRxBytes, WINDOWS[i]);
+            s.mTxByteRates[i] = rate(mTxBytes, WINDOWS[i]);
+            s.mRxPacketRates[i] = rate(mRxPackets, WINDOWS[i]);
+            s.mTxPacketRates[i] = rate(mTxPackets, WINDOWS[i]);
+        }
+        System.arraycopy(mRtt, 0, s.mRtt, 0, RTT_BUCKETS);
+        s.mRttCount = mRttCount;
+        s.mRttMean = mRttCount == 0 ? 0 : mRttSum / mRttCount;
+        s.mReconnects = mReconnects;
+        s.mStalls = mStalls;
+        s.mLastStall = mLastStall;
+        s.mHandshakes = mHandshakes;
+        s.mFailedHandshakes = mFailedHandshakes;
+        s.mLastHandshake = mLastHandshake;
+        s.mHandshakeMean = mHandshakes == 0 ? 0 : mHandshakeSum / mHandshakes;
+        return s;
+    }
+}
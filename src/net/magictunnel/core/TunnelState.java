@@ -0,0 +1,53 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * The states of the tunnel, as driven by {@link TunnelController}.
+ * @author Vitaly
+ *
+ */
+public enum TunnelState {
+    /** No tunnel and nothing in progress. */
+    IDLE,
+    /** Killing a previous instance of the client. */
+    KILLING,
+    /** Racing the DNS record types against the server. */
+    PROBING,
+    /** Starting the client process. */
+    LAUNCHING,
+    /** The client is talking to the server. */
+    HANDSHAKE,
+    /** Rerouting the traffic through the tunnel. */
+    ROUTING,
+    /** The traffic goes through the tunnel. */
+    CONNECTED,
+    /** Tearing down the tunnel before setting it up again. */
+    RECONNECTING,
+    /** Tearing down the tunnel. */
+    DISCONNECTING;
+
+    /**
+     * @return Whether a connection is being set up.
+     */
+    public boolean isConnecting() {
+        return this == KILLING || this == PROBING || this == LAUNCHING || this == HANDSHAKE
+            || this == ROUTING || this == RECONNECTING;
+    }
+}
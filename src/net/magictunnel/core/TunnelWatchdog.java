@@ -0,0 +1,202 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+/**
+ * Decides whether the tunnel is stalled, i.e., the client is running
+ * but the traffic does not get through anymore, e.g., because the
+ * resolver started dropping the queries.
+ *
+ * The watchdog is fed with the traffic counters of the tunnel
+ * interface, the output of the client and the outcome of the pings
+ * to the server tunnel IP. The tunnel is stalled when:
+ * <ul>
+ * <li>packets were sent into the tunnel, but nothing came back
+ * for {@link #STALL_TIMEOUT} ms, or</li>
+ * <li>the client printed {@link #MAX_ERRORS} errors within
+ * {@link #ERROR_WINDOW} ms.</li>
+ * </ul>
+ * When the tunnel is idle, nothing is sent and nothing is expected
+ * back. A ping is then requested every {@link #PING_INTERVAL} ms, so
+ * that a stall is noticed before the user needs the tunnel.
+ *
+ * The watchdog is not thread-safe, and takes the current time as a
+ * parameter, in ms, so that it can be fed with any clock.
+ * @author Vitaly
+ *
+ */
+public class TunnelWatchdog {
+    /** How long the tunnel may leave sent packets unanswered, in ms. */
+    public static final long STALL_TIMEOUT = 10000;
+
+    /** The window in which errors are counted, in ms. */
+    public static final long ERROR_WINDOW = 10000;
+
+    /** How many errors in the window mean that the tunnel is stalled. */
+    public static final int MAX_ERRORS = 3;
+
+    /** How long the tunnel may stay idle before a ping, in ms. */
+    public static final long PING_INTERVAL = 15000;
+
+    /** The received bytes at the last sample, -1 if none. */
+    private long mRxBytes = -1;
+
+    /** The transmitted bytes at the last sample, -1 if none. */
+    private long mTxBytes = -1;
+
+    /** The last time something was received. */
+    private long mLastRx;
+
+    /** The last time something was sent or received. */
+    private long mLastActivity;
+
+    /** When the oldest unanswered packet was sent, -1 if none. */
+    private long mUnansweredSince = -1;
+
+    /** The times of the last errors, used as a ring. */
+    private final long[] mErrors = new long[MAX_ERRORS];
+
+    /** How many errors were recorded since the reset. */
+    private int mErrorCount;
+
+    /** When the pending ping was sent, -1 if none. */
+    private long mPingSent = -1;
+
+    /**
+     * Creates a watchdog.
+     * @param now The current time, in ms.
+     */
+    public TunnelWatchdog(final long now) {
+        reset(now);
+    }
+
+    /**
+     * Starts watching a new tunnel.
+     * @param now The current time, in ms.
+     */
+    public final void reset(final long now) {
+        mRxBytes = -1;
+        mTxBytes = -1;
+        mLastRx = now;
+        mLastActivity = now;
+        mUnansweredSince = -1;
+        mErrorCount = 0;
+        mPingSent = -1;
+    }
+
+    /**
+     * Records the counters of the tunnel interface.
+     * @param now The current time, in ms.
+     * @param stats The counters, null if the interface is gone.
+     */
+    public final void sample(final long now, final InterfaceStats stats) {
+        if (stats == null) {
+            return;
+        }
+
+        long rx = stats.getRxBytes();
+        long tx = stats.getTxBytes();
+        if (mRxBytes >= 0) {
+            if (rx != mRxBytes) {
+                mLastRx = now;
+                mLastActivity = now;
+                mUnansweredSince = -1;
+            } else if (tx != mTxBytes) {
+                mLastActivity = now;
+                if (mUnansweredSince < 0) {
+                    mUnansweredSince = now;
+                }
+            }
+        }
+        mRxBytes = rx;
+        mTxBytes = tx;
+    }
+
+    /**
+     * Records a line printed by the client.
+     * @param now The current time, in ms.
+     * @param error Whether the line reports an error.
+     */
+    public final void onOutput(final long now, final boolean error) {
+        if (error) {
+            mErrors[mErrorCount % MAX_ERRORS] = now;
+            ++mErrorCount;
+        }
+    }
+
+    /**
+     * @param now The current time, in ms.
+     * @return Whether the tunnel is idle for long enough to be pinged.
+     */
+    public final boolean shouldPing(final long now) {
+        return mPingSent < 0 && now - mLastActivity >= PING_INTERVAL;
+    }
+
+    /**
+     * Records that a ping was sent.
+     * @param now The current time, in ms.
+     */
+    public final void onPingSent(final long now) {
+        mPingSent = now;
+        mLastActivity = now;
+    }
+
+    /**
+     * Records the outcome of the ping. The ping counts as a sent
+     * packet, and its answer as a received one.
+     * @param now The current time, in ms.
+     * @param answered Whether the server answered.
+     */
+    public final void onPingResult(final long now, final boolean answered) {
+        if (mPingSent < 0) {
+            return;
+        }
+        if (answered) {
+            mLastRx = now;
+            mUnansweredSince = -1;
+        } else if (mUnansweredSince < 0) {
+            mUnansweredSince = mPingSent;
+        }
+        mPingSent = -1;
+    }
+
+    /**
+     * @param now The current time, in ms.
+     * @return Whether the tunnel is stalled.
+     */
+    public final boolean isStalled(final long now) {
+        if (mUnansweredSince >= 0 && now - mUnansweredSince >= STALL_TIMEOUT) {
+            return true;
+        }
+
+        if (mErrorCount >= MAX_ERRORS) {
+            long oldest = mErrors[mErrorCount % MAX_ERRORS];
+            return now - oldest <= ERROR_WINDOW;
+        }
+        return false;
+    }
+
+    /**
+     * @param now The current time, in ms.
+     * @return How long nothing came out of the tunnel, in ms.
+     */
+    public final long getStallDuration(final long now) {
+        return now - mLastRx;
+    }
+}
@@ -9,6 +9,12 @@ public enum DnsProtocol {
     /** Automatically detect the optimal protocol. */
     AUTODETECT,
 
+    /**
+     * Race the record types against the server and
+     * use the one with the highest throughput.
+     */
+    RACE,
+
     /** Use the NULL protocol. */
     NULL,
 
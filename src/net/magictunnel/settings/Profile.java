@@ -18,6 +18,7 @@
 
 package net.magictunnel.settings;
 
+import net.magictunnel.core.TuningCache;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -57,6 +58,15 @@ public class Profile implements Comparable<Profile> {
     /** Tunnel encoding type configuration suffix. */
     public static final String PROFILE_ENCODING_TYPE = "_encoding";
 
+    /** Automatic reconnection configuration suffix. */
+    public static final String PROFILE_AUTO_RECONNECT = "_auto_reconnect";
+
+    /** Extra resolvers configuration suffix. */
+    public static final String PROFILE_RESOLVERS = "_resolvers";
+
+    /** Resolver striping configuration suffix. */
+    public static final String PROFILE_STRIPING = "_striping";
+
     /** The value of PROFILE_TYPE for DNS tunneling. */
     public static final String PROFILE_TYPE_DNSTUNNEL = "dnstunnel";
 
@@ -92,6 +102,29 @@ public class Profile implements Comparable<Profile> {
      */
     private DnsProtocol mDnsProtocol = DnsProtocol.AUTODETECT;
 
+    /**
+     * The winner of the last race, when the protocol is
+     * {@link DnsProtocol#RACE}. It is not stored: it depends on the
+     * network, and the tuning cache remembers it per network.
+     */
+    private DnsProtocol mProbedProtocol;
+
+    /**
+     * Restart the tunnel automatically when the client dies,
+     * instead of leaving the user without connectivity.
+     */
+    private boolean mAutoReconnect = false;
+
+    /** Resolvers to use besides those of the system, comma separated. */
+    private String mResolvers = "";
+
+    /**
+     * Pick the resolver of each launch of the client among all the
+     * resolvers, favoring those its handshakes went through, instead
+     * of always using the first one.
+     */
+    private boolean mStriping = false;
+
     /**
      * Creates a default DNS tunneling profile.
      */
@@ -199,6 +232,71 @@ public class Profile implements Comparable<Profile> {
         mDnsProtocol = protocol;
     }
 
+    /**
+     *
+     * @return The winner of the last race, null if there was none.
+     */
+    public final DnsProtocol getProbedProtocol() {
+        return mProbedProtocol;
+    }
+
+    /**
+     * Set the winner of a race.
+     * @param protocol The record type that won, null to race again.
+     */
+    public final void setProbedProtocol(final DnsProtocol protocol) {
+        mProbedProtocol = protocol;
+    }
+
+    /**
+     *
+     * @return Whether to restart the tunnel when the client dies.
+     */
+    public final boolean isAutoReconnect() {
+        return mAutoReconnect;
+    }
+
+    /**
+     * Set automatic reconnection.
+     * @param b Whether to restart the tunnel when the client dies.
+     */
+    public final void setAutoReconnect(final boolean b) {
+        mAutoReconnect = b;
+    }
+
+    /**
+     *
+     * @return The resolvers to use besides those of the system,
+     * separated by commas.
+     */
+    public final String getResolvers() {
+        return mResolvers;
+    }
+
+    /**
+     * Set the resolvers to use besides those of the system.
+     * @param resolvers The IP addresses, separated by commas.
+     */
+    public final void setResolvers(final String resolvers) {
+        mResolvers = resolvers;
+    }
+
+    /**
+     *
+     * @return Whether to spread the queries over all the resolvers.
+     */
+    public final boolean isStriping() {
+        return mStriping;
+    }
+
+    /**
+     * Set resolver striping.
+     * @param b Whether to spread the queries over all the resolvers.
+     */
+    public final void setStriping(final boolean b) {
+        mStriping = b;
+    }
+
     @Override
     public final int compareTo(final Profile another) {
         return mName.compareTo(another.mName);
@@ -215,14 +313,26 @@ public class Profile implements Comparable<Profile> {
             final Context context,
             final String name) {
 
+        SharedPreferences prefs =
+            PreferenceManager.getDefaultSharedPreferences(context);
+        return readProfile(prefs, name);
+    }
+
+    /**
+     * Creates a Profile object from the specified preferences.
+     * @param prefs The preferences where the profile is stored.
+     * @param name The name of the configuration entry.
+     * @return The associated profile object.
+     */
+    public static Profile readProfile(
+            final SharedPreferences prefs,
+            final String name) {
+
         Profile prof = new Profile();
         prof.mName = name;
 
         String prefixedName = PROFILE_PREFIX + name;
 
-        SharedPreferences prefs =
-            PreferenceManager.getDefaultSharedPreferences(context);
-
         if (!prefs.contains(prefixedName + PROFILE_TYPE)) {
             return null;
         }
@@ -243,6 +353,12 @@ public class Profile implements Comparable<Profile> {
         prof.mDnsProtocol = DnsProtocol.valueOf(prefs.getString(
                 prefixedName + PROFILE_ENCODING_TYPE,
                 DnsProtocol.AUTODETECT.toString()));
+
+        prof.mAutoReconnect = prefs.getBoolean(
+                prefixedName + PROFILE_AUTO_RECONNECT, false);
+
+        prof.mResolvers = prefs.getString(prefixedName + PROFILE_RESOLVERS, "");
+        prof.mStriping = prefs.getBoolean(prefixedName + PROFILE_STRIPING, false);
         return prof;
     }
 
@@ -251,22 +367,35 @@ public class Profile implements Comparable<Profile> {
      * @param context The Android context.
      */
     public final void saveProfile(final Context context) {
-        String prefixedName = PROFILE_PREFIX + mName;
         SharedPreferences prefs =
             PreferenceManager.getDefaultSharedPreferences(context);
 
         Editor edit = prefs.edit();
+        writeProfile(edit);
+        edit.commit();
+    }
+
+    /**
+     * Writes the entries of this profile.
+     * The caller is responsible for committing the changes.
+     * @param edit The editor of the preferences.
+     */
+    public final void writeProfile(final Editor edit) {
+        String prefixedName = PROFILE_PREFIX + mName;
         edit.putString(prefixedName + PROFILE_TYPE, mType);
         edit.putString(prefixedName + PROFILE_DOMAIN, mDomainName);
         edit.putString(prefixedName + PROFILE_PASSWORD, mPassword);
         edit.putString(prefixedName + PROFILE_ENCODING_TYPE, mDnsProtocol.toString());
         edit.putInt(prefixedName + PROFILE_MAX_PACKET_SIZE, mPacketSize);
         edit.putString(prefixedName + PROFILE_DO_RAW_DETECTION, mRawConnection.toString());
-        edit.commit();
+        edit.putBoolean(prefixedName + PROFILE_AUTO_RECONNECT, mAutoReconnect);
+        edit.putString(prefixedName + PROFILE_RESOLVERS, mResolvers);
+        edit.putBoolean(prefixedName + PROFILE_STRIPING, mStriping);
     }
 
     /**
-     * Removes all profile entries from the Android's configuration store.
+     * Removes all profile entries from the Android's configuration store,
+     * along with the parameters remembered for the profile.
      * @param context The Android context.
      */
     public final void deleteProfile(final Context context) {
@@ -281,6 +410,10 @@ public class Profile implements Comparable<Profile> {
         edit.remove(prefixedName + PROFILE_ENCODING_TYPE);
         edit.remove(prefixedName + PROFILE_MAX_PACKET_SIZE);
         edit.remove(prefixedName + PROFILE_DO_RAW_DETECTION);
+        edit.remove(prefixedName + PROFILE_AUTO_RECONNECT);
+        edit.remove(prefixedName + PROFILE_RESOLVERS);
+        edit.remove(prefixedName + PROFILE_STRIPING);
+        TuningCache.removeProfile(prefs, edit, mName);
         edit.commit();
     }
 }
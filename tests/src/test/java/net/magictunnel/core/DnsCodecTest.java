@@ -0,0 +1,353 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import net.magictunnel.settings.DnsProtocol;
+
+import org.junit.Test;
+
+/**
+ * Writes DNS messages with {@link DnsCodec.Writer} and reads them back
+ * with {@link DnsCodec.Reader}.
+ * @author Vitaly
+ *
+ */
+public class DnsCodecTest {
+    /** Size of the message buffers. */
+    private static final int BUFFER_SIZE = 2048;
+
+    /** 192.0.2.1, in network order. */
+    private static final int ADDRESS = 0xc0000201;
+
+    /**
+     * @param len A length.
+     * @return That many bytes, counting up from 0.
+     */
+    private static byte[] bytes(final int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+    /**
+     * @param r A reader on a record.
+     * @param offset Where a name starts.
+     * @return The name, in dotted form.
+     */
+    private static String name(final DnsCodec.Reader r, final int offset) {
+        StringBuilder sb = new StringBuilder();
+        assertTrue(r.readName(offset, sb));
+        return sb.toString();
+    }
+
+    /**
+     * Writes a response with one record of each type, in all the
+     * sections, and reads back every field.
+     * @param buf The buffer to write the message to.
+     */
+    private static void checkRoundTrip(final ByteBuffer buf) {
+        byte[] txt = bytes(600);
+        byte[] nul = bytes(300);
+
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 0x1234, DnsCodec.FLAG_QR | DnsCodec.FLAG_AA | 3)
+            .question("q.t.example.", DnsCodec.TYPE_TXT)
+            .a("a.t.example", 60, ADDRESS)
+            .cname("c.t.example", 61, "a.t.example")
+            .mx("t.example", 62, 10, "mail.t.example")
+            .section(DnsCodec.SECTION_AUTHORITY)
+            .srv("_s._udp.t.example", 63, 1, 2, 53, "ns.t.example")
+            .section(DnsCodec.SECTION_ADDITIONAL)
+            .txt("q.t.example", 64, ByteBuffer.wrap(txt))
+            .nul("n.t.example", 65, ByteBuffer.wrap(nul));
+        int len = w.finish();
+        assertEquals(len, buf.position());
+
+        buf.flip();
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        assertTrue(r.wrap(buf));
+        assertEquals(0x1234, r.getId());
+        assertTrue(r.isResponse());
+        assertFalse(r.isTruncated());
+        assertEquals(3, r.getRcode());
+        assertEquals(1, r.getCount(DnsCodec.SECTION_QUESTION));
+        assertEquals(3, r.getCount(DnsCodec.SECTION_ANSWER));
+        assertEquals(1, r.getCount(DnsCodec.SECTION_AUTHORITY));
+        assertEquals(2, r.getCount(DnsCodec.SECTION_ADDITIONAL));
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.SECTION_QUESTION, r.getSection());
+        assertEquals(DnsCodec.TYPE_TXT, r.getType());
+        assertEquals(DnsCodec.CLASS_IN, r.getRecordClass());
+        assertEquals("q.t.example", name(r, r.getNameOffset()));
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.SECTION_ANSWER, r.getSection());
+        assertEquals(DnsCodec.TYPE_A, r.getType());
+        assertEquals(60, r.getTtl());
+        assertEquals(ADDRESS, r.getAddress());
+        assertEquals(-1, r.getTargetOffset());
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.TYPE_CNAME, r.getType());
+        assertEquals(61, r.getTtl());
+        assertEquals("c.t.example", name(r, r.getNameOffset()));
+        assertEquals("a.t.example", name(r, r.getTargetOffset()));
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.TYPE_MX, r.getType());
+        assertEquals(10, r.getPreference());
+        assertEquals("t.example", name(r, r.getNameOffset()));
+        assertEquals("mail.t.example", name(r, r.getTargetOffset()));
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.SECTION_AUTHORITY, r.getSection());
+        assertEquals(DnsCodec.TYPE_SRV, r.getType());
+        assertEquals(1, r.getPriority());
+        assertEquals(2, r.getWeight());
+        assertEquals(53, r.getPort());
+        assertEquals("ns.t.example", name(r, r.getTargetOffset()));
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.SECTION_ADDITIONAL, r.getSection());
+        assertEquals(DnsCodec.TYPE_TXT, r.getType());
+        //Split in character strings of 255, 255 and 90 bytes
+        assertEquals(txt.length + 3, r.getDataLength());
+        assertEquals(txt.length, r.getPayloadLength());
+        ByteBuffer data = ByteBuffer.allocate(txt.length);
+        assertEquals(txt.length, r.copyData(data));
+        assertArrayEquals(txt, data.array());
+
+        assertTrue(r.next());
+        assertEquals(DnsCodec.TYPE_NULL, r.getType());
+        assertEquals(65, r.getTtl());
+        data = ByteBuffer.allocateDirect(nul.length);
+        assertEquals(nul.length, r.copyData(data));
+        byte[] copy = new byte[nul.length];
+        data.flip();
+        data.get(copy);
+        assertArrayEquals(nul, copy);
+
+        assertFalse(r.next());
+        assertFalse(r.isMalformed());
+    }
+
+    /** All the record types survive a round trip through a heap buffer. */
+    @Test
+    public void roundTripHeap() {
+        checkRoundTrip(ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    /** All the record types survive a round trip through a direct buffer. */
+    @Test
+    public void roundTripDirect() {
+        checkRoundTrip(ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+
+    /** A message written after the start of the buffer is read from there. */
+    @Test
+    public void roundTripAtOffset() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        buf.position(100);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 7, 0).question("x.t.example", DnsCodec.TYPE_NULL)
+            .a("x.t.example", 0, ADDRESS);
+        int len = w.finish();
+
+        ByteBuffer msg = buf.duplicate();
+        msg.position(100);
+        msg.limit(100 + len);
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        assertTrue(r.wrap(msg));
+        assertEquals(7, r.getId());
+        assertTrue(r.next());
+        assertTrue(r.next());
+        assertTrue(r.nameEquals(r.getNameOffset(), "x.t.example"));
+        assertEquals(ADDRESS, r.getAddress());
+        assertFalse(r.next());
+    }
+
+    /** A name already in the message is replaced by a pointer. */
+    @Test
+    public void compressesRepeatedNames() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 0, DnsCodec.FLAG_QR)
+            .question("a.t.example", DnsCodec.TYPE_A)
+            .a("a.t.example", 0, ADDRESS)
+            .a("b.t.example", 0, ADDRESS);
+        w.finish();
+
+        //The question name: 1a 1t 7example 0
+        int question = DnsCodec.HEADER_SIZE;
+        int first = question + 13 + 4;
+        assertEquals(0xc000 | question, DnsCodec.getShort(buf, first));
+
+        //A label, then a pointer to t.example in the question
+        int second = first + 2 + 10 + 4;
+        assertEquals(1, buf.get(second));
+        assertEquals('b', buf.get(second + 1));
+        assertEquals(0xc000 | (question + 2), DnsCodec.getShort(buf, second + 2));
+
+        buf.flip();
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        assertTrue(r.wrap(buf));
+        assertTrue(r.next());
+        assertTrue(r.next());
+        assertEquals("a.t.example", name(r, r.getNameOffset()));
+        assertTrue(r.next());
+        assertEquals("b.t.example", name(r, r.getNameOffset()));
+        assertTrue(r.nameEquals(r.getNameOffset(), "B.T.Example."));
+        assertFalse(r.nameEquals(r.getNameOffset(), "b.t.example.com"));
+        assertFalse(r.nameEquals(r.getNameOffset(), "t.example"));
+    }
+
+    /** Names are compressed regardless of their case. */
+    @Test
+    public void compressionIgnoresCase() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 0, 0)
+            .question("x.T.Example", DnsCodec.TYPE_A)
+            .a("y.t.example", 0, ADDRESS);
+        w.finish();
+
+        int question = DnsCodec.HEADER_SIZE;
+        int record = question + 13 + 4;
+        assertEquals(0xc000 | (question + 2), DnsCodec.getShort(buf, record + 2));
+    }
+
+    /** The target of an SRV record is written in full (RFC 2782). */
+    @Test
+    public void doesNotCompressSrvTargets() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 0, 0)
+            .question("ns.t.example", DnsCodec.TYPE_SRV)
+            .srv("ns.t.example", 0, 0, 0, 53, "ns.t.example");
+        int len = w.finish();
+
+        int question = DnsCodec.HEADER_SIZE;
+        int record = question + 14 + 4;
+        int target = record + 2 + 10 + 6;
+        assertEquals(len, target + 14);
+        for (int i = 0; i < 14; ++i) {
+            assertEquals(buf.get(question + i), buf.get(target + i));
+        }
+    }
+
+    /** Pointers that loop are not followed forever. */
+    @Test
+    public void rejectsPointerLoops() {
+        ByteBuffer buf = ByteBuffer.allocate(DnsCodec.HEADER_SIZE + 6);
+        DnsCodec.putShort(buf, 4, 1);
+        //A label and a pointer back to it
+        int name = DnsCodec.HEADER_SIZE;
+        buf.put(name, (byte) 1);
+        buf.put(name + 1, (byte) 'x');
+        DnsCodec.putShort(buf, name + 2, 0xc000 | name);
+        DnsCodec.putShort(buf, name + 4, DnsCodec.TYPE_A);
+
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        assertTrue(r.wrap(buf));
+        assertFalse(r.readName(name, new StringBuilder()));
+        assertFalse(r.nameEquals(name, "x.x.x"));
+    }
+
+    /** A record that runs past the end of the message is reported. */
+    @Test
+    public void detectsTruncatedMessages() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 0, DnsCodec.FLAG_QR)
+            .question("t.example", DnsCodec.TYPE_A)
+            .a("t.example", 0, ADDRESS);
+        int len = w.finish();
+
+        buf.position(0);
+        buf.limit(len - 1);
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        assertTrue(r.wrap(buf));
+        assertTrue(r.next());
+        assertFalse(r.next());
+        assertTrue(r.isMalformed());
+
+        buf.limit(DnsCodec.HEADER_SIZE - 1);
+        assertFalse(r.wrap(buf));
+        assertTrue(r.isMalformed());
+    }
+
+    /** The data of a record must fit its type. */
+    @Test
+    public void detectsBadRecordData() {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 0, DnsCodec.FLAG_QR).nul("t.example", 0, ByteBuffer.wrap(bytes(3)));
+        w.finish();
+        //Turn the NULL record into an A record with 3 bytes of data
+        DnsCodec.putShort(buf, DnsCodec.HEADER_SIZE + 11, DnsCodec.TYPE_A);
+
+        buf.flip();
+        DnsCodec.Reader r = new DnsCodec.Reader();
+        assertTrue(r.wrap(buf));
+        assertFalse(r.next());
+        assertTrue(r.isMalformed());
+    }
+
+    /** A message that does not fit in the buffer throws. */
+    @Test(expected = BufferOverflowException.class)
+    public void overflows() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        new DnsCodec.Writer().begin(buf, 0, 0)
+            .nul("t.example", 0, ByteBuffer.wrap(bytes(64)));
+    }
+
+    /** Labels longer than 63 bytes are refused. */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesLongLabels() {
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < 64; ++i) {
+            label.append('x');
+        }
+        new DnsCodec.Writer().begin(ByteBuffer.allocate(BUFFER_SIZE), 0, 0)
+            .question(label + ".t.example", DnsCodec.TYPE_A);
+    }
+
+    /** The record types and the protocols map to each other. */
+    @Test
+    public void mapsProtocols() {
+        for (DnsProtocol p : DnsProtocol.values()) {
+            if (p == DnsProtocol.AUTODETECT || p == DnsProtocol.RACE) {
+                continue;
+            }
+            assertEquals(p, DnsCodec.getProtocol(DnsCodec.getRecordType(p)));
+        }
+        assertEquals(null, DnsCodec.getProtocol(0));
+    }
+}
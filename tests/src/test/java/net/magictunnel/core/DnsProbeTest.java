@@ -0,0 +1,274 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.magictunnel.settings.DnsProtocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Races the record types with {@link DnsProbe} against a
+ * {@link StubResolver} on the loopback interface.
+ * @author Vitaly
+ *
+ */
+public class DnsProbeTest {
+    /** How long the races wait for the replies, in ms. */
+    private static final int TIMEOUT = 500;
+
+    /** The resolver. */
+    private StubResolver mResolver;
+
+    /** The probe under test. */
+    private DnsProbe mProbe;
+
+    /**
+     * Starts the resolver.
+     * @throws IOException if it could not be started.
+     */
+    @Before
+    public void setUp() throws IOException {
+        mResolver = new StubResolver();
+        mResolver.start();
+        mProbe = new DnsProbe(mResolver.getAddress(), StubResolver.DOMAIN);
+        mProbe.setTimeout(TIMEOUT);
+    }
+
+    /**
+     * Stops the resolver.
+     * @throws InterruptedException if the test got interrupted.
+     */
+    @After
+    public void tearDown() throws InterruptedException {
+        mResolver.stop();
+    }
+
+    /**
+     * @param type A record type.
+     * @return The random labels the probe sent with that type.
+     */
+    private String sentLabels(final int type) {
+        String name = mResolver.getName(type);
+        assertTrue(name.startsWith("z"));
+        return name.substring(1, name.length() - StubResolver.DOMAIN.length() - 1);
+    }
+
+    /**
+     * @param results The results of a race.
+     * @param protocol A record type.
+     * @return Its result.
+     */
+    private static DnsProbe.Result find(
+            final DnsProbe.Result[] results,
+            final DnsProtocol protocol) {
+        for (DnsProbe.Result r : results) {
+            if (r.getProtocol() == protocol) {
+                return r;
+            }
+        }
+        throw new AssertionError(protocol + " not raced");
+    }
+
+    /**
+     * Every record type comes back: binary records carry the whole
+     * name, host names 7 bits per character of their labels.
+     * @throws IOException if the queries could not be sent.
+     */
+    @Test
+    public void measuresEveryType() throws IOException {
+        DnsProbe.Result[] results = mProbe.race(DnsProbe.CANDIDATES);
+        assertEquals(DnsProbe.CANDIDATES.length, results.length);
+        assertEquals(DnsProbe.CANDIDATES.length, mResolver.getQueries());
+
+        for (int i = 0; i < results.length; ++i) {
+            DnsProbe.Result r = results[i];
+            assertSame(DnsProbe.CANDIDATES[i], r.getProtocol());
+            assertTrue(r.toString(), r.isAnswered());
+            assertTrue(r.getRtt() < TIMEOUT);
+            assertTrue(r.getThroughput() > 0);
+
+            int type = DnsCodec.getRecordType(r.getProtocol());
+            String sent = sentLabels(type);
+            if (type == DnsCodec.TYPE_NULL || type == DnsCodec.TYPE_TXT) {
+                assertEquals(sent.length(), r.getPayload());
+            } else {
+                //The 'z' command is echoed too, the dots are not data
+                int chars = sent.replace(".", "").length() + 1;
+                assertEquals(r.toString(), chars * 7 / 8, r.getPayload());
+            }
+        }
+    }
+
+    /**
+     * A type whose queries get no reply is not answered, and the race
+     * gives up on it at the timeout.
+     * @throws IOException if the queries could not be sent.
+     */
+    @Test
+    public void timesOutDroppedTypes() throws IOException {
+        mResolver.setReply(DnsCodec.TYPE_NULL, StubResolver.Reply.DROP);
+        mResolver.setReply(DnsCodec.TYPE_SRV, StubResolver.Reply.DROP);
+
+        long start = System.currentTimeMillis();
+        DnsProbe.Result[] results = mProbe.race(DnsProbe.CANDIDATES);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed, elapsed >= TIMEOUT - 10);
+
+        assertFalse(find(results, DnsProtocol.NULL).isAnswered());
+        assertEquals(0, find(results, DnsProtocol.NULL).getThroughput());
+        assertFalse(find(results, DnsProtocol.SRV).isAnswered());
+        assertTrue(find(results, DnsProtocol.TXT).isAnswered());
+        assertTrue(find(results, DnsProtocol.CNAME).isAnswered());
+    }
+
+    /**
+     * Without any drop, the race ends as soon as everything came back.
+     * @throws IOException if the queries could not be sent.
+     */
+    @Test
+    public void endsWhenAllAnswered() throws IOException {
+        mProbe.setTimeout(10000);
+        long start = System.currentTimeMillis();
+        mProbe.race(DnsProbe.CANDIDATES);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+     * A truncated reply or a failure does not count, even though the
+     * truncated reply holds the data.
+     * @throws IOException if the queries could not be sent.
+     */
+    @Test
+    public void rejectsTruncatedAndFailedReplies() throws IOException {
+        mResolver.setReply(DnsCodec.TYPE_TXT, StubResolver.Reply.TRUNCATE);
+        mResolver.setReply(DnsCodec.TYPE_MX, StubResolver.Reply.SERVFAIL);
+        DnsProbe.Result[] results = mProbe.race(DnsProbe.CANDIDATES);
+        assertFalse(find(results, DnsProtocol.TXT).isAnswered());
+        assertFalse(find(results, DnsProtocol.MX).isAnswered());
+        assertTrue(find(results, DnsProtocol.NULL).isAnswered());
+    }
+
+    /**
+     * A queries are answered with a CNAME, which counts; an actual
+     * address does not carry any data.
+     * @throws IOException if the queries could not be sent.
+     */
+    @Test
+    public void acceptsCnameForA() throws IOException {
+        DnsProtocol[] a = {DnsProtocol.A};
+        DnsProbe.Result r = mProbe.race(a)[0];
+        assertTrue(r.isAnswered());
+        assertTrue(r.getPayload() > 0);
+
+        mResolver.setReply(DnsCodec.TYPE_A, StubResolver.Reply.ADDRESS);
+        r = mProbe.race(a)[0];
+        assertFalse(r.isAnswered());
+    }
+
+    /**
+     * A reply with another id is ignored, and the race goes on
+     * waiting for the right one.
+     * @throws IOException if the queries could not be sent.
+     */
+    @Test
+    public void ignoresMismatchedIds() throws IOException {
+        DnsProtocol[] nul = {DnsProtocol.NULL};
+        mResolver.setReply(DnsCodec.TYPE_NULL, StubResolver.Reply.WRONG_ID);
+        assertFalse(mProbe.race(nul)[0].isAnswered());
+
+        mResolver.setReply(DnsCodec.TYPE_NULL, StubResolver.Reply.STRAY_THEN_ECHO);
+        DnsProbe.Result r = mProbe.race(nul)[0];
+        assertTrue(r.isAnswered());
+        assertEquals(sentLabels(DnsCodec.TYPE_NULL).length(), r.getPayload());
+    }
+
+    /**
+     * The best type carries the most bytes per second, the first one
+     * wins a tie, and nothing is picked if nothing came back.
+     */
+    @Test
+    public void picksHighestThroughput() {
+        DnsProbe.Result[] results = {
+            new DnsProbe.Result(DnsProtocol.NULL, -1, 0),
+            new DnsProbe.Result(DnsProtocol.TXT, 100, 200),
+            new DnsProbe.Result(DnsProtocol.SRV, 50, 150),
+            new DnsProbe.Result(DnsProtocol.CNAME, 25, 50),
+        };
+        assertEquals(2000, results[1].getThroughput());
+        assertEquals(3000, results[2].getThroughput());
+        assertSame(DnsProtocol.SRV, DnsProbe.pickBest(results));
+
+        DnsProbe.Result[] ties = {
+            new DnsProbe.Result(DnsProtocol.TXT, 10, 100),
+            new DnsProbe.Result(DnsProtocol.MX, 20, 200),
+        };
+        assertSame(DnsProtocol.TXT, DnsProbe.pickBest(ties));
+
+        //A reply faster than a millisecond counts as one
+        assertEquals(100000, new DnsProbe.Result(DnsProtocol.A, 0, 100).getThroughput());
+
+        DnsProbe.Result[] none = {
+            new DnsProbe.Result(DnsProtocol.NULL, -1, 0),
+        };
+        assertNull(DnsProbe.pickBest(none));
+        assertNull(DnsProbe.pickBest(new DnsProbe.Result[0]));
+    }
+
+    /**
+     * The payload only counts the answers of the right type, in a
+     * well-formed response.
+     */
+    @Test
+    public void parsesPayload() {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        DnsCodec.Writer w = new DnsCodec.Writer();
+        w.begin(buf, 1, DnsCodec.FLAG_QR).question("x.t.example", DnsCodec.TYPE_TXT)
+            .txt("x.t.example", 0, ByteBuffer.wrap(new byte[40]))
+            .nul("x.t.example", 0, ByteBuffer.wrap(new byte[30]))
+            .section(DnsCodec.SECTION_ADDITIONAL)
+            .txt("x.t.example", 0, ByteBuffer.wrap(new byte[20]));
+        int len = w.finish();
+        byte[] pkt = buf.array();
+
+        assertEquals(40, DnsProbe.parsePayload(pkt, len, DnsCodec.TYPE_TXT, StubResolver.DOMAIN));
+        assertEquals(30, DnsProbe.parsePayload(pkt, len, DnsCodec.TYPE_NULL, StubResolver.DOMAIN));
+        assertEquals(0, DnsProbe.parsePayload(pkt, len, DnsCodec.TYPE_MX, StubResolver.DOMAIN));
+        assertTrue(DnsProbe.isReplyTo(pkt, len, 1));
+        assertFalse(DnsProbe.isReplyTo(pkt, len, 2));
+
+        //Cut in the middle of a record
+        assertEquals(0, DnsProbe.parsePayload(pkt, len - 5, DnsCodec.TYPE_TXT, StubResolver.DOMAIN));
+
+        //A query is not a reply
+        byte[] query = DnsProbe.buildQuery(1, "x.t.example", DnsCodec.TYPE_TXT);
+        assertEquals(0, DnsProbe.parsePayload(query, query.length, DnsCodec.TYPE_TXT, StubResolver.DOMAIN));
+        assertFalse(DnsProbe.isReplyTo(query, query.length, 1));
+    }
+}
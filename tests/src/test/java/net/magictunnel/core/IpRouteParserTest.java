@@ -0,0 +1,160 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Parses sample "ip route" output with {@link IpRouteParser}.
+ * @author Vitaly
+ *
+ */
+public class IpRouteParserTest {
+    /** What "ip route" prints on a phone with a tunnel up. */
+    private static final String[] SAMPLE = {
+        "172.20.2.39 via 10.50.242.169 dev rmnet0",
+        "10.50.242.168/29 dev rmnet0  proto kernel  scope link  src 10.50.242.171",
+        "192.168.233.0/24 dev dns0  proto kernel  scope link  src 192.168.233.2",
+        "default dev dns0  scope link",
+        "default via 192.168.1.1 dev wlan0  metric 303",
+    };
+
+    /**
+     * @param line A line of "ip route" output.
+     * @return The route it describes.
+     */
+    private static RouteEntry parse(final String line) {
+        RouteEntry re = RouteEntry.fromIpRouteCommand(line);
+        assertTrue(line, re != null);
+        return re;
+    }
+
+    /**
+     * @param address A dotted-quad address.
+     * @return The address as RouteEntry holds it.
+     */
+    private static int ip(final String address) {
+        return NetworkUtils.v4StringToInt(address);
+    }
+
+    /**
+     * A host route is printed without a prefix length: it gets the
+     * mask of a single host.
+     */
+    @Test
+    public void parsesHostRoute() {
+        RouteEntry re = parse(SAMPLE[0]);
+        assertEquals(ip("172.20.2.39"), re.getDestination());
+        assertEquals(0xffffffff, re.getMask());
+        assertEquals(ip("10.50.242.169"), re.getGateway());
+        assertEquals("rmnet0", re.getInterfaceName());
+    }
+
+    /**
+     * A link route has a prefix length and no gateway.
+     */
+    @Test
+    public void parsesLinkRoutes() {
+        RouteEntry re = parse(SAMPLE[1]);
+        assertEquals(ip("10.50.242.168"), re.getDestination());
+        assertEquals(NetworkUtils.prefixLengthToMask(29), re.getMask());
+        assertEquals(ip("255.255.255.248"), re.getMask());
+        assertEquals(0, re.getGateway());
+        assertEquals("rmnet0", re.getInterfaceName());
+
+        re = parse(SAMPLE[2]);
+        assertEquals(ip("192.168.233.0"), re.getDestination());
+        assertEquals(ip("255.255.255.0"), re.getMask());
+        assertEquals(0, re.getGateway());
+        assertEquals("dns0", re.getInterfaceName());
+    }
+
+    /**
+     * Default routes have a null destination and mask, with or
+     * without a gateway.
+     */
+    @Test
+    public void parsesDefaultRoutes() {
+        RouteEntry re = parse(SAMPLE[3]);
+        assertEquals(0, re.getDestination());
+        assertEquals(0, re.getMask());
+        assertEquals(0, re.getGateway());
+        assertEquals("dns0", re.getInterfaceName());
+
+        re = parse(SAMPLE[4]);
+        assertEquals(0, re.getDestination());
+        assertEquals(ip("192.168.1.1"), re.getGateway());
+        assertEquals("wlan0", re.getInterfaceName());
+    }
+
+    /**
+     * Reusing the entry gives the same routes as fresh entries, and
+     * keeps the interface name when it does not change.
+     */
+    @Test
+    public void parsesInPlace() {
+        IpRouteParser parser = new IpRouteParser();
+        RouteEntry re = new RouteEntry();
+        for (String line : SAMPLE) {
+            assertTrue(parser.parse(line, re));
+            assertEquals(parse(line), re);
+        }
+
+        assertTrue(parser.parse(SAMPLE[0], re));
+        String name = re.getInterfaceName();
+        assertTrue(parser.parse(SAMPLE[1], re));
+        assertSame(name, re.getInterfaceName());
+    }
+
+    /**
+     * Lines that are not IPv4 routes are rejected, and a line without
+     * a device leaves the name unset.
+     */
+    @Test
+    public void rejectsOtherLines() {
+        assertNull(RouteEntry.fromIpRouteCommand(""));
+        assertNull(RouteEntry.fromIpRouteCommand("fe80::/64 dev wlan0  proto kernel"));
+        assertNull(RouteEntry.fromIpRouteCommand("broadcast 10.0.0.255 dev eth0"));
+        assertNull(RouteEntry.fromIpRouteCommand("10.0.0 dev eth0"));
+
+        RouteEntry re = parse("10.0.0.0/8 via 10.0.0.1");
+        assertNull(re.getInterfaceName());
+        assertEquals(ip("10.0.0.1"), re.getGateway());
+    }
+
+    /**
+     * The address decoder reports where the address ends.
+     */
+    @Test
+    public void decodesAddresses() {
+        String s = "x10.1.2.3/8";
+        long v = IpRouteParser.parseV4(s, 1, s.length());
+        assertEquals(ip("10.1.2.3"), (int) v);
+        assertEquals(9, (int) (v >>> 32));
+        assertEquals(IpRouteParser.INVALID_V4, IpRouteParser.parseV4("10.1.2", 0, 6));
+        assertEquals(IpRouteParser.INVALID_V4, IpRouteParser.parseV4("a.b.c.d", 0, 7));
+        assertFalse(IpRouteParser.parseV4("1.2.3.4", 0, 7) == IpRouteParser.INVALID_V4);
+    }
+}
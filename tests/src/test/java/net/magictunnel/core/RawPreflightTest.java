@@ -0,0 +1,131 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link RawPreflight} against a {@link StubResolver} standing in
+ * for the server on the loopback interface.
+ * @author Vitaly
+ *
+ */
+public class RawPreflightTest {
+    /** How long the check waits for the reply, in ms. */
+    private static final int TIMEOUT = 300;
+
+    /** The server. */
+    private StubResolver mServer;
+
+    /** The check under test. */
+    private RawPreflight mPreflight;
+
+    /**
+     * Starts the server.
+     * @throws IOException if it could not be started.
+     */
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubResolver();
+        mServer.start();
+        mPreflight = new RawPreflight(mServer.getAddress(), StubResolver.DOMAIN);
+    }
+
+    /**
+     * Stops the server.
+     * @throws InterruptedException if the test got interrupted.
+     */
+    @After
+    public void tearDown() throws InterruptedException {
+        mPreflight.cancel();
+        mServer.stop();
+    }
+
+    /**
+     * A reply within the timeout passes the check, without waiting
+     * for the rest of the timeout.
+     * @throws IOException if the query could not be sent.
+     */
+    @Test
+    public void passesOnReply() throws IOException {
+        long start = System.currentTimeMillis();
+        mPreflight.start(TIMEOUT);
+        assertTrue(mPreflight.await());
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        assertEquals(1, mServer.getQueries());
+        assertTrue(mServer.getName(DnsCodec.TYPE_NULL)
+                .endsWith("." + StubResolver.DOMAIN));
+    }
+
+    /**
+     * Without a reply, the check fails once the timeout expires.
+     * @throws IOException if the query could not be sent.
+     */
+    @Test
+    public void failsOnTimeout() throws IOException {
+        mServer.setReply(DnsCodec.TYPE_NULL, StubResolver.Reply.DROP);
+        long start = System.currentTimeMillis();
+        mPreflight.start(TIMEOUT);
+        assertFalse(mPreflight.await());
+        assertTrue(System.currentTimeMillis() - start >= TIMEOUT - 10);
+    }
+
+    /**
+     * A reply with another id does not pass the check.
+     * @throws IOException if the query could not be sent.
+     */
+    @Test
+    public void ignoresMismatchedId() throws IOException {
+        mServer.setReply(DnsCodec.TYPE_NULL, StubResolver.Reply.WRONG_ID);
+        mPreflight.start(TIMEOUT);
+        assertFalse(mPreflight.await());
+    }
+
+    /**
+     * A reply that came in before the deadline passes the check even
+     * when the caller only gets to {@link RawPreflight#await} after
+     * the deadline.
+     * @throws Exception if the test failed.
+     */
+    @Test
+    public void passesOnReplyQueuedBeforeDeadline() throws Exception {
+        mPreflight.start(TIMEOUT);
+        Thread.sleep(TIMEOUT * 2);
+        assertTrue(mPreflight.await());
+    }
+
+    /**
+     * A reply that comes in after the deadline does not pass the check.
+     * @throws IOException if the query could not be sent.
+     */
+    @Test
+    public void failsOnLateReply() throws IOException {
+        mServer.setDelay(TIMEOUT * 2);
+        mPreflight.start(TIMEOUT);
+        assertFalse(mPreflight.await());
+    }
+}
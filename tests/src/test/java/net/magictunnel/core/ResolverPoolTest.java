@@ -0,0 +1,217 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the figures of {@link ResolverPool}, how they weigh on the
+ * picks, and that they survive the updates.
+ * @author Vitaly
+ *
+ */
+public class ResolverPoolTest {
+    /** Number of picks of the statistical tests. */
+    private static final int PICKS = 20000;
+
+    /** Enough samples for the averages to settle. */
+    private static final int SAMPLES = 200;
+
+    /** A resolver. */
+    private static final InetSocketAddress A = new InetSocketAddress("10.1.0.1", 53);
+
+    /** Another resolver. */
+    private static final InetSocketAddress B = new InetSocketAddress("10.1.0.2", 53);
+
+    /** A third resolver. */
+    private static final InetSocketAddress C = new InetSocketAddress("10.1.0.3", 53);
+
+    /**
+     * @param pool A pool.
+     * @param address An address of the pool.
+     * @return Its entry.
+     */
+    private static ResolverPool.Entry entry(
+            final ResolverPool pool,
+            final InetSocketAddress address) {
+        for (ResolverPool.Entry e : pool.getEntries()) {
+            if (e.getAddress().equals(address)) {
+                return e;
+            }
+        }
+        throw new AssertionError(address + " not in the pool");
+    }
+
+    /**
+     * @param pool A pool.
+     * @param address An address of the pool.
+     * @return How many of {@link #PICKS} picks went to it.
+     */
+    private static int countPicks(
+            final ResolverPool pool,
+            final InetSocketAddress address) {
+        int n = 0;
+        for (int i = 0; i < PICKS; ++i) {
+            if (pool.pick().getAddress().equals(address)) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * The averages move by an eighth of each sample, and a reply that
+     * the server held does not touch the round trip time.
+     */
+    @Test
+    public void averagesSamples() {
+        ResolverPool pool = new ResolverPool(Collections.singletonList(A));
+        ResolverPool.Entry e = entry(pool, A);
+        assertEquals(300, pool.getRtt(e));
+        assertEquals(0, pool.getLossPercent(e));
+
+        pool.onReply(e, 100);
+        assertEquals(275, pool.getRtt(e));
+        pool.onReply(e, -1);
+        assertEquals(275, pool.getRtt(e));
+
+        pool.onLoss(e);
+        assertEquals(13, pool.getLossPercent(e));
+        pool.onReply(e, -1);
+        assertEquals(11, pool.getLossPercent(e));
+        assertEquals(275, pool.getRtt(e));
+    }
+
+    /**
+     * A lone resolver is always picked, whatever its figures.
+     */
+    @Test
+    public void picksLoneResolver() {
+        ResolverPool pool = new ResolverPool(Collections.singletonList(A));
+        ResolverPool.Entry e = entry(pool, A);
+        for (int i = 0; i < SAMPLES; ++i) {
+            pool.onLoss(e);
+        }
+        assertEquals(PICKS, countPicks(pool, A));
+    }
+
+    /**
+     * A resolver ten times faster gets about ten times the queries,
+     * and the slow one keeps being measured.
+     */
+    @Test
+    public void favoursFastResolvers() {
+        ResolverPool pool = new ResolverPool(Arrays.asList(A, B));
+        for (int i = 0; i < SAMPLES; ++i) {
+            pool.onReply(entry(pool, A), 20);
+            pool.onReply(entry(pool, B), 200);
+        }
+        assertEquals(20, pool.getRtt(entry(pool, A)));
+        assertEquals(200, pool.getRtt(entry(pool, B)));
+
+        //B expects a weight of 1/11
+        int b = countPicks(pool, B);
+        assertTrue("B picked " + b, b > PICKS / 22 && b < PICKS / 6);
+    }
+
+    /**
+     * A resolver that loses everything gets few queries, but not none.
+     */
+    @Test
+    public void favoursReliableResolvers() {
+        ResolverPool pool = new ResolverPool(Arrays.asList(A, B));
+        for (int i = 0; i < SAMPLES; ++i) {
+            pool.onLoss(entry(pool, B));
+        }
+        assertEquals(100, pool.getLossPercent(entry(pool, B)));
+
+        //The loss rate counts as 95%: B expects a weight of 1/21
+        int b = countPicks(pool, B);
+        assertTrue("B picked " + b, b > PICKS / 42 && b < PICKS / 10);
+    }
+
+    /**
+     * Equal resolvers share the queries.
+     */
+    @Test
+    public void sharesBetweenEqualResolvers() {
+        ResolverPool pool = new ResolverPool(Arrays.asList(A, B));
+        int a = countPicks(pool, A);
+        assertTrue("A picked " + a, a > PICKS * 2 / 5 && a < PICKS * 3 / 5);
+    }
+
+    /**
+     * The resolvers that stay keep their entries, the new ones are
+     * reported, and the duplicates are dropped.
+     */
+    @Test
+    public void updateKeepsFigures() {
+        ResolverPool pool = new ResolverPool(Arrays.asList(A, B, A));
+        assertEquals(Arrays.asList(A, B), pool.getAddresses());
+        ResolverPool.Entry a = entry(pool, A);
+        pool.onReply(a, 100);
+        pool.onLoss(a);
+
+        List<InetSocketAddress> added = pool.update(Arrays.asList(C, A, C));
+        assertEquals(Collections.singletonList(C), added);
+        assertEquals(Arrays.asList(C, A), pool.getAddresses());
+        assertSame(a, entry(pool, A));
+        assertEquals(275, pool.getRtt(a));
+        assertEquals(13, pool.getLossPercent(a));
+        assertEquals(300, pool.getRtt(entry(pool, C)));
+
+        //B comes back as new
+        added = pool.update(Arrays.asList(A, B));
+        assertEquals(Collections.singletonList(B), added);
+        assertEquals(300, pool.getRtt(entry(pool, B)));
+    }
+
+    /**
+     * An empty list leaves the pool as it is.
+     */
+    @Test
+    public void updateIgnoresEmptyList() {
+        ResolverPool pool = new ResolverPool(Arrays.asList(A, B));
+        List<InetSocketAddress> added =
+            pool.update(new ArrayList<InetSocketAddress>());
+        assertTrue(added.isEmpty());
+        assertEquals(Arrays.asList(A, B), pool.getAddresses());
+    }
+
+    /**
+     * The entries handed out are a copy.
+     */
+    @Test
+    public void entriesAreCopied() {
+        ResolverPool pool = new ResolverPool(Arrays.asList(A, B));
+        ResolverPool.Entry[] entries = pool.getEntries();
+        entries[0] = null;
+        assertEquals(A, pool.getEntries()[0].getAddress());
+    }
+}
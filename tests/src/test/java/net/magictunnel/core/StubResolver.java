@@ -0,0 +1,308 @@
+/**
+ * MagicTunnel DNS tunnel GUI for Android.
+ * Copyright (C) 2011 Vitaly Chipounov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.magictunnel.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A stand-in for a resolver in front of an iodine server, for the
+ * tests of {@link DnsProbe} and {@link RawPreflight}. It answers each
+ * query by echoing its name in a record of the requested type, as the
+ * server does for the case check, or misbehaves as told for that type.
+ * @author Vitaly
+ *
+ */
+class StubResolver implements Runnable {
+    /** How the resolver answers a record type. */
+    enum Reply {
+        /** Sends the name back in a record of the type. */
+        ECHO,
+        /** Does not answer. */
+        DROP,
+        /** Echoes, but sets the truncation flag. */
+        TRUNCATE,
+        /** Echoes, with an id that is not the one of the query. */
+        WRONG_ID,
+        /** Sends a reply with a wrong id, then the echo. */
+        STRAY_THEN_ECHO,
+        /** Answers with an A record instead of a CNAME. */
+        ADDRESS,
+        /** Fails the query. */
+        SERVFAIL
+    }
+
+    /** The tunnel domain. */
+    static final String DOMAIN = "t.example";
+
+    /** The address of the ADDRESS replies, 192.0.2.1. */
+    private static final int ADDRESS = 0xc0000201;
+
+    /** Response code of a server failure. */
+    private static final int RCODE_SERVFAIL = 2;
+
+    /** Size of the buffers. */
+    private static final int MAX_PACKET = 4096;
+
+    /** The socket the queries come to. */
+    private final DatagramSocket mSocket;
+
+    /** The thread of the resolver. */
+    private final Thread mThread;
+
+    /** Reads the queries. */
+    private final DnsCodec.Reader mReader = new DnsCodec.Reader();
+
+    /** Writes the replies. */
+    private final DnsCodec.Writer mWriter = new DnsCodec.Writer();
+
+    /** How each record type is answered, ECHO if absent. */
+    private final Map<Integer, Reply> mReplies = new HashMap<Integer, Reply>();
+
+    /** The last query name of each record type. */
+    private final Map<Integer, String> mNames = new HashMap<Integer, String>();
+
+    /** How long to wait before answering, in ms. */
+    private long mDelay;
+
+    /** Number of queries received. */
+    private int mQueries;
+
+    /**
+     * Creates a resolver on an ephemeral port of the loopback interface.
+     * @throws SocketException if the socket could not be bound.
+     */
+    StubResolver() throws SocketException {
+        mSocket = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mThread = new Thread(this, "StubResolver");
+        mThread.setDaemon(true);
+    }
+
+    /**
+     * @return The address of the resolver.
+     */
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) mSocket.getLocalSocketAddress();
+    }
+
+    /** Starts the resolver thread. */
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the resolver.
+     * @throws InterruptedException if the caller got interrupted.
+     */
+    void stop() throws InterruptedException {
+        mSocket.close();
+        mThread.join();
+    }
+
+    /**
+     * @param type A record type.
+     * @param reply How to answer it.
+     */
+    synchronized void setReply(final int type, final Reply reply) {
+        mReplies.put(type, reply);
+    }
+
+    /**
+     * @param delay How long to wait before answering, in ms.
+     */
+    synchronized void setDelay(final long delay) {
+        mDelay = delay;
+    }
+
+    /**
+     * @param type A record type.
+     * @return The name of the last query of that type, null if none.
+     */
+    synchronized String getName(final int type) {
+        return mNames.get(type);
+    }
+
+    /**
+     * @return The number of queries received so far.
+     */
+    synchronized int getQueries() {
+        return mQueries;
+    }
+
+    /** Answers the queries until the socket is closed. */
+    public void run() {
+        byte[] buf = new byte[MAX_PACKET];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        while (true) {
+            try {
+                p.setLength(buf.length);
+                mSocket.receive(p);
+                long delay;
+                synchronized (this) {
+                    delay = mDelay;
+                }
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                for (byte[] reply : answer(ByteBuffer.wrap(buf, 0, p.getLength()))) {
+                    mSocket.send(new DatagramPacket(reply, reply.length,
+                            p.getSocketAddress()));
+                }
+            } catch (IOException e) {
+                return;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param query A query.
+     * @return The replies to send, in order.
+     */
+    private synchronized byte[][] answer(final ByteBuffer query) {
+        ++mQueries;
+        StringBuilder sb = new StringBuilder();
+        if (!mReader.wrap(query) || !mReader.next()
+                || !mReader.readName(mReader.getNameOffset(), sb)) {
+            return new byte[0][];
+        }
+        String name = sb.toString();
+        int type = mReader.getType();
+        int id = mReader.getId();
+        mNames.put(type, name);
+
+        Reply reply = mReplies.get(type);
+        if (reply == null) {
+            reply = Reply.ECHO;
+        }
+        switch (reply) {
+        case DROP:
+            return new byte[0][];
+        case TRUNCATE:
+            return new byte[][] {
+                echo(id, DnsCodec.FLAG_TC, name, type, false)
+            };
+        case WRONG_ID:
+            return new byte[][] {
+                echo(id ^ 1, 0, name, type, false)
+            };
+        case STRAY_THEN_ECHO:
+            return new byte[][] {
+                echo(id ^ 1, 0, name, type, false),
+                echo(id, 0, name, type, false)
+            };
+        case ADDRESS:
+            return new byte[][] {
+                echo(id, 0, name, type, true)
+            };
+        case SERVFAIL:
+            return new byte[][] {
+                echo(id, RCODE_SERVFAIL, name, type, false)
+            };
+        default:
+            return new byte[][] {
+                echo(id, 0, name, type, false)
+            };
+        }
+    }
+
+    /**
+     * Builds a reply that carries the query name back.
+     * @param id The id of the reply.
+     * @param flags The flags besides QR and AA.
+     * @param name The query name.
+     * @param type The record type.
+     * @param address Whether to answer with an A record.
+     * @return The reply.
+     */
+    private byte[] echo(
+            final int id,
+            final int flags,
+            final String name,
+            final int type,
+            final boolean address) {
+        ByteBuffer out = ByteBuffer.allocate(MAX_PACKET);
+        mWriter.begin(out, id, DnsCodec.FLAG_QR | DnsCodec.FLAG_AA | flags)
+            .question(name, type);
+        if (flags == RCODE_SERVFAIL) {
+            return finish(out);
+        }
+
+        //The host names hold the labels of the query, reversed so that
+        //only the domain gets compressed
+        String target = reverseLabels(name);
+        switch (type) {
+        case DnsCodec.TYPE_NULL:
+            mWriter.nul(name, 0, ByteBuffer.wrap(name.getBytes()));
+            break;
+        case DnsCodec.TYPE_TXT:
+            mWriter.txt(name, 0, ByteBuffer.wrap(name.getBytes()));
+            break;
+        case DnsCodec.TYPE_MX:
+            mWriter.mx(name, 0, 10, target);
+            break;
+        case DnsCodec.TYPE_SRV:
+            mWriter.srv(name, 0, 0, 0, 53, target);
+            break;
+        default:
+            //The server answers A queries with a CNAME
+            if (address) {
+                mWriter.a(name, 0, ADDRESS);
+            } else {
+                mWriter.cname(name, 0, target);
+            }
+            break;
+        }
+        return finish(out);
+    }
+
+    /**
+     * @param out The buffer of a message being written.
+     * @return The message.
+     */
+    private byte[] finish(final ByteBuffer out) {
+        int len = mWriter.finish();
+        byte[] reply = new byte[len];
+        System.arraycopy(out.array(), 0, reply, 0, len);
+        return reply;
+    }
+
+    /**
+     * @param name A query name under the domain.
+     * @return The name with the characters of each label before the
+     * domain reversed.
+     */
+    static String reverseLabels(final String name) {
+        String labels = name.substring(0, name.length() - DOMAIN.length() - 1);
+        StringBuilder sb = new StringBuilder();
+        for (String l : labels.split("\\.")) {
+            sb.append(new StringBuilder(l).reverse()).append('.');
+        }
+        return sb.append(DOMAIN).toString();
+    }
+}